@@ -22,8 +22,8 @@ import codeu.chat.client.commandline.Chat;
 import codeu.chat.client.core.Context;
 import codeu.chat.util.Logger;
 import codeu.chat.util.RemoteAddress;
-import codeu.chat.util.connections.ClientConnectionSource;
 import codeu.chat.util.connections.ConnectionSource;
+import codeu.chat.util.connections.MultiplexedConnectionSource;
 
 final class ClientMain {
 
@@ -43,7 +43,7 @@ final class ClientMain {
 
     final RemoteAddress address = RemoteAddress.parse(args[0]);
 
-    final ConnectionSource source = new ClientConnectionSource(address.host, address.port);
+    final ConnectionSource source = new MultiplexedConnectionSource(address.host, address.port);
 
     LOG.info("Creating client...");
     final Chat chat = new Chat(new Context(source));
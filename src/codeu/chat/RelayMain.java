@@ -17,10 +17,13 @@ package codeu.chat;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import codeu.chat.common.Secret;
 import codeu.chat.relay.Server;
 import codeu.chat.relay.ServerFrontEnd;
+import codeu.chat.relay.Workers;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Timeline;
 import codeu.chat.util.Uuid;
@@ -86,6 +89,13 @@ final class RelayMain {
       }
     });
 
+    // Every connection is handled on its own thread. Subscribers keep their
+    // connections open for as long as they are subscribed so they cannot be
+    // handled on the timeline, and the relay itself is safe to use from many
+    // threads at once. See Workers for the limits.
+    final ExecutorService connections = Workers.bounded();
+    LOG.info("Relay connection workers created.");
+
     LOG.info("Starting relay main loop...");
 
     while (true) {
@@ -95,16 +105,22 @@ final class RelayMain {
         final Connection connection = source.connect();
         LOG.info("Connection established.");
 
-        timeline.scheduleNow(new Runnable() {
-          @Override
-          public void run() {
-            try {
-              frontEnd.handleConnection(connection);
-            } catch (Exception ex) {
-              LOG.error(ex, "Exception handling connection.");
+        try {
+          connections.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                frontEnd.handleConnection(connection);
+              } catch (Exception ex) {
+                LOG.error(ex, "Exception handling connection.");
+              }
+              close(connection);
             }
-          }
-        });
+          });
+        } catch (RejectedExecutionException ex) {
+          LOG.warning("Too many connections waiting, turning one away.");
+          close(connection);
+        }
 
       } catch (IOException ex) {
         LOG.error(ex, "Failed to establish connection.");
@@ -112,6 +128,15 @@ final class RelayMain {
     }
   }
 
+  // Closing the connection is what sends any buffered response.
+  private static void close(Connection connection) {
+    try {
+      connection.close();
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while closing connection.");
+    }
+  }
+
   private static void loadTeamInfo(Server relay, String file) {
 
     try (final BufferedReader reader = new BufferedReader(new FileReader(file))) {
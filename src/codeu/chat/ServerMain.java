@@ -17,20 +17,40 @@ package codeu.chat;
 
 import java.io.IOException;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.server.NoOpRelay;
 import codeu.chat.server.RemoteRelay;
 import codeu.chat.server.Server;
+import codeu.chat.server.Workers;
+import codeu.chat.server.WriteAheadLog;
 import codeu.chat.util.Logger;
 import codeu.chat.util.RemoteAddress;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.ClientConnectionSource;
 import codeu.chat.util.connections.Connection;
 import codeu.chat.util.connections.ConnectionSource;
+import codeu.chat.util.connections.SelectorConnectionSource;
 import codeu.chat.util.connections.ServerConnectionSource;
 
+// SERVER MAIN
+//
+// Arguments: <id> <secret> <port> <persistent dir> [<relay address>]
+//
+// Any argument may be followed by "--mode=pool" (the default) or
+// "--mode=virtual" to choose how connections are run. In pool mode requests
+// are read by a SelectorConnectionSource and run on a fixed pool of threads.
+// In virtual mode each connection is accepted on a blocking socket and read
+// and answered on its own virtual thread, which needs Java 21 or later. See
+// Workers.
+//
+// Every change is kept in a write-ahead log in the persistent dir and is
+// brought back when the server starts again. "--sync=always" (the default),
+// "--sync=interval" or "--sync=never" choose how often the log is forced to
+// disk. See WriteAheadLog.
 final class ServerMain {
 
   private static final Logger.Log LOG = Logger.newLog(ServerMain.class);
@@ -54,13 +74,38 @@ final class ServerMain {
     // of the server.
     File persistentPath = null;
     RemoteAddress relayAddress = null;
+    String mode = Workers.POOL;
+    String sync = WriteAheadLog.ALWAYS;
 
     try {
-      id = Uuid.parse(args[0]);
-      secret = Secret.parse(args[1]);
-      port = Integer.parseInt(args[2]);
-      persistentPath = new File(args[3]);
-      relayAddress = args.length > 4 ? RemoteAddress.parse(args[4]) : null;
+      final List<String> positional = new ArrayList<>();
+      for (final String arg : args) {
+        if (arg.startsWith("--mode=")) {
+          mode = arg.substring("--mode=".length());
+        } else if (arg.startsWith("--sync=")) {
+          sync = arg.substring("--sync=".length());
+        } else {
+          positional.add(arg);
+        }
+      }
+
+      id = Uuid.parse(positional.get(0));
+      secret = Secret.parse(positional.get(1));
+      port = Integer.parseInt(positional.get(2));
+      persistentPath = new File(positional.get(3));
+      relayAddress = positional.size() > 4 ? RemoteAddress.parse(positional.get(4)) : null;
+
+      if (!Workers.POOL.equals(mode) && !Workers.VIRTUAL.equals(mode)) {
+        throw new IllegalArgumentException("Unknown mode: " + mode);
+      }
+      if (Workers.VIRTUAL.equals(mode) && !Workers.hasVirtual()) {
+        throw new IllegalArgumentException("Virtual mode needs Java 21 or later");
+      }
+      if (!WriteAheadLog.ALWAYS.equals(sync) &&
+          !WriteAheadLog.INTERVAL.equals(sync) &&
+          !WriteAheadLog.NEVER.equals(sync)) {
+        throw new IllegalArgumentException("Unknown sync policy: " + sync);
+      }
     } catch (Exception ex) {
       LOG.error(ex, "Failed to read command arguments");
       System.exit(1);
@@ -72,33 +117,51 @@ final class ServerMain {
     }
 
     try (
-        final ConnectionSource serverSource = ServerConnectionSource.forPort(port);
+        final ConnectionSource serverSource = Workers.VIRTUAL.equals(mode) ?
+            ServerConnectionSource.forPort(port) :
+            SelectorConnectionSource.forPort(port);
         final ConnectionSource relaySource = relayAddress == null ? null : new ClientConnectionSource(relayAddress.host, relayAddress.port)
     ) {
 
-      LOG.info("Starting server...");
-      runServer(id, secret, serverSource, relaySource);
+      LOG.info("Starting server in %s mode...", mode);
+      runServer(id, secret, mode, persistentPath, sync, serverSource, relaySource);
 
     } catch (IOException ex) {
 
-      LOG.error(ex, "Failed to establish connections");
+      LOG.error(ex, "Failed to start server");
 
     }
   }
 
   private static void runServer(Uuid id,
                                 Secret secret,
+                                String mode,
+                                File persistentPath,
+                                String sync,
                                 ConnectionSource serverSource,
-                                ConnectionSource relaySource) {
+                                ConnectionSource relaySource) throws IOException {
 
     final Relay relay = relaySource == null ?
                         new NoOpRelay() :
                         new RemoteRelay(relaySource);
 
-    final Server server = new Server(id, secret, relay);
+    final Server server = Server.restore(id, secret, relay, Workers.forMode(mode), persistentPath, sync);
 
     LOG.info("Created server.");
 
+    // Let the changes that were already started finish and close the log when
+    // the process is told to stop.
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        try {
+          server.close();
+        } catch (IOException ex) {
+          LOG.error(ex, "Failed to close server.");
+        }
+      }
+    });
+
     while (true) {
 
       try {
@@ -29,6 +29,12 @@ import codeu.chat.util.Uuid;
 
 public final class Chat {
 
+  // The most messages that "m-search" will show.
+  private static final int SEARCH_RESULTS = 10;
+
+  // The most users or conversations that "u-find" and "c-find" will show.
+  private static final int FIND_RESULTS = 10;
+
   // PANELS
   //
   // We are going to use a stack of panels to track where in the application
@@ -117,6 +123,8 @@ public final class Chat {
         System.out.println("    Add a new user with the given name.");
         System.out.println("  u-sign-in <name>");
         System.out.println("    Sign in as the user with the given name.");
+        System.out.println("  u-find <start of name>");
+        System.out.println("    List users whose name starts with the given text.");
         System.out.println("  info");
         System.out.println("    Get server version.");
         System.out.println("  exit");
@@ -170,7 +178,7 @@ public final class Chat {
       public void invoke(List<String> args) {
         final String name = args.size() > 0 ? args.get(0) : "";
         if (name.length() > 0) {
-          final UserContext user = findUser(name);
+          final UserContext user = context.findUser(name);
           if (user == null) {
             System.out.format("ERROR: Failed to sign in as '%s'\n", name);
           } else {
@@ -180,16 +188,23 @@ public final class Chat {
           System.out.println("ERROR: Missing <username>");
         }
       }
+    });
 
-      // Find the first user with the given name and return a user context
-      // for that user. If no user is found, the function will return null.
-      private UserContext findUser(String name) {
-        for (final UserContext user : context.allUsers()) {
-          if (user.user.name.equals(name)) {
-            return user;
-          }
+    // U-FIND (find users)
+    //
+    // Add a command to list the users whose name starts with some text when
+    // the user enters "u-find" while on the root panel.
+    //
+    panel.register("u-find", new Panel.Command() {
+      @Override
+      public void invoke(List<String> args) {
+        final String prefix = args.size() > 0 ? args.get(0) : "";
+        for (final UserContext user : context.completeUsers(prefix, FIND_RESULTS)) {
+          System.out.format(
+              "USER %s (UUID:%s)\n",
+              user.user.name,
+              user.user.id);
         }
-        return null;
       }
     });
 
@@ -232,6 +247,8 @@ public final class Chat {
         System.out.println("    Add a new conversation with the given title and join it as the current user.");
         System.out.println("  c-join <title>");
         System.out.println("    Join the conversation as the current user.");
+        System.out.println("  c-find <start of title>");
+        System.out.println("    List conversations whose title starts with the given text.");
         System.out.println("  info");
         System.out.println("    Display all info for the current user");
         System.out.println("  back");
@@ -290,7 +307,7 @@ public final class Chat {
       public void invoke(List<String> args) {
         final String name = args.size() > 0 ? args.get(0) : "";
         if (name.length() > 0) {
-          final ConversationContext conversation = find(name);
+          final ConversationContext conversation = user.findConversation(name);
           if (conversation == null) {
             System.out.format("ERROR: No conversation with name '%s'\n", name);
           } else {
@@ -300,16 +317,23 @@ public final class Chat {
           System.out.println("ERROR: Missing <title>");
         }
       }
+    });
 
-      // Find the first conversation with the given name and return its context.
-      // If no conversation has the given name, this will return null.
-      private ConversationContext find(String title) {
-        for (final ConversationContext conversation : user.conversations()) {
-          if (title.equals(conversation.conversation.title)) {
-            return conversation;
-          }
+    // C-FIND (find conversations)
+    //
+    // Add a command to list the conversations whose title starts with some
+    // text when the user enters "c-find" while on the user panel.
+    //
+    panel.register("c-find", new Panel.Command() {
+      @Override
+      public void invoke(List<String> args) {
+        final String prefix = args.size() > 0 ? args.get(0) : "";
+        for (final ConversationContext conversation : user.completeConversations(prefix, FIND_RESULTS)) {
+          System.out.format(
+              "CONVERSATION %s (UUID:%s)\n",
+              conversation.conversation.title,
+              conversation.conversation.id);
         }
-        return null;
       }
     });
 
@@ -347,6 +371,8 @@ public final class Chat {
         System.out.println("USER MODE");
         System.out.println("  m-list");
         System.out.println("    List all messages in the current conversation.");
+        System.out.println("  m-search <words>");
+        System.out.println("    List the messages in the current conversation that best match the words.");
         System.out.println("  m-add <message>");
         System.out.println("    Add a new message to the current conversation as the current user.");
         System.out.println("  info");
@@ -367,9 +393,7 @@ public final class Chat {
       @Override
       public void invoke(List<String> args) {
         System.out.println("--- start of conversation ---");
-        for (MessageContext message = conversation.firstMessage();
-                            message != null;
-                            message = message.next()) {
+        for (final MessageContext message : conversation.messages()) {
           System.out.println();
           System.out.format("USER : %s\n", message.message.author);
           System.out.format("SENT : %s\n", message.message.creation);
@@ -381,6 +405,32 @@ public final class Chat {
       }
     });
 
+    // M-SEARCH (search messages)
+    //
+    // Add a command to print the messages in the current conversation that
+    // best match some words when the user enters "m-search" while on the
+    // conversation panel.
+    //
+    panel.register("m-search", new Panel.Command() {
+      @Override
+      public void invoke(List<String> args) {
+        // Every word counts, so there is no need to quote them.
+        final String query = String.join(" ", args);
+        if (query.length() > 0) {
+          for (final MessageContext message : conversation.search(query, SEARCH_RESULTS)) {
+            System.out.println();
+            System.out.format("USER : %s\n", message.message.author);
+            System.out.format("SENT : %s\n", message.message.creation);
+            System.out.println();
+            System.out.println(message.message.content);
+          }
+          System.out.println();
+        } else {
+          System.out.println("ERROR: Missing <words>");
+        }
+      }
+    });
+
     // M-ADD (add message)
     //
     // Add a command to add a new message to the current conversation when the
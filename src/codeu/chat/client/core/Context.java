@@ -49,6 +49,28 @@ public final class Context {
     return users;
   }
 
+  // FIND USER
+  //
+  // Get the first user with exactly the given name, or null if there is no
+  // such user. Only that user is sent by the server.
+  public UserContext findUser(String name) {
+    for (final User user : view.getUsersByName(name, false, 1)) {
+      return new UserContext(user, view, controller);
+    }
+    return null;
+  }
+
+  // COMPLETE USERS
+  //
+  // Get up to "limit" users whose name starts with "prefix", ignoring case.
+  public Iterable<UserContext> completeUsers(String prefix, int limit) {
+    final Collection<UserContext> users = new ArrayList<>();
+    for (final User user : view.getUsersByName(prefix, true, limit)) {
+      users.add(new UserContext(user, view, controller));
+    }
+    return users;
+  }
+
   public ServerInfo getInfo() {
     return ((View)view).getInfo();
   }
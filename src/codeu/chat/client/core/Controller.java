@@ -17,11 +17,14 @@ package codeu.chat.client.core;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.Thread;
+import java.util.ArrayList;
+import java.util.Collection;
 
 import codeu.chat.common.BasicController;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.Message;
 import codeu.chat.common.NetworkCode;
+import codeu.chat.common.NewMessage;
 import codeu.chat.common.User;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializers;
@@ -64,6 +67,29 @@ final class Controller implements BasicController {
     return response;
   }
 
+  @Override
+  public Collection<Message> newMessages(Collection<NewMessage> messages) {
+
+    final Collection<Message> response = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.NEW_MESSAGES_BATCH_REQUEST);
+      Serializers.collection(NewMessage.SERIALIZER).write(connection.out(), messages);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.NEW_MESSAGES_BATCH_RESPONSE) {
+        response.addAll(Serializers.collection(Serializers.nullable(Message.SERIALIZER)).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return response;
+  }
+
   @Override
   public User newUser(String name) {
 
@@ -14,9 +14,12 @@
 
 package codeu.chat.client.core;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import codeu.chat.common.BasicController;
 import codeu.chat.common.BasicView;
@@ -28,6 +31,10 @@ import codeu.chat.util.Uuid;
 
 public final class ConversationContext {
 
+  // How many messages to ask the server for at once when walking through the
+  // whole conversation.
+  private static final int PAGE_SIZE = 256;
+
   public final User user;
   public final ConversationHeader conversation;
 
@@ -78,6 +85,32 @@ public final class ConversationContext {
         getMessage(updated.lastMessage);
   }
 
+  // MESSAGES
+  //
+  // Every message in the conversation, oldest first. Messages are fetched from
+  // the server a page at a time as the iteration reaches them, rather than
+  // one at a time by following each message's "next".
+  public Iterable<MessageContext> messages() {
+    return new Iterable<MessageContext>() {
+      @Override
+      public Iterator<MessageContext> iterator() {
+        return new Pages();
+      }
+    };
+  }
+
+  // SEARCH
+  //
+  // Find up to "count" messages in this conversation that have any of the
+  // words in "query", best match first.
+  public Collection<MessageContext> search(String query, int count) {
+    final Collection<MessageContext> found = new ArrayList<>();
+    for (final Message message : view.searchMessages(query, conversation.id, 0, count)) {
+      found.add(new MessageContext(message, view));
+    }
+    return found;
+  }
+
   private ConversationPayload getUpdated() {
     final Collection<Uuid> ids = Arrays.asList(conversation.id);
     final Iterator<ConversationPayload> payloads = view.getConversationPayloads(ids).iterator();
@@ -88,4 +121,41 @@ public final class ConversationContext {
     final Iterator<Message> messages = view.getMessages(Arrays.asList(id)).iterator();
     return messages.hasNext() ? new MessageContext(messages.next(), view) : null;
   }
+
+  // PAGES
+  //
+  // Walks the conversation one page at a time. A page shorter than asked for
+  // means the end of the conversation was reached.
+  private final class Pages implements Iterator<MessageContext> {
+
+    private Iterator<Message> page = Collections.<Message>emptyIterator();
+    private Uuid last = Uuid.NULL;
+    private boolean more = true;
+
+    @Override
+    public boolean hasNext() {
+      if (!page.hasNext() && more) {
+        final Collection<Message> messages =
+            view.getMessages(conversation.id, last, BasicView.FORWARD, PAGE_SIZE);
+        more = messages.size() == PAGE_SIZE;
+        page = messages.iterator();
+      }
+      return page.hasNext();
+    }
+
+    @Override
+    public MessageContext next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final Message message = page.next();
+      last = message.id;
+      return new MessageContext(message, view);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
@@ -53,4 +53,27 @@ public final class UserContext {
 
     return all;
   }
+
+  // FIND CONVERSATION
+  //
+  // Get the first conversation with exactly the given title, or null if there
+  // is no such conversation.
+  public ConversationContext findConversation(String title) {
+    for (final ConversationHeader conversation : view.getConversationsByTitle(title, false, 1)) {
+      return new ConversationContext(user, conversation, view, controller);
+    }
+    return null;
+  }
+
+  // COMPLETE CONVERSATIONS
+  //
+  // Get up to "limit" conversations whose title starts with "prefix", ignoring
+  // case.
+  public Iterable<ConversationContext> completeConversations(String prefix, int limit) {
+    final Collection<ConversationContext> all = new ArrayList<>();
+    for (final ConversationHeader conversation : view.getConversationsByTitle(prefix, true, limit)) {
+      all.add(new ConversationContext(user, conversation, view, controller));
+    }
+    return all;
+  }
 }
@@ -132,6 +132,108 @@ final class View implements BasicView {
     return messages;
   }
 
+  @Override
+  public Collection<Message> getMessages(Uuid conversation, Uuid start, int direction, int count) {
+
+    final Collection<Message> messages = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_RANGE_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), conversation);
+      Uuid.SERIALIZER.write(connection.out(), start);
+      Serializers.INTEGER.write(connection.out(), direction);
+      Serializers.INTEGER.write(connection.out(), count);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_RANGE_RESPONSE) {
+        messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
+  @Override
+  public Collection<Message> searchMessages(String query, Uuid conversation, int offset, int count) {
+
+    final Collection<Message> messages = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.SEARCH_MESSAGES_REQUEST);
+      Serializers.STRING.write(connection.out(), query);
+      Uuid.SERIALIZER.write(connection.out(), conversation);
+      Serializers.INTEGER.write(connection.out(), offset);
+      Serializers.INTEGER.write(connection.out(), count);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SEARCH_MESSAGES_RESPONSE) {
+        messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
+  @Override
+  public Collection<User> getUsersByName(String name, boolean prefix, int limit) {
+
+    final Collection<User> users = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_USERS_BY_NAME_REQUEST);
+      Serializers.STRING.write(connection.out(), name);
+      Serializers.BOOLEAN.write(connection.out(), prefix);
+      Serializers.INTEGER.write(connection.out(), limit);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_USERS_BY_NAME_RESPONSE) {
+        users.addAll(Serializers.collection(User.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return users;
+  }
+
+  @Override
+  public Collection<ConversationHeader> getConversationsByTitle(String title, boolean prefix, int limit) {
+
+    final Collection<ConversationHeader> conversations = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_CONVERSATIONS_BY_TITLE_REQUEST);
+      Serializers.STRING.write(connection.out(), title);
+      Serializers.BOOLEAN.write(connection.out(), prefix);
+      Serializers.INTEGER.write(connection.out(), limit);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_CONVERSATIONS_BY_TITLE_RESPONSE) {
+        conversations.addAll(Serializers.collection(ConversationHeader.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return conversations;
+  }
+
   public ServerInfo getInfo() {
 
     try (final Connection connection = this.source.connect()) {
@@ -151,25 +253,5 @@ final class View implements BasicView {
     // If we get here it means something went wrong and null should be returned
     return null;
   }
-  
-  public ServerInfo getInfo() {
-    try (final Connection connection = source.connection()) {
-      Serializers.INTEGER.write(connection.out(), NetworkCode.SERVER_INFO_REQUEST);
-      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SERVER_INFO_RESPONSE) {
-        final Time startTime = Time.SERIALIZER.read(connection.in());
-        return new ServerInfo(startTime);
-      } else {
-         // Communicate this error - the server did not respond with the type of
-         // response we expected
-        throw new IllegalArgumentException("The server did not respond with what we expected.");
-      } catch (IllegalArgumentException ex) {
-         // Communicate this error - something went wrong with the connection.
-      }
-      return null;
-    }
-        
- }
-
-  }
 
 }
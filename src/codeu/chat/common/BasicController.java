@@ -14,6 +14,8 @@
 
 package codeu.chat.common;
 
+import java.util.Collection;
+
 import codeu.chat.util.Uuid;
 
 // BASIC CONTROLLER
@@ -33,6 +35,14 @@ public interface BasicController {
   //   state of the message on the server.
   Message newMessage(Uuid author, Uuid conversation, String body);
 
+  // NEW MESSAGES
+  //
+  //   Create many messages on the server at once. The messages are added in
+  //   the order given. The returned collection has one entry for each new
+  //   message, in the same order, which will be null for any message that
+  //   the server would not add.
+  Collection<Message> newMessages(Collection<NewMessage> messages);
+
   // NEW USER
   //
   //   Create a new user on the server. All parameters must be provided
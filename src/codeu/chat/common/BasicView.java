@@ -32,6 +32,10 @@ import codeu.chat.util.Uuid;
 
 public interface BasicView {
 
+  // Directions for walking through the messages in a conversation.
+  int FORWARD = 1;   // oldest to newest
+  int BACKWARD = -1;  // newest to oldest
+
   // GET USERS
   //
   //   Return all users whose id is found in the given collection.
@@ -51,4 +55,34 @@ public interface BasicView {
   //
   //   Return all messages whose id is found in the given collection.
   Collection<Message> getMessages(Collection<Uuid> ids);
+
+  // GET MESSAGES RANGE
+  //
+  //   Return up to "count" messages from a conversation, walking in
+  //   "direction". The walk starts with the message after "start" or, if
+  //   "start" is Uuid.NULL, with the first message in that direction. Passing
+  //   the last message of one page as "start" gets the next page. An empty
+  //   result means there are no more messages, or that "start" is not in the
+  //   conversation.
+  Collection<Message> getMessages(Uuid conversation, Uuid start, int direction, int count);
+
+  // SEARCH MESSAGES
+  //
+  //   Return the messages that have any of the words in "query", best match
+  //   first. If "conversation" is Uuid.NULL every conversation is searched.
+  //   "offset" and "count" pick out one page of the results.
+  Collection<Message> searchMessages(String query, Uuid conversation, int offset, int count);
+
+  // GET USERS BY NAME
+  //
+  //   Return up to "limit" users whose name is "name". If "prefix" is true,
+  //   return users whose name starts with "name", ignoring case, instead.
+  Collection<User> getUsersByName(String name, boolean prefix, int limit);
+
+  // GET CONVERSATIONS BY TITLE
+  //
+  //   Return up to "limit" conversations whose title is "title". If "prefix"
+  //   is true, return conversations whose title starts with "title", ignoring
+  //   case, instead.
+  Collection<ConversationHeader> getConversationsByTitle(String title, boolean prefix, int limit);
 }
@@ -15,41 +15,46 @@
 package codeu.chat.common;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.Wire;
 
 public final class ConversationHeader {
 
-  public static final Serializer<ConversationHeader> SERIALIZER = new Serializer<ConversationHeader>() {
+  public static final BufferSerializer<ConversationHeader> BUFFER_SERIALIZER = new BufferSerializer<ConversationHeader>() {
 
     @Override
-    public void write(OutputStream out, ConversationHeader value) throws IOException {
+    public void write(ByteBuffer out, ConversationHeader value, Wire wire) throws IOException {
 
-      Uuid.SERIALIZER.write(out, value.id);
-      Uuid.SERIALIZER.write(out, value.owner);
-      Time.SERIALIZER.write(out, value.creation);
-      Serializers.STRING.write(out, value.title);
+      Uuid.BUFFER_SERIALIZER.write(out, value.id, wire);
+      Uuid.BUFFER_SERIALIZER.write(out, value.owner, wire);
+      Time.BUFFER_SERIALIZER.write(out, value.creation, wire);
+      BufferSerializers.STRING.write(out, value.title, wire);
 
     }
 
     @Override
-    public ConversationHeader read(InputStream in) throws IOException {
+    public ConversationHeader read(ByteBuffer in, Wire wire) throws IOException {
 
       return new ConversationHeader(
-          Uuid.SERIALIZER.read(in),
-          Uuid.SERIALIZER.read(in),
-          Time.SERIALIZER.read(in),
-          Serializers.STRING.read(in)
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          Time.BUFFER_SERIALIZER.read(in, wire),
+          BufferSerializers.STRING.read(in, wire)
       );
 
     }
   };
 
+  public static final Serializer<ConversationHeader> SERIALIZER =
+      Serializers.adapt(BUFFER_SERIALIZER);
+
   public final Uuid id;
   public final Uuid owner;
   public final Time creation;
@@ -15,45 +15,49 @@
 package codeu.chat.common;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.Wire;
 
 public final class ConversationPayload {
 
-  public static final Serializer<ConversationPayload> SERIALIZER = new Serializer<ConversationPayload>() {
+  public static final BufferSerializer<ConversationPayload> BUFFER_SERIALIZER = new BufferSerializer<ConversationPayload>() {
 
     @Override
-    public void write(OutputStream out, ConversationPayload value) throws IOException {
+    public void write(ByteBuffer out, ConversationPayload value, Wire wire) throws IOException {
 
-      Uuid.SERIALIZER.write(out, value.id);
-      Uuid.SERIALIZER.write(out, value.firstMessage);
-      Uuid.SERIALIZER.write(out, value.lastMessage);
+      Uuid.BUFFER_SERIALIZER.write(out, value.id, wire);
+      Uuid.BUFFER_SERIALIZER.write(out, value.firstMessage, wire);
+      Uuid.BUFFER_SERIALIZER.write(out, value.lastMessage, wire);
 
     }
 
     @Override
-    public ConversationPayload read(InputStream in) throws IOException {
+    public ConversationPayload read(ByteBuffer in, Wire wire) throws IOException {
 
       return new ConversationPayload(
-          Uuid.SERIALIZER.read(in),
-          Uuid.SERIALIZER.read(in),
-          Uuid.SERIALIZER.read(in));
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          Uuid.BUFFER_SERIALIZER.read(in, wire));
 
     }
   };
 
+  public static final Serializer<ConversationPayload> SERIALIZER =
+      Serializers.adapt(BUFFER_SERIALIZER);
+
   public final Uuid id;
 
-  // These are allowed to be updated and therefore are not marked final
-  public Uuid firstMessage = Uuid.NULL;
-  public Uuid lastMessage = Uuid.NULL;
+  public final Uuid firstMessage;
+  public final Uuid lastMessage;
 
   public ConversationPayload(Uuid id) {
-    this.id = id;
+    this(id, Uuid.NULL, Uuid.NULL);
   }
 
   public ConversationPayload(Uuid id, Uuid firstMessage, Uuid lastMessage) {
@@ -15,51 +15,56 @@
 package codeu.chat.common;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.Wire;
 
 public final class Message {
 
-  public static final Serializer<Message> SERIALIZER = new Serializer<Message>() {
+  public static final BufferSerializer<Message> BUFFER_SERIALIZER = new BufferSerializer<Message>() {
 
     @Override
-    public void write(OutputStream out, Message value) throws IOException {
+    public void write(ByteBuffer out, Message value, Wire wire) throws IOException {
 
-      Uuid.SERIALIZER.write(out, value.id);
-      Uuid.SERIALIZER.write(out, value.next);
-      Uuid.SERIALIZER.write(out, value.previous);
-      Time.SERIALIZER.write(out, value.creation);
-      Uuid.SERIALIZER.write(out, value.author);
-      Serializers.STRING.write(out, value.content);
+      Uuid.BUFFER_SERIALIZER.write(out, value.id, wire);
+      Uuid.BUFFER_SERIALIZER.write(out, value.next, wire);
+      Uuid.BUFFER_SERIALIZER.write(out, value.previous, wire);
+      Time.BUFFER_SERIALIZER.write(out, value.creation, wire);
+      Uuid.BUFFER_SERIALIZER.write(out, value.author, wire);
+      BufferSerializers.STRING.write(out, value.content, wire);
 
     }
 
     @Override
-    public Message read(InputStream in) throws IOException {
+    public Message read(ByteBuffer in, Wire wire) throws IOException {
 
       return new Message(
-          Uuid.SERIALIZER.read(in),
-          Uuid.SERIALIZER.read(in),
-          Uuid.SERIALIZER.read(in),
-          Time.SERIALIZER.read(in),
-          Uuid.SERIALIZER.read(in),
-          Serializers.STRING.read(in)
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          Time.BUFFER_SERIALIZER.read(in, wire),
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          BufferSerializers.STRING.read(in, wire)
       );
 
     }
   };
 
+  public static final Serializer<Message> SERIALIZER =
+      Serializers.adapt(BUFFER_SERIALIZER);
+
   public final Uuid id;
   public final Uuid previous;
   public final Time creation;
   public final Uuid author;
   public final String content;
-  public Uuid next;
+  public final Uuid next;
 
   public Message(Uuid id, Uuid next, Uuid previous, Time creation, Uuid author, String content) {
 
@@ -37,6 +37,22 @@ public final class NetworkCode {
       RELAY_WRITE_REQUEST = 29,
       RELAY_WRITE_RESPONSE = 30,
       SERVER_INFO_REQUEST = 31,
-      SERVER_INFO_RESPONSE = 32;
+      SERVER_INFO_RESPONSE = 32,
+      HANDSHAKE_REQUEST = 33,
+      HANDSHAKE_RESPONSE = 34,
+      NEW_MESSAGES_BATCH_REQUEST = 35,
+      NEW_MESSAGES_BATCH_RESPONSE = 36,
+      GET_MESSAGES_RANGE_REQUEST = 37,
+      GET_MESSAGES_RANGE_RESPONSE = 38,
+      SEARCH_MESSAGES_REQUEST = 39,
+      SEARCH_MESSAGES_RESPONSE = 40,
+      GET_USERS_BY_NAME_REQUEST = 41,
+      GET_USERS_BY_NAME_RESPONSE = 42,
+      GET_CONVERSATIONS_BY_TITLE_REQUEST = 43,
+      GET_CONVERSATIONS_BY_TITLE_RESPONSE = 44,
+      RELAY_WRITE_BATCH_REQUEST = 45,
+      RELAY_WRITE_BATCH_RESPONSE = 46,
+      RELAY_SUBSCRIBE_REQUEST = 47,
+      RELAY_SUBSCRIBE_RESPONSE = 48;
 
 }
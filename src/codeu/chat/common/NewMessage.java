@@ -0,0 +1,71 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.Wire;
+
+// NEW MESSAGE
+//
+// Everything needed to ask for a message to be added - who wrote it, which
+// conversation it belongs in, and what it says. The server picks the id and
+// the creation time.
+public final class NewMessage {
+
+  public static final BufferSerializer<NewMessage> BUFFER_SERIALIZER = new BufferSerializer<NewMessage>() {
+
+    @Override
+    public void write(ByteBuffer out, NewMessage value, Wire wire) throws IOException {
+
+      Uuid.BUFFER_SERIALIZER.write(out, value.author, wire);
+      Uuid.BUFFER_SERIALIZER.write(out, value.conversation, wire);
+      BufferSerializers.STRING.write(out, value.content, wire);
+
+    }
+
+    @Override
+    public NewMessage read(ByteBuffer in, Wire wire) throws IOException {
+
+      return new NewMessage(
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          BufferSerializers.STRING.read(in, wire)
+      );
+
+    }
+  };
+
+  public static final Serializer<NewMessage> SERIALIZER =
+      Serializers.adapt(BUFFER_SERIALIZER);
+
+  public final Uuid author;
+  public final Uuid conversation;
+  public final String content;
+
+  public NewMessage(Uuid author, Uuid conversation, String content) {
+
+    this.author = author;
+    this.conversation = conversation;
+    this.content = content;
+
+  }
+}
@@ -104,6 +104,35 @@ public interface Relay {
 
   }
 
+  // OUTGOING
+  //
+  // A message that a server wants to write to the relay. It has the same three
+  // parts as a bundle but none of the fields that the relay fills in when it
+  // makes the bundle.
+  interface Outgoing {
+
+    Bundle.Component user();
+
+    Bundle.Component conversation();
+
+    Bundle.Component message();
+
+  }
+
+  // SUBSCRIBER
+  //
+  // Given bundles by "subscribe" as they arrive on the relay.
+  interface Subscriber {
+
+    // ON BUNDLES
+    //
+    // Called with the next bundles in the order that the relay got them. The
+    // collection may be empty, which only means that the relay is still
+    // there. Return false to end the subscription.
+    boolean onBundles(Collection<Bundle> bundles);
+
+  }
+
   // PACK
   //
   // Pack together a uuid, string, and time into a component. This is to make
@@ -123,6 +152,14 @@ public interface Relay {
                 Bundle.Component conversation,
                 Bundle.Component message);
 
+  // WRITE
+  //
+  // Write many messages to the relay at once. The relay adds them in the order
+  // given, the same as if "write" had been called for each one. Returns false
+  // if the team id and team secret were rejected, in which case none of the
+  // messages are written.
+  boolean write(Uuid teamId, Secret teamSecret, Collection<Outgoing> messages);
+
   // READ
   //
   // Read a series of bundles from the relay. Given a Uuid as the starting point
@@ -133,4 +170,20 @@ public interface Relay {
   // was given Uuids.NULL.
   Collection<Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range);
 
+  // SUBSCRIBE
+  //
+  // Get every bundle after "root" and then every new bundle as soon as the
+  // relay has it, without having to ask again. The root is treated the same
+  // as in "read". The first call to the subscriber comes right away, even if
+  // there is nothing new, and after that the relay calls it at least every so
+  // often so that a subscriber can tell that it is still there.
+  //
+  // Blocks until the subscription ends. Returns false if the relay would not
+  // start one - because the team id and secret were rejected or because the
+  // relay does not support subscriptions - in which case the caller should
+  // fall back to "read". Returns true once a subscription that did start has
+  // ended, either because the subscriber returned false or because the
+  // connection to the relay was lost.
+  boolean subscribe(Uuid teamId, Secret teamSecret, Uuid root, Subscriber subscriber);
+
 }
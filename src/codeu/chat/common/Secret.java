@@ -15,14 +15,16 @@
 package codeu.chat.common;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
+import codeu.chat.util.Wire;
 
 public final class Secret {
 
@@ -73,18 +75,20 @@ public final class Secret {
     FROM_HEX.put('f', 0xF);
   }
 
-  public static final Serializer<Secret> SERIALIZER = new Serializer<Secret>() {
+  public static final BufferSerializer<Secret> BUFFER_SERIALIZER = new BufferSerializer<Secret>() {
     @Override
-    public void write(OutputStream out, Secret value) throws IOException {
-      Serializers.BYTES.write(out, value.bytes);
+    public void write(ByteBuffer out, Secret value, Wire wire) throws IOException {
+      BufferSerializers.BYTES.write(out, value.bytes, wire);
     }
 
     @Override
-    public Secret read(InputStream in) throws IOException {
-      return new Secret(Serializers.BYTES.read(in));
+    public Secret read(ByteBuffer in, Wire wire) throws IOException {
+      return new Secret(BufferSerializers.BYTES.read(in, wire));
     }
   };
 
+  public static final Serializer<Secret> SERIALIZER = Serializers.adapt(BUFFER_SERIALIZER);
+
   private final byte[] bytes;
 
   public Secret(byte... bytes) {
@@ -15,39 +15,44 @@
 package codeu.chat.common;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.Wire;
 
 public final class User {
 
-  public static final Serializer<User> SERIALIZER = new Serializer<User>() {
+  public static final BufferSerializer<User> BUFFER_SERIALIZER = new BufferSerializer<User>() {
 
     @Override
-    public void write(OutputStream out, User value) throws IOException {
+    public void write(ByteBuffer out, User value, Wire wire) throws IOException {
 
-      Uuid.SERIALIZER.write(out, value.id);
-      Serializers.STRING.write(out, value.name);
-      Time.SERIALIZER.write(out, value.creation);
+      Uuid.BUFFER_SERIALIZER.write(out, value.id, wire);
+      BufferSerializers.STRING.write(out, value.name, wire);
+      Time.BUFFER_SERIALIZER.write(out, value.creation, wire);
 
     }
 
     @Override
-    public User read(InputStream in) throws IOException {
+    public User read(ByteBuffer in, Wire wire) throws IOException {
 
       return new User(
-          Uuid.SERIALIZER.read(in),
-          Serializers.STRING.read(in),
-          Time.SERIALIZER.read(in)
+          Uuid.BUFFER_SERIALIZER.read(in, wire),
+          BufferSerializers.STRING.read(in, wire),
+          Time.BUFFER_SERIALIZER.read(in, wire)
       );
 
     }
   };
 
+  public static final Serializer<User> SERIALIZER =
+      Serializers.adapt(BUFFER_SERIALIZER);
+
   public final Uuid id;
   public final String name;
   public final Time creation;
@@ -18,11 +18,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Queue;
 
-import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Logger;
@@ -34,6 +31,10 @@ public final class Server implements Relay {
 
   private final static Logger.Log LOG = Logger.newLog(Server.class);
 
+  // How long a subscriber can go without hearing from the relay. When there
+  // is nothing new for this long the subscriber is given an empty collection.
+  private static final long HEARTBEAT_MS = 15000;  // 15 seconds
+
   private static final class Component implements Relay.Bundle.Component {
 
     private final Uuid id;
@@ -102,30 +103,33 @@ public final class Server implements Relay {
 
   }
 
-  private final Queue<Relay.Bundle> history = new LinkedList<>();
   private final Map<Uuid, Secret> teamSecrets = new HashMap<>();
 
-  private final int maxHistory;
   private final int maxRead;
 
-  // Okay, some reasoning behind why I'm using a statically initialized linear
-  // generator for the ids for the relay server.
+  // HISTORY
   //
-  //   Point A : The ids only need to be uniqiue for a single run time of the
-  //             relay. Ids from the relay are only used as a position into its
-  //             history. If it repeats an id its not a problem.
+  // The newest bundles in a ring. Every bundle gets the next number in a
+  // sequence, starting at 1, and the number is both its id and where it sits
+  // in the ring: bundle "n" is at (n - 1) % history.length. Only the last
+  // history.length numbers are kept so the oldest one that can still be read
+  // is newest - history.length + 1.
   //
-  //   Point B : The chance that the history would be so long that an id could
-  //             be reused and appear along side's twin is way too small. The
-  //             range for the ids is 1 to MAX INT (32 bit signed). This means
-  //             that there would need to be 2147483646 messages in memory. If
-  //             each message was 160 bytes long the relay server would need
-  //             over 319 GB of ram.
+  // This lets "read" go straight to the bundle after its root instead of
+  // looking through the whole history for it, so a read only costs as much as
+  // the number of bundles it returns.
   //
-  // As a side note, the ids start at 1 and not 0 to avoid the first id from
-  // matching the NULL id which is defined as (null, 0);
-
- private final Uuid.Generator idGenerator = new LinearUuidGenerator(null, 1, Integer.MAX_VALUE);
+  // The ids only need to be unique for a single run of the relay as they are
+  // only used as positions in its history. The range for the ids is 1 to MAX
+  // INT (32 bit signed) which is far more than would ever be held at once.
+  // The ids start at 1 and not 0 to avoid the first id from matching the NULL
+  // id which is defined as (null, 0).
+  //
+  // Connections are handled at the same time so the history and the team
+  // secrets are only touched while holding the server's lock. Subscribers
+  // wait on the same lock for new bundles.
+  private final Relay.Bundle[] history;
+  private int newest = 0;
 
   // SERVER
   //
@@ -134,7 +138,7 @@ public final class Server implements Relay {
   //   - Keep "maxRead" small enough to avoid any one client from connecting to
   //     the server for too long.
   public Server(int maxHistory, int maxRead) {
-    this.maxHistory = Math.max(0, maxHistory);
+    this.history = new Relay.Bundle[Math.max(0, maxHistory)];
     this.maxRead = Math.max(0, maxRead);
   }
 
@@ -143,7 +147,7 @@ public final class Server implements Relay {
   // Let the relay know of a team's secret so that it will accept messages from that
   // team. If there is already a team entry, the secret will NOT be updated and the
   // call will return false.
-  public boolean addTeam(Uuid id, Secret secret) {
+  public synchronized boolean addTeam(Uuid id, Secret secret) {
 
     LOG.info("Adding team to relay %s", id);
 
@@ -166,7 +170,7 @@ public final class Server implements Relay {
   }
 
   @Override
-  public boolean write(Uuid teamId,
+  public synchronized boolean write(Uuid teamId,
                        Secret teamSecret,
                        Relay.Bundle.Component user,
                        Relay.Bundle.Component conversation,
@@ -181,17 +185,7 @@ public final class Server implements Relay {
           conversation.id(),
           message.id());
 
-      if (history.size() >= maxHistory) {
-         history.remove();
-      }
-
-      return history.offer(new Bundle(
-          idGenerator.make(),
-          Time.now(),
-          teamId,
-          user,
-          conversation,
-          message));
+      return add(teamId, user, conversation, message);
     } else {
 
       LOG.warning(
@@ -206,7 +200,34 @@ public final class Server implements Relay {
   }
 
   @Override
-  public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+  public synchronized boolean write(Uuid teamId, Secret teamSecret, Collection<Relay.Outgoing> messages) {
+
+    if (authenticate(teamId, teamSecret)) {
+
+      LOG.info(
+          "Writing batch to server team=%s size=%d",
+          teamId,
+          messages.size());
+
+      boolean result = true;
+      for (final Relay.Outgoing message : messages) {
+        result &= add(teamId, message.user(), message.conversation(), message.message());
+      }
+      return result;
+
+    } else {
+
+      LOG.warning(
+          "Unauthorized batch write attempt to server team=%s size=%d",
+          teamId,
+          messages.size());
+
+      return false;
+    }
+  }
+
+  @Override
+  public synchronized Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
 
     final Collection<Relay.Bundle> found = new ArrayList<>();
 
@@ -217,19 +238,7 @@ public final class Server implements Relay {
           range,
           maxRead);
 
-      for (final Relay.Bundle message : history) {
-
-        // Only add a message if there is room. We cannot stop
-        // searching in case we see the root later on.
-        if (found.size() < Math.min(range, maxRead)) {
-          found.add(message);
-        }
-
-        // If the start is found, drop all previous messages.
-        if (message.id().equals(root)) {
-          found.clear();
-        }
-      }
+      found.addAll(collect(root, Math.min(range, maxRead)));
 
       LOG.info(
           "Read request complete requested=%d fullfilled=%d",
@@ -246,6 +255,131 @@ public final class Server implements Relay {
     return found;
   }
 
+  @Override
+  public boolean subscribe(Uuid teamId, Secret teamSecret, Uuid root, Relay.Subscriber subscriber) {
+
+    Collection<Relay.Bundle> next;
+
+    synchronized (this) {
+
+      if (!authenticate(teamId, teamSecret)) {
+
+        LOG.info(
+            "Unauthroized attempt to subscribe to server team=%s",
+            teamId);
+
+        return false;
+      }
+
+      next = collect(root, maxRead);
+    }
+
+    LOG.info("Subscription started team=%s", teamId);
+
+    // Each bundle is sent once. A subscriber that falls so far behind that the
+    // bundle it saw last has been overwritten carries on from the oldest
+    // bundle that is still here.
+    Uuid last = root;
+
+    while (next != null && subscriber.onBundles(next)) {
+      for (final Relay.Bundle bundle : next) {
+        last = bundle.id();
+      }
+      next = await(last);
+    }
+
+    LOG.info("Subscription ended team=%s", teamId);
+
+    return true;
+  }
+
+  // AWAIT
+  //
+  // Wait for bundles after "last" to be written. Gives up after HEARTBEAT_MS
+  // and returns nothing so that the subscriber still hears from the relay.
+  // Returns null if the thread was interrupted.
+  private synchronized Collection<Relay.Bundle> await(Uuid last) {
+
+    final long end = System.currentTimeMillis() + HEARTBEAT_MS;
+
+    Collection<Relay.Bundle> found = collect(last, maxRead);
+
+    for (long left = end - System.currentTimeMillis();
+         found.isEmpty() && left > 0;
+         left = end - System.currentTimeMillis()) {
+
+      try {
+        wait(left);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+
+      found = collect(last, maxRead);
+    }
+
+    return found;
+  }
+
+  // COLLECT
+  //
+  // Get up to "limit" bundles after "root", oldest first.
+  private Collection<Relay.Bundle> collect(Uuid root, int limit) {
+
+    final Collection<Relay.Bundle> found = new ArrayList<>();
+
+    for (int next = after(root) + 1; next <= newest && found.size() < limit; next++) {
+      found.add(history[(next - 1) % history.length]);
+    }
+
+    return found;
+  }
+
+  private boolean add(Uuid teamId,
+                      Relay.Bundle.Component user,
+                      Relay.Bundle.Component conversation,
+                      Relay.Bundle.Component message) {
+
+    if (history.length == 0) {
+      return false;
+    }
+
+    if (newest == Integer.MAX_VALUE) {
+      throw new IllegalStateException("Uuid overflow");
+    }
+
+    newest++;
+
+    history[(newest - 1) % history.length] = new Bundle(
+        new Uuid(null, newest),
+        Time.now(),
+        teamId,
+        user,
+        conversation,
+        message);
+
+    // Wake up every subscriber that is waiting for something new.
+    notifyAll();
+
+    return true;
+  }
+
+  // AFTER
+  //
+  // Get the sequence number that a read from "root" should start after. If
+  // the root is not in the history any more, or never was, the read starts
+  // with the oldest bundle that is.
+  private int after(Uuid root) {
+
+    final int oldest = Math.max(1, newest - history.length + 1);
+
+    if (root != null && root.root() == null && root.id() >= oldest && root.id() <= newest) {
+      return root.id();
+    }
+
+    return oldest - 1;
+  }
+
   private boolean authenticate(Uuid id, Secret secret) {
     return id != null && secret != null && secret.equals(teamSecrets.get(id));
   }
@@ -15,33 +15,36 @@
 package codeu.chat.relay;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.Wire;
 import codeu.chat.util.connections.Connection;
 
 public final class ServerFrontEnd {
 
   private final static Logger.Log LOG = Logger.newLog(ServerFrontEnd.class);
 
-  private static final Serializer<Relay.Bundle.Component> COMPONENT_SERIALIZER =
-      new Serializer<Relay.Bundle.Component>() {
+  private static final BufferSerializer<Relay.Bundle.Component> COMPONENT_BUFFER_SERIALIZER =
+      new BufferSerializer<Relay.Bundle.Component>() {
 
     @Override
-    public Relay.Bundle.Component read(InputStream in) throws IOException {
+    public Relay.Bundle.Component read(ByteBuffer in, Wire wire) throws IOException {
 
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final String text = Serializers.STRING.read(in);
-      final Time time = Time.SERIALIZER.read(in);
+      final Uuid id = Uuid.BUFFER_SERIALIZER.read(in, wire);
+      final String text = BufferSerializers.STRING.read(in, wire);
+      final Time time = Time.BUFFER_SERIALIZER.read(in, wire);
 
       // I could have passed the relay and use its "pack" method but that would
       // have been more work than just building an object here.
@@ -56,25 +59,59 @@ public final class ServerFrontEnd {
     }
 
     @Override
-    public void write(OutputStream out, Relay.Bundle.Component value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Serializers.STRING.write(out, value.text());
-      Time.SERIALIZER.write(out, value.time());
+    public void write(ByteBuffer out, Relay.Bundle.Component value, Wire wire) throws IOException {
+      Uuid.BUFFER_SERIALIZER.write(out, value.id(), wire);
+      BufferSerializers.STRING.write(out, value.text(), wire);
+      Time.BUFFER_SERIALIZER.write(out, value.time(), wire);
     }
   };
 
-  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
-      new Serializer<Relay.Bundle>() {
+  private static final Serializer<Relay.Bundle.Component> COMPONENT_SERIALIZER =
+      Serializers.adapt(COMPONENT_BUFFER_SERIALIZER);
+
+  private static final BufferSerializer<Relay.Outgoing> OUTGOING_BUFFER_SERIALIZER =
+      new BufferSerializer<Relay.Outgoing>() {
 
     @Override
-    public Relay.Bundle read(InputStream in) throws IOException {
+    public Relay.Outgoing read(ByteBuffer in, Wire wire) throws IOException {
 
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final Time time = Time.SERIALIZER.read(in);
-      final Uuid team = Uuid.SERIALIZER.read(in);
-      final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
+      final Relay.Bundle.Component user = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
+      final Relay.Bundle.Component conversation = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
+      final Relay.Bundle.Component message = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
+
+      return new Relay.Outgoing() {
+        @Override
+        public Relay.Bundle.Component user() { return user; }
+        @Override
+        public Relay.Bundle.Component conversation() { return conversation; }
+        @Override
+        public Relay.Bundle.Component message() { return message; }
+      };
+    }
+
+    @Override
+    public void write(ByteBuffer out, Relay.Outgoing value, Wire wire) throws IOException {
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.user(), wire);
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.conversation(), wire);
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.message(), wire);
+    }
+  };
+
+  private static final Serializer<Relay.Outgoing> OUTGOING_SERIALIZER =
+      Serializers.adapt(OUTGOING_BUFFER_SERIALIZER);
+
+  private static final BufferSerializer<Relay.Bundle> BUNDLE_BUFFER_SERIALIZER =
+      new BufferSerializer<Relay.Bundle>() {
+
+    @Override
+    public Relay.Bundle read(ByteBuffer in, Wire wire) throws IOException {
+
+      final Uuid id = Uuid.BUFFER_SERIALIZER.read(in, wire);
+      final Time time = Time.BUFFER_SERIALIZER.read(in, wire);
+      final Uuid team = Uuid.BUFFER_SERIALIZER.read(in, wire);
+      final Relay.Bundle.Component user = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
+      final Relay.Bundle.Component conversation = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
+      final Relay.Bundle.Component message = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
 
       return new Relay.Bundle() {
         @Override
@@ -93,16 +130,19 @@ public final class ServerFrontEnd {
     }
 
     @Override
-    public void write(OutputStream out, Relay.Bundle value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Time.SERIALIZER.write(out, value.time());
-      Uuid.SERIALIZER.write(out, value.team());
-      COMPONENT_SERIALIZER.write(out, value.user());
-      COMPONENT_SERIALIZER.write(out, value.conversation());
-      COMPONENT_SERIALIZER.write(out, value.message());
+    public void write(ByteBuffer out, Relay.Bundle value, Wire wire) throws IOException {
+      Uuid.BUFFER_SERIALIZER.write(out, value.id(), wire);
+      Time.BUFFER_SERIALIZER.write(out, value.time(), wire);
+      Uuid.BUFFER_SERIALIZER.write(out, value.team(), wire);
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.user(), wire);
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.conversation(), wire);
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.message(), wire);
     }
   };
 
+  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
+      Serializers.adapt(BUNDLE_BUFFER_SERIALIZER);
+
   private final Relay backEnd;
 
   public ServerFrontEnd(Relay backEnd) {
@@ -116,6 +156,8 @@ public final class ServerFrontEnd {
     switch (Serializers.INTEGER.read(connection.in())) {
       case NetworkCode.RELAY_READ_REQUEST: handleReadMessage(connection); break;
       case NetworkCode.RELAY_WRITE_REQUEST: handleWriteMessage(connection); break;
+      case NetworkCode.RELAY_WRITE_BATCH_REQUEST: handleWriteBatch(connection); break;
+      case NetworkCode.RELAY_SUBSCRIBE_REQUEST: handleSubscribe(connection); break;
     }
 
     LOG.info("Handling Connection - end");
@@ -176,4 +218,80 @@ public final class ServerFrontEnd {
 
     LOG.info("Handling Write Message - end");
   }
+
+  private void handleWriteBatch(Connection connection) throws IOException {
+
+    LOG.info("Handling Write Batch - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final Collection<Relay.Outgoing> messages =
+        Serializers.collection(OUTGOING_SERIALIZER).read(connection.in());
+
+    LOG.info(
+        "Writing batch team=%s size=%d",
+        teamId,
+        messages.size());
+
+    final boolean result = backEnd.write(teamId, teamSecret, messages);
+
+    LOG.info("Writing batch result=%s", result ? "success" : "fail");
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_BATCH_RESPONSE);
+    Serializers.BOOLEAN.write(connection.out(), result);
+
+    LOG.info("Handling Write Batch - end");
+  }
+
+  // HANDLE SUBSCRIBE
+  //
+  // Answers with RELAY_SUBSCRIBE_RESPONSE and whether the subscription was
+  // accepted. If it was, the connection stays open and every group of bundles
+  // that the back end gives the subscriber is written and flushed right away
+  // as a collection of bundles. Returns once the back end ends the
+  // subscription or a write fails because the server went away.
+  private void handleSubscribe(final Connection connection) throws IOException {
+
+    LOG.info("Handling Subscribe - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final Uuid root = Uuid.SERIALIZER.read(connection.in());
+
+    LOG.info(
+        "Subscribing team=%s root=%s",
+        teamId,
+        root);
+
+    final OutputStream out = connection.out();
+
+    final boolean result = backEnd.subscribe(teamId, teamSecret, root, new Relay.Subscriber() {
+
+      private boolean accepted = false;
+
+      @Override
+      public boolean onBundles(Collection<Relay.Bundle> bundles) {
+        try {
+          if (!accepted) {
+            Serializers.INTEGER.write(out, NetworkCode.RELAY_SUBSCRIBE_RESPONSE);
+            Serializers.BOOLEAN.write(out, true);
+            accepted = true;
+          }
+          Serializers.collection(BUNDLE_SERIALIZER).write(out, bundles);
+          out.flush();
+          return true;
+        } catch (IOException ex) {
+          LOG.info("Subscriber went away team=%s", teamId);
+          return false;
+        }
+      }
+    });
+
+    if (!result) {
+      Serializers.INTEGER.write(out, NetworkCode.RELAY_SUBSCRIBE_RESPONSE);
+      Serializers.BOOLEAN.write(out, false);
+    }
+
+    LOG.info("Handling Subscribe - end");
+  }
 }
@@ -0,0 +1,55 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// WORKERS
+//
+// The threads that the relay handles its connections on. There are never
+// more than a fixed number of them. A subscriber holds on to its thread for
+// as long as it is subscribed, so the limit leaves room for every team to
+// subscribe along with the reads and writes around them. Connections that
+// come in while every thread is busy wait in a queue of fixed size. Once that
+// is full, "execute" throws RejectedExecutionException and the connection
+// should be closed.
+public final class Workers {
+
+  public static final int THREADS = 256;
+  public static final int QUEUED = 1024;
+
+  // How long a thread can sit idle before it is let go.
+  private static final long IDLE_MS = 60 * 1000;  // 1 minute
+
+  private Workers() { }
+
+  public static ExecutorService bounded() {
+    return bounded(THREADS, QUEUED);
+  }
+
+  public static ExecutorService bounded(int threads, int queued) {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threads,
+        threads,
+        IDLE_MS,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queued));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+}
@@ -14,12 +14,17 @@
 
 package codeu.chat.server;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import codeu.chat.common.BasicController;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ConversationPayload;
 import codeu.chat.common.Message;
+import codeu.chat.common.NewMessage;
 import codeu.chat.common.RandomUuidGenerator;
 import codeu.chat.common.RawController;
 import codeu.chat.common.User;
@@ -33,10 +38,22 @@ public final class Controller implements RawController, BasicController {
 
   private final Model model;
   private final Uuid.Generator uuidGenerator;
+  private final WriteAheadLog log;
 
   public Controller(Uuid serverId, Model model) {
+    this(serverId, model, null);
+  }
+
+  // CONTROLLER
+  //
+  // Every change that is made is also added to "log", if there is one. The
+  // change is not safe on disk until the log has been synced. Changes are
+  // added to the log before the model so that a log that has failed refuses
+  // them before anything is changed.
+  public Controller(Uuid serverId, Model model, WriteAheadLog log) {
     this.model = model;
     this.uuidGenerator = new RandomUuidGenerator(serverId, System.currentTimeMillis());
+    this.log = log;
   }
 
   @Override
@@ -44,6 +61,100 @@ public final class Controller implements RawController, BasicController {
     return newMessage(createId(), author, conversation, body, Time.now());
   }
 
+  @Override
+  public Collection<Message> newMessages(Collection<NewMessage> messages) {
+
+    // Messages for the same conversation are linked to each other before any
+    // of them are added, as nothing can be changed once it is in the model.
+    // Each conversation and the message that was last before the batch are
+    // only updated once at the end.
+    final Map<Uuid, Appended> appended = new HashMap<>();
+    final List<Planned> planned = new ArrayList<>(messages.size());
+
+    for (final NewMessage request : messages) {
+
+      Appended conversation = appended.get(request.conversation);
+
+      if (conversation == null) {
+        final ConversationPayload found = model.conversationPayloadById().first(request.conversation);
+        if (found != null) {
+          conversation = new Appended(found);
+          appended.put(request.conversation, conversation);
+        }
+      }
+
+      Planned plan = null;
+
+      if (conversation != null && model.userById().first(request.author) != null) {
+
+        plan = new Planned(request, createId());
+
+        if (conversation.first == null) {
+          conversation.first = plan;
+          plan.previous = conversation.payload.lastMessage;
+        } else {
+          conversation.last.next = plan.id;
+          plan.previous = conversation.last.id;
+        }
+        conversation.last = plan;
+      }
+
+      planned.add(plan);
+    }
+
+    final List<Message> added = new ArrayList<>(messages.size());
+    int count = 0;
+
+    // Every message is logged before any of them is added so that a failed
+    // log turns down the whole batch.
+    for (final Planned plan : planned) {
+
+      Message message = null;
+
+      if (plan != null) {
+        message = new Message(plan.id, plan.next, plan.previous, Time.now(), plan.request.author, plan.request.content);
+        if (log != null) {
+          log.message(plan.request.conversation, message);
+        }
+        count++;
+      }
+
+      added.add(message);
+    }
+
+    for (int i = 0; i < planned.size(); i++) {
+      if (planned.get(i) != null) {
+        model.add(planned.get(i).request.conversation, added.get(i));
+      }
+    }
+
+    // Commit before anything points to the new messages so that a read which
+    // follows the conversation to its new last message finds it.
+    model.commit();
+
+    for (final Appended conversation : appended.values()) {
+
+      if (conversation.first == null) {
+        continue;
+      }
+
+      final ConversationPayload payload = conversation.payload;
+
+      if (!Uuid.equals(payload.lastMessage, Uuid.NULL)) {
+        link(model.messageById().first(payload.lastMessage), conversation.first.id);
+      }
+
+      model.update(new ConversationPayload(
+          payload.id,
+          Uuid.equals(payload.firstMessage, Uuid.NULL) ? conversation.first.id : payload.firstMessage,
+          conversation.last.id));
+    }
+
+    LOG.info("Messages added: %d of %d", count, messages.size());
+
+    return added;
+  }
+
   @Override
   public User newUser(String name) {
     return newUser(createId(), name, Time.now());
@@ -64,10 +175,17 @@ public final class Controller implements RawController, BasicController {
 
     if (foundUser != null && foundConversation != null && isIdFree(id)) {
 
-      message = new Message(id, Uuid.NULL, Uuid.NULL, creationTime, author, body);
-      model.add(message);
+      message = new Message(id, Uuid.NULL, foundConversation.lastMessage, creationTime, author, body);
+      if (log != null) {
+        log.message(conversation, message);
+      }
+      model.add(conversation, message);
       LOG.info("Message added: %s", message.id);
 
+      // Commit before anything points to the new message so that a read which
+      // follows the conversation to its new last message finds it.
+      model.commit();
+
       // Find and update the previous "last" message so that it's "next" value
       // will point to the new message.
 
@@ -78,22 +196,19 @@ public final class Controller implements RawController, BasicController {
         // to update the last message's "next" value.
 
       } else {
-        final Message lastMessage = model.messageById().first(foundConversation.lastMessage);
-        lastMessage.next = message.id;
+        link(model.messageById().first(foundConversation.lastMessage), message.id);
       }
 
       // If the first message points to NULL it means that the conversation was empty and that
       // the first message should be set to the new message. Otherwise the message should
-      // not change.
+      // not change. Either way the conversation now points to the new last message.
 
-      foundConversation.firstMessage =
+      model.update(new ConversationPayload(
+          foundConversation.id,
           Uuid.equals(foundConversation.firstMessage, Uuid.NULL) ?
-          message.id :
-          foundConversation.firstMessage;
-
-      // Update the conversation to point to the new last message as it has changed.
-
-      foundConversation.lastMessage = message.id;
+              message.id :
+              foundConversation.firstMessage,
+          message.id));
     }
 
     return message;
@@ -107,7 +222,11 @@ public final class Controller implements RawController, BasicController {
     if (isIdFree(id)) {
 
       user = new User(id, name, creationTime);
+      if (log != null) {
+        log.user(user);
+      }
       model.add(user);
+      model.commit();
 
       LOG.info(
           "newUser success (user.id=%s user.name=%s user.time=%s)",
@@ -136,7 +255,11 @@ public final class Controller implements RawController, BasicController {
 
     if (foundOwner != null && isIdFree(id)) {
       conversation = new ConversationHeader(id, owner, creationTime, title);
+      if (log != null) {
+        log.conversation(conversation);
+      }
       model.add(conversation);
+      model.commit();
       LOG.info("Conversation added: " + id);
     }
 
@@ -168,4 +291,47 @@ public final class Controller implements RawController, BasicController {
 
   private boolean isIdFree(Uuid id) { return !isIdInUse(id); }
 
+  // LINK
+  //
+  // Replace a message in the model with a copy of it that points to "next".
+  private void link(Message message, Uuid next) {
+    model.update(new Message(
+        message.id,
+        next,
+        message.previous,
+        message.creation,
+        message.author,
+        message.content));
+  }
+
+  // APPENDED
+  //
+  // The messages that one call to "newMessages" will add to a conversation.
+  private static final class Appended {
+
+    public final ConversationPayload payload;
+    public Planned first = null;
+    public Planned last = null;
+
+    public Appended(ConversationPayload payload) {
+      this.payload = payload;
+    }
+  }
+
+  // PLANNED
+  //
+  // A message that one call to "newMessages" will add, before it is built.
+  private static final class Planned {
+
+    public final NewMessage request;
+    public final Uuid id;
+    public Uuid previous = Uuid.NULL;
+    public Uuid next = Uuid.NULL;
+
+    public Planned(NewMessage request, Uuid id) {
+      this.request = request;
+      this.id = id;
+    }
+  }
+
 }
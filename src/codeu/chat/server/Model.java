@@ -14,35 +14,77 @@
 
 package codeu.chat.server;
 
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ConversationPayload;
 import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Message;
 import codeu.chat.common.User;
+import codeu.chat.util.Logger;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
-import codeu.chat.util.store.Store;
+import codeu.chat.util.store.ChunkedLog;
+import codeu.chat.util.store.ConcurrentStore;
+import codeu.chat.util.store.HashStore;
+import codeu.chat.util.store.HashStoreAccessor;
+import codeu.chat.util.store.InvertedIndex;
+import codeu.chat.util.store.LogAccessor;
+import codeu.chat.util.store.PrefixTrie;
 import codeu.chat.util.store.StoreAccessor;
 
+// MODEL
+//
+// All the data that the server holds. Adding users and conversations, or
+// anything else that can touch more than one conversation, must hold the
+// write lock and so happens one at a time. Adding messages to a conversation
+// only needs the append lock and that conversation's own lock, so messages
+// are added to many conversations at once while each conversation still has
+// one writer.
+//
+// Values are never changed once they are in the model; a change puts a new
+// copy in place of the old one. Because of that the by-id indexes, the
+// ordered indexes and the message logs can all be read without any lock
+// while writers work. The word and name indexes can't, so reading those needs
+// the read lock, which keeps out changes to those indexes only.
+//
+// Every change is finished with a "commit", which moves the model to its next
+// version. A snapshot pins one version and sees each conversation's messages
+// exactly as they were when that version was committed, no matter what has
+// been added since. Pinning while holding the write lock gives a version that
+// every change has been committed up to. A snapshot taken without it can
+// show a conversation's newest messages a moment before their own change is
+// committed, if a change to another conversation was committed first.
+//
+// Everything is found by id far more often than any other way, so the by-id
+// indexes are hash stores. Only the indexes that are read in order are
+// ordered stores.
+//
+// Each conversation's messages are also kept in a log, in the order they were
+// added, so that a message can be found by its position in the conversation
+// without following Message.next from the start. Messages are found by the
+// words in them, not by their whole text, and users and conversations are
+// found by their name or title, or by the start of it.
+//
+// Everything other than the by-id indexes and the logs is a secondary index.
+// When the model is loaded from a snapshot the secondary indexes are rebuilt
+// in the background. Anything that reads them must call "awaitSecondary"
+// first, before taking the read lock.
 public final class Model {
 
-  private static final Comparator<Uuid> UUID_COMPARE = new Comparator<Uuid>() {
-
-    @Override
-    public int compare(Uuid a, Uuid b) {
-
-      if (a == b) { return 0; }
-
-      if (a == null && b != null) { return -1; }
-
-      if (a != null && b == null) { return 1; }
-
-      final int order = Integer.compare(a.id(), b.id());
-      return order == 0 ? compare(a.root(), b.root()) : order;
-    }
-  };
+  private final static Logger.Log LOG = Logger.newLog(Model.class);
 
   private static final Comparator<Time> TIME_COMPARE = new Comparator<Time>() {
     @Override
@@ -51,78 +93,475 @@ public final class Model {
     }
   };
 
-  private static final Comparator<String> STRING_COMPARE = String.CASE_INSENSITIVE_ORDER;
+  private final HashStore<Uuid, User> userById = new HashStore<>();
+
+  private final HashStore<Uuid, ConversationHeader> conversationById = new HashStore<>();
+
+  private final HashStore<Uuid, ConversationPayload> conversationPayloadById = new HashStore<>();
+
+  private final HashStore<Uuid, ChunkedLog<Message>> messagesByConversation = new HashStore<>();
+  private final HashStore<Uuid, Lock> lockByConversation = new HashStore<>();
+
+  private final HashStore<Uuid, Message> messageById = new HashStore<>();
+  private final HashStore<Uuid, Integer> messagePositionById = new HashStore<>();
+
+  private volatile Secondary secondary = new Secondary();
 
-  private final Store<Uuid, User> userById = new Store<>(UUID_COMPARE);
-  private final Store<Time, User> userByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, User> userByText = new Store<>(STRING_COMPARE);
+  // While the secondary indexes are being rebuilt, changes that would have
+  // gone into them wait here instead. Guarded by the index lock.
+  private List<Object> backlog = null;
+  private volatile CountDownLatch secondaryReady = new CountDownLatch(0);
 
-  private final Store<Uuid, ConversationHeader> conversationById = new Store<>(UUID_COMPARE);
-  private final Store<Time, ConversationHeader> conversationByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, ConversationHeader> conversationByText = new Store<>(STRING_COMPARE);
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
-  private final Store<Uuid, ConversationPayload> conversationPayloadById = new Store<>(UUID_COMPARE);
+  // Guards the secondary indexes that can't be read while they are written.
+  // Only ever taken last, after any other lock.
+  private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
 
-  private final Store<Uuid, Message> messageById = new Store<>(UUID_COMPARE);
-  private final Store<Time, Message> messageByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, Message> messageByText = new Store<>(STRING_COMPARE);
+  private final AtomicLong version = new AtomicLong(0);
+
+  // READ LOCK
+  //
+  // Held while reading the word and name indexes.
+  public Lock readLock() {
+    return indexLock.readLock();
+  }
+
+  // WRITE LOCK
+  //
+  // Held while making any change other than adding messages. Nothing else
+  // changes the model while it is held.
+  public Lock writeLock() {
+    return lock.writeLock();
+  }
+
+  // APPEND LOCK
+  //
+  // Held, along with the lock of each conversation that is added to, while
+  // adding messages. Any number of threads can hold it at once.
+  public Lock appendLock() {
+    return lock.readLock();
+  }
+
+  // CONVERSATION LOCK
+  //
+  // The lock that keeps a conversation to one writer. Must be taken after the
+  // append lock. A conversation that is not in the model can't be added while
+  // the append lock is held, so nothing can be added to it and a lock that no
+  // one else has is given back.
+  public Lock conversationLock(Uuid conversation) {
+    final Lock found = lockByConversation.first(conversation);
+    return found == null ? new ReentrantLock() : found;
+  }
+
+  // VERSION
+  //
+  // The version of the last change that was committed.
+  public long version() {
+    return version.get();
+  }
+
+  // COMMIT
+  //
+  // Finish a change. Snapshots taken after this see everything that was added
+  // since the last commit and snapshots taken before it see none of it.
+  public void commit() {
+    version.incrementAndGet();
+  }
+
+  // SNAPSHOT
+  //
+  // Pin the model at the last committed version.
+  public Snapshot snapshot() {
+    return new Snapshot(version.get());
+  }
 
   public void add(User user) {
     userById.insert(user.id, user);
-    userByTime.insert(user.creation, user);
-    userByText.insert(user.name, user);
+    addSecondary(user);
   }
 
-  public StoreAccessor<Uuid, User> userById() {
+  public HashStoreAccessor<Uuid, User> userById() {
     return userById;
   }
 
   public StoreAccessor<Time, User> userByTime() {
-    return userByTime;
+    return secondary.userByTime;
   }
 
-  public StoreAccessor<String, User> userByText() {
-    return userByText;
+  public PrefixTrie<User> userByName() {
+    return secondary.userByName;
   }
 
   public void add(ConversationHeader conversation) {
     conversationById.insert(conversation.id, conversation);
-    conversationByTime.insert(conversation.creation, conversation);
-    conversationByText.insert(conversation.title, conversation);
     conversationPayloadById.insert(conversation.id, new ConversationPayload(conversation.id));
+    messagesByConversation.insert(conversation.id, new ChunkedLog<Message>());
+    lockByConversation.insert(conversation.id, new ReentrantLock());
+    addSecondary(conversation);
   }
 
-  public StoreAccessor<Uuid, ConversationHeader> conversationById() {
+  public HashStoreAccessor<Uuid, ConversationHeader> conversationById() {
     return conversationById;
   }
 
   public StoreAccessor<Time, ConversationHeader> conversationByTime() {
-    return conversationByTime;
+    return secondary.conversationByTime;
   }
 
-  public StoreAccessor<String, ConversationHeader> conversationByText() {
-    return conversationByText;
+  public PrefixTrie<ConversationHeader> conversationByTitle() {
+    return secondary.conversationByTitle;
   }
 
-  public StoreAccessor<Uuid, ConversationPayload> conversationPayloadById() {
+  public HashStoreAccessor<Uuid, ConversationPayload> conversationPayloadById() {
     return conversationPayloadById;
   }
 
-  public void add(Message message) {
+  // UPDATE
+  //
+  // Put a new copy of a conversation's payload in place of the old one.
+  public void update(ConversationPayload payload) {
+    conversationPayloadById.replace(payload.id, payload);
+  }
+
+  // ADD
+  //
+  // Add a message to the end of a conversation. The conversation must already
+  // be in the model. Linking the message to the one before it is left to the
+  // caller. The message can be found by id before it shows up in the log.
+  public void add(Uuid conversation, Message message) {
+    final ChunkedLog<Message> log = messagesByConversation.first(conversation);
     messageById.insert(message.id, message);
-    messageByTime.insert(message.creation, message);
-    messageByText.insert(message.content, message);
+    messagePositionById.insert(message.id, log.size());
+    log.append(message, version.get() + 1);
+    addSecondary(new Placed(conversation, message));
+  }
+
+  // UPDATE
+  //
+  // Put a new copy of a message in place of the old one. Only the copy found
+  // by id changes; the other indexes and the conversation's log keep the copy
+  // that was added.
+  public void update(Message message) {
+    messageById.replace(message.id, message);
   }
 
-  public StoreAccessor<Uuid, Message> messageById() {
+  // MESSAGES IN
+  //
+  // All the messages in a conversation in the order they were added, or null
+  // if there is no such conversation. This includes messages whose change has
+  // not been committed yet.
+  public LogAccessor<Message> messagesIn(Uuid conversation) {
+    return messagesByConversation.first(conversation);
+  }
+
+  // MESSAGE POSITION BY ID
+  //
+  // Where each message is in the log of the conversation that it is in.
+  public HashStoreAccessor<Uuid, Integer> messagePositionById() {
+    return messagePositionById;
+  }
+
+  public HashStoreAccessor<Uuid, Message> messageById() {
     return messageById;
   }
 
   public StoreAccessor<Time, Message> messageByTime() {
-    return messageByTime;
+    return secondary.messageByTime;
+  }
+
+  // MESSAGE BY WORD
+  //
+  // Searches the words in every message, either across all conversations or
+  // within one.
+  public InvertedIndex<Uuid, Message> messageByWord() {
+    return secondary.messageByWord;
   }
 
-  public StoreAccessor<String, Message> messageByText() {
-    return messageByText;
+  // AWAIT SECONDARY
+  //
+  // Wait until the secondary indexes hold everything in the model. Must not
+  // be called while holding either lock.
+  public void awaitSecondary() throws InterruptedException {
+    secondaryReady.await();
+  }
+
+  // LOAD
+  //
+  // Fill an empty model with the contents of a snapshot. "messages" holds the
+  // messages of each of "conversations", in order and already linked to each
+  // other. The by-id indexes and the logs are built in parallel on "pool" and
+  // are ready when this returns. The secondary indexes are then rebuilt on
+  // "pool" in the background; anything added in the meantime is added to them
+  // once they are done.
+  public void load(final List<User> users,
+                   final List<ConversationHeader> conversations,
+                   final List<Message[]> messages,
+                   final ForkJoinPool pool) {
+
+    final List<ChunkedLog<Message>> logs = new ArrayList<>(conversations.size());
+
+    for (int i = 0; i < conversations.size(); i++) {
+      final ChunkedLog<Message> log = new ChunkedLog<>();
+      messagesByConversation.insert(conversations.get(i).id, log);
+      lockByConversation.insert(conversations.get(i).id, new ReentrantLock());
+      logs.add(log);
+    }
+
+    final long loaded = version.get() + 1;
+    final List<Callable<Void>> tasks = new ArrayList<>();
+
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() {
+        for (final User user : users) {
+          userById.insert(user.id, user);
+        }
+        return null;
+      }
+    });
+
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() {
+        for (int i = 0; i < conversations.size(); i++) {
+          final ConversationHeader conversation = conversations.get(i);
+          final Message[] inConversation = messages.get(i);
+          conversationById.insert(conversation.id, conversation);
+          conversationPayloadById.insert(conversation.id, inConversation.length == 0 ?
+              new ConversationPayload(conversation.id) :
+              new ConversationPayload(conversation.id,
+                                      inConversation[0].id,
+                                      inConversation[inConversation.length - 1].id));
+        }
+        return null;
+      }
+    });
+
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() {
+        for (final Message[] inConversation : messages) {
+          for (final Message message : inConversation) {
+            messageById.insert(message.id, message);
+          }
+        }
+        return null;
+      }
+    });
+
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() {
+        for (final Message[] inConversation : messages) {
+          for (int i = 0; i < inConversation.length; i++) {
+            messagePositionById.insert(inConversation[i].id, i);
+          }
+        }
+        return null;
+      }
+    });
+
+    // Each log has its own writer so they can all be filled at once.
+    for (int i = 0; i < conversations.size(); i++) {
+      final ChunkedLog<Message> log = logs.get(i);
+      final Message[] inConversation = messages.get(i);
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          for (final Message message : inConversation) {
+            log.append(message, loaded);
+          }
+          return null;
+        }
+      });
+    }
+
+    for (final Future<Void> task : pool.invokeAll(tasks)) {
+      join(task);
+    }
+
+    commit();
+
+    backlog = new ArrayList<>();
+    secondaryReady = new CountDownLatch(1);
+
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        rebuildSecondary(users, conversations, messages, pool);
+      }
+    });
+  }
+
+  private void rebuildSecondary(final List<User> users,
+                                final List<ConversationHeader> conversations,
+                                final List<Message[]> messages,
+                                final ForkJoinPool pool) {
+
+    final Secondary built = new Secondary();
+    final List<Callable<Void>> tasks = new ArrayList<>();
+
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() {
+        for (final User user : users) {
+          built.userByTime.insert(user.creation, user);
+          built.userByName.insert(user.name, user);
+        }
+        return null;
+      }
+    });
+
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() {
+        for (final ConversationHeader conversation : conversations) {
+          built.conversationByTime.insert(conversation.creation, conversation);
+          built.conversationByTitle.insert(conversation.title, conversation);
+        }
+        return null;
+      }
+    });
+
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() {
+        for (final Message[] inConversation : messages) {
+          for (final Message message : inConversation) {
+            built.messageByTime.insert(message.creation, message);
+          }
+        }
+        return null;
+      }
+    });
+
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() {
+        for (int i = 0; i < conversations.size(); i++) {
+          for (final Message message : messages.get(i)) {
+            built.messageByWord.add(conversations.get(i).id, message.content, message);
+          }
+        }
+        return null;
+      }
+    });
+
+    try {
+      for (final Future<Void> task : pool.invokeAll(tasks)) {
+        join(task);
+      }
+    } finally {
+      final Lock lock = indexLock.writeLock();
+      lock.lock();
+      try {
+        for (final Object value : backlog) {
+          built.add(value);
+        }
+        backlog = null;
+        secondary = built;
+      } finally {
+        lock.unlock();
+      }
+      secondaryReady.countDown();
+    }
+
+    LOG.info("Secondary indexes rebuilt.");
+  }
+
+  private void addSecondary(Object value) {
+    final Lock lock = indexLock.writeLock();
+    lock.lock();
+    try {
+      if (backlog == null) {
+        secondary.add(value);
+      } else {
+        backlog.add(value);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static void join(Future<Void> task) {
+    try {
+      task.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(ex);
+    } catch (ExecutionException ex) {
+      throw new IllegalStateException(ex.getCause());
+    }
+  }
+
+  // PLACED
+  //
+  // A message and the conversation it was added to.
+  private static final class Placed {
+
+    public final Uuid conversation;
+    public final Message message;
+
+    public Placed(Uuid conversation, Message message) {
+      this.conversation = conversation;
+      this.message = message;
+    }
+  }
+
+  // SECONDARY
+  //
+  // The indexes that can be rebuilt from the by-id indexes.
+  private static final class Secondary {
+
+    public final ConcurrentStore<Time, User> userByTime = new ConcurrentStore<>(TIME_COMPARE);
+    public final PrefixTrie<User> userByName = new PrefixTrie<>();
+
+    public final ConcurrentStore<Time, ConversationHeader> conversationByTime = new ConcurrentStore<>(TIME_COMPARE);
+    public final PrefixTrie<ConversationHeader> conversationByTitle = new PrefixTrie<>();
+
+    public final ConcurrentStore<Time, Message> messageByTime = new ConcurrentStore<>(TIME_COMPARE);
+    public final InvertedIndex<Uuid, Message> messageByWord = new InvertedIndex<>();
+
+    public void add(Object value) {
+      if (value instanceof User) {
+        final User user = (User) value;
+        userByTime.insert(user.creation, user);
+        userByName.insert(user.name, user);
+      } else if (value instanceof ConversationHeader) {
+        final ConversationHeader conversation = (ConversationHeader) value;
+        conversationByTime.insert(conversation.creation, conversation);
+        conversationByTitle.insert(conversation.title, conversation);
+      } else {
+        final Placed placed = (Placed) value;
+        messageByTime.insert(placed.message.creation, placed.message);
+        messageByWord.add(placed.conversation, placed.message.content, placed.message);
+      }
+    }
+  }
+
+  // SNAPSHOT
+  //
+  // The model as it was at one version.
+  public final class Snapshot {
+
+    private final long version;
+
+    private Snapshot(long version) {
+      this.version = version;
+    }
+
+    public long version() {
+      return version;
+    }
+
+    // MESSAGES IN
+    //
+    // The messages that were in a conversation at this version, or null if
+    // there is no such conversation.
+    public LogAccessor<Message> messagesIn(Uuid conversation) {
+      final ChunkedLog<Message> log = messagesByConversation.first(conversation);
+      return log == null ? null : log.asOf(version);
+    }
   }
 }
@@ -56,6 +56,14 @@ public final class NoOpRelay implements Relay {
     return true;
   }
 
+  @Override
+  public boolean write(Uuid teamId,
+                       Secret teamSecret,
+                       Collection<Relay.Outgoing> messages) {
+
+    return true;
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId,
                                        Secret teamSecret,
@@ -64,4 +72,14 @@ public final class NoOpRelay implements Relay {
 
     return new ArrayList<Relay.Bundle>();
   }
+
+  @Override
+  public boolean subscribe(Uuid teamId,
+                           Secret teamSecret,
+                           Uuid root,
+                           Relay.Subscriber subscriber) {
+
+    // Send the server back to "read", which never has anything to give.
+    return false;
+  }
 }
@@ -0,0 +1,324 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.common.User;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Uuid;
+
+// RELAY LINK
+//
+// Everything that a server sends to and reads from its relay. Talking to the
+// relay means waiting on the network so none of it is done on the threads
+// that answer clients or on the shards that add messages. Instead the link
+// has three threads of its own:
+//
+//   - The sender takes messages out of the outbox and writes them to the
+//     relay in batches, in the order they were put in. Once it has one
+//     message it waits a few milliseconds for more so that a burst of new
+//     messages goes out over one connection instead of one each.
+//
+//   - The receiver subscribes to the relay so that new bundles are pushed
+//     to it as soon as the relay has them, and puts them in the inbox. If
+//     the relay will not take a subscription, or one ends, it reads from the
+//     relay instead. When a read comes back full it reads again right away,
+//     otherwise it waits before asking again.
+//
+//   - The applier takes bundles out of the inbox and hands them to the
+//     listener, which adds them to the model.
+//
+// A slow relay only slows down the sender or the receiver. Both queues are
+// bounded. When the outbox is full new messages are dropped rather than
+// holding up the shard that added them. When the inbox is full the receiver
+// waits for the applier to catch up.
+final class RelayLink {
+
+  private final static Logger.Log LOG = Logger.newLog(RelayLink.class);
+
+  private static final int OUTBOX_CAPACITY = 10000;
+  private static final int INBOX_CAPACITY = 1024;
+
+  // The most bundles asked for in one read.
+  private static final int READ_RANGE = 32;
+
+  // The most messages written in one batch and how long to wait for a batch
+  // to fill once it has its first message.
+  private static final int BATCH_SIZE = 256;
+  private static final long BATCH_WAIT_MS = 5;
+
+  // How long to keep reading before asking again for a subscription that the
+  // relay turned down.
+  private static final long SUBSCRIBE_RETRY_MS = 60 * 1000;  // 1 minute
+
+  // LISTENER
+  //
+  // Called on the applier with every bundle that was waiting in the inbox, in
+  // the order that the relay gave them.
+  public interface Listener {
+    void onBundles(Collection<Relay.Bundle> bundles);
+  }
+
+  // OUTGOING
+  //
+  // A message waiting to be sent. Users, conversations, and messages do not
+  // change once made so they are packed as soon as they are put in the outbox.
+  private static final class Outgoing implements Relay.Outgoing {
+
+    private final Relay.Bundle.Component user;
+    private final Relay.Bundle.Component conversation;
+    private final Relay.Bundle.Component message;
+
+    public Outgoing(Relay.Bundle.Component user,
+                    Relay.Bundle.Component conversation,
+                    Relay.Bundle.Component message) {
+      this.user = user;
+      this.conversation = conversation;
+      this.message = message;
+    }
+
+    @Override
+    public Relay.Bundle.Component user() { return user; }
+
+    @Override
+    public Relay.Bundle.Component conversation() { return conversation; }
+
+    @Override
+    public Relay.Bundle.Component message() { return message; }
+  }
+
+  private final Uuid id;
+  private final Secret secret;
+  private final Relay relay;
+  private final int refreshMs;
+  private final Listener listener;
+
+  private final BlockingQueue<Relay.Outgoing> outbox = new ArrayBlockingQueue<>(OUTBOX_CAPACITY);
+  private final BlockingQueue<Relay.Bundle> inbox = new ArrayBlockingQueue<>(INBOX_CAPACITY);
+
+  private volatile boolean running = true;
+
+  // Only used by the receiver.
+  private Uuid lastSeen = Uuid.NULL;
+
+  private final Thread sender = new Thread() {
+    @Override
+    public void run() {
+      while (running) {
+        final List<Relay.Outgoing> batch = new ArrayList<>();
+        try {
+          fill(batch);
+        } catch (InterruptedException ex) {
+          continue;
+        }
+        try {
+          if (!relay.write(id, secret, batch)) {
+            LOG.warning("Relay did not accept %d messages.", batch.size());
+          }
+        } catch (Exception ex) {
+          LOG.error(ex, "Failed to send messages to relay.");
+        }
+      }
+    }
+  };
+
+  private final Thread receiver = new Thread() {
+    @Override
+    public void run() {
+
+      // When to next try to subscribe. Pushed back whenever the relay turns
+      // a subscription down so that an older relay is only asked now and then.
+      long subscribeAt = 0;
+
+      while (running) {
+        try {
+
+          if (System.currentTimeMillis() >= subscribeAt) {
+
+            LOG.verbose("Subscribing to relay...");
+
+            if (!relay.subscribe(id, secret, lastSeen, subscriber)) {
+              LOG.info("Relay did not take subscription, reading instead.");
+              subscribeAt = System.currentTimeMillis() + SUBSCRIBE_RETRY_MS;
+            }
+          }
+
+          // Either there is no subscription or the last one just ended. One
+          // read picks up anything that was missed and waits a little before
+          // trying to subscribe again.
+          if (running) {
+            poll();
+          }
+
+        } catch (InterruptedException ex) {
+
+          // Only interrupted by "stop".
+
+        } catch (Exception ex) {
+
+          LOG.error(ex, "Failed to read update from relay.");
+
+          try {
+            Thread.sleep(refreshMs);
+          } catch (InterruptedException stopped) { }
+        }
+      }
+    }
+  };
+
+  private final Relay.Subscriber subscriber = new Relay.Subscriber() {
+    @Override
+    public boolean onBundles(Collection<Relay.Bundle> bundles) {
+      try {
+        receive(bundles);
+        return running;
+      } catch (InterruptedException ex) {
+        return false;
+      }
+    }
+  };
+
+  private final Thread applier = new Thread() {
+    @Override
+    public void run() {
+      while (running) {
+        final List<Relay.Bundle> bundles = new ArrayList<>();
+        try {
+          bundles.add(inbox.take());
+        } catch (InterruptedException ex) {
+          continue;
+        }
+        inbox.drainTo(bundles);
+        try {
+          listener.onBundles(bundles);
+        } catch (Exception ex) {
+          LOG.error(ex, "Failed to apply update from relay.");
+        }
+      }
+    }
+  };
+
+  public RelayLink(Uuid id, Secret secret, Relay relay, int refreshMs, Listener listener) {
+    this.id = id;
+    this.secret = secret;
+    this.relay = relay;
+    this.refreshMs = refreshMs;
+    this.listener = listener;
+
+    sender.setDaemon(true);
+    receiver.setDaemon(true);
+    applier.setDaemon(true);
+  }
+
+  public void start() {
+    sender.start();
+    receiver.start();
+    applier.start();
+  }
+
+  // SEND
+  //
+  // Queue a message to be written to the relay. Never waits. Returns false if
+  // the outbox was full and the message was dropped.
+  public boolean send(User user, ConversationHeader conversation, Message message) {
+
+    final Outgoing outgoing = new Outgoing(relay.pack(user.id, user.name, user.creation),
+                                           relay.pack(conversation.id, conversation.title, conversation.creation),
+                                           relay.pack(message.id, message.content, message.creation));
+
+    if (outbox.offer(outgoing)) {
+      return true;
+    }
+
+    LOG.warning("Relay outbox is full, dropping message %s.", message.id);
+    return false;
+  }
+
+  // FILL
+  //
+  // Wait for the first message in the outbox and then take more until the
+  // batch is full or BATCH_WAIT_MS have passed.
+  private void fill(List<Relay.Outgoing> batch) throws InterruptedException {
+
+    batch.add(outbox.take());
+
+    final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WAIT_MS);
+
+    while (batch.size() < BATCH_SIZE) {
+
+      outbox.drainTo(batch, BATCH_SIZE - batch.size());
+
+      final long left = end - System.nanoTime();
+      if (batch.size() >= BATCH_SIZE || left <= 0) {
+        break;
+      }
+
+      final Relay.Outgoing next = outbox.poll(left, TimeUnit.NANOSECONDS);
+      if (next == null) {
+        break;
+      }
+      batch.add(next);
+    }
+  }
+
+  // POLL
+  //
+  // Read the next bundles from the relay. If there were fewer than asked for
+  // then there is nothing more to read yet so wait before going on.
+  private void poll() throws InterruptedException {
+
+    LOG.verbose("Reading update from relay...");
+
+    final Collection<Relay.Bundle> bundles = relay.read(id, secret, lastSeen, READ_RANGE);
+
+    receive(bundles);
+
+    if (bundles.size() < READ_RANGE) {
+      Thread.sleep(refreshMs);
+    }
+  }
+
+  // RECEIVE
+  //
+  // Put bundles from the relay in the inbox, waiting for room if the applier
+  // is behind.
+  private void receive(Collection<Relay.Bundle> bundles) throws InterruptedException {
+    for (final Relay.Bundle bundle : bundles) {
+      inbox.put(bundle);
+      lastSeen = bundle.id();
+    }
+  }
+
+  // STOP
+  //
+  // Stop all three threads. Anything still in the queues is left unsent and
+  // unapplied.
+  public void stop() {
+    running = false;
+    sender.interrupt();
+    receiver.interrupt();
+    applier.interrupt();
+  }
+}
@@ -14,20 +14,24 @@
 
 package codeu.chat.server;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.Wire;
 import codeu.chat.util.connections.Connection;
 import codeu.chat.util.connections.ConnectionSource;
 
@@ -35,6 +39,21 @@ public final class RemoteRelay implements Relay {
 
   private final static Logger.Log LOG = Logger.newLog(RemoteRelay.class);
 
+  // How long a subscription can wait to hear from the relay before it is
+  // taken to have ended. The relay sends something at least every 15 seconds
+  // so a relay that has gone quiet for a few of those is gone, even if the
+  // connection to it still looks open.
+  private static final long SUBSCRIBE_TIMEOUT_MS = 45000;  // 45 seconds
+
+  // How long a batch can take to be sent and answered. A relay from before
+  // batches were added never answers one and may never close the connection
+  // either, so this is the only way to tell that it did not take the batch.
+  private static final long BATCH_TIMEOUT_MS = 10000;  // 10 seconds
+
+  // How long to write one message at a time before trying a batch again
+  // after a relay left one unanswered.
+  private static final long BATCH_RETRY_MS = 60 * 1000;  // 1 minute
+
   private static final class Component implements Relay.Bundle.Component {
 
     private final Uuid id;
@@ -57,39 +76,73 @@ public final class RemoteRelay implements Relay {
     public String text() { return text; }
   }
 
-  private static final Serializer<Relay.Bundle.Component> COMPONENT_SERIALIZER =
-      new Serializer<Relay.Bundle.Component>() {
+  private static final BufferSerializer<Relay.Bundle.Component> COMPONENT_BUFFER_SERIALIZER =
+      new BufferSerializer<Relay.Bundle.Component>() {
 
     @Override
-    public Relay.Bundle.Component read(InputStream in) throws IOException {
+    public Relay.Bundle.Component read(ByteBuffer in, Wire wire) throws IOException {
 
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final String text = Serializers.STRING.read(in);
-      final Time time = Time.SERIALIZER.read(in);
+      final Uuid id = Uuid.BUFFER_SERIALIZER.read(in, wire);
+      final String text = BufferSerializers.STRING.read(in, wire);
+      final Time time = Time.BUFFER_SERIALIZER.read(in, wire);
 
       return new Component(id, time, text);
     }
 
     @Override
-    public void write(OutputStream out, Relay.Bundle.Component value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Serializers.STRING.write(out, value.text());
-      Time.SERIALIZER.write(out, value.time());
+    public void write(ByteBuffer out, Relay.Bundle.Component value, Wire wire) throws IOException {
+      Uuid.BUFFER_SERIALIZER.write(out, value.id(), wire);
+      BufferSerializers.STRING.write(out, value.text(), wire);
+      Time.BUFFER_SERIALIZER.write(out, value.time(), wire);
     }
   };
 
-  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
-      new Serializer<Relay.Bundle>() {
+  private static final Serializer<Relay.Bundle.Component> COMPONENT_SERIALIZER =
+      Serializers.adapt(COMPONENT_BUFFER_SERIALIZER);
+
+  private static final BufferSerializer<Relay.Outgoing> OUTGOING_BUFFER_SERIALIZER =
+      new BufferSerializer<Relay.Outgoing>() {
+
+    @Override
+    public Relay.Outgoing read(ByteBuffer in, Wire wire) throws IOException {
+
+      final Relay.Bundle.Component user = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
+      final Relay.Bundle.Component conversation = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
+      final Relay.Bundle.Component message = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
+
+      return new Relay.Outgoing() {
+        @Override
+        public Relay.Bundle.Component user() { return user; }
+        @Override
+        public Relay.Bundle.Component conversation() { return conversation; }
+        @Override
+        public Relay.Bundle.Component message() { return message; }
+      };
+    }
 
     @Override
-    public Relay.Bundle read(InputStream in) throws IOException {
+    public void write(ByteBuffer out, Relay.Outgoing value, Wire wire) throws IOException {
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.user(), wire);
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.conversation(), wire);
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.message(), wire);
+    }
+  };
 
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final Time time = Time.SERIALIZER.read(in);
-      final Uuid team = Uuid.SERIALIZER.read(in);
-      final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
+  private static final Serializer<Relay.Outgoing> OUTGOING_SERIALIZER =
+      Serializers.adapt(OUTGOING_BUFFER_SERIALIZER);
+
+  private static final BufferSerializer<Relay.Bundle> BUNDLE_BUFFER_SERIALIZER =
+      new BufferSerializer<Relay.Bundle>() {
+
+    @Override
+    public Relay.Bundle read(ByteBuffer in, Wire wire) throws IOException {
+
+      final Uuid id = Uuid.BUFFER_SERIALIZER.read(in, wire);
+      final Time time = Time.BUFFER_SERIALIZER.read(in, wire);
+      final Uuid team = Uuid.BUFFER_SERIALIZER.read(in, wire);
+      final Relay.Bundle.Component user = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
+      final Relay.Bundle.Component conversation = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
+      final Relay.Bundle.Component message = COMPONENT_BUFFER_SERIALIZER.read(in, wire);
 
       return new Relay.Bundle() {
         @Override
@@ -108,20 +161,36 @@ public final class RemoteRelay implements Relay {
     }
 
     @Override
-    public void write(OutputStream out, Relay.Bundle value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Time.SERIALIZER.write(out, value.time());
-      Uuid.SERIALIZER.write(out, value.team());
-      COMPONENT_SERIALIZER.write(out, value.user());
-      COMPONENT_SERIALIZER.write(out, value.conversation());
-      COMPONENT_SERIALIZER.write(out, value.message());
+    public void write(ByteBuffer out, Relay.Bundle value, Wire wire) throws IOException {
+      Uuid.BUFFER_SERIALIZER.write(out, value.id(), wire);
+      Time.BUFFER_SERIALIZER.write(out, value.time(), wire);
+      Uuid.BUFFER_SERIALIZER.write(out, value.team(), wire);
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.user(), wire);
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.conversation(), wire);
+      COMPONENT_BUFFER_SERIALIZER.write(out, value.message(), wire);
     }
   };
 
+  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
+      Serializers.adapt(BUNDLE_BUFFER_SERIALIZER);
+
   private final ConnectionSource source;
+  private final long subscribeTimeoutMs;
+  private final long batchTimeoutMs;
+
+  // When to next try a batch. Pushed back whenever the relay leaves a batch
+  // unanswered so that an older relay does not hold up every batch until it
+  // times out.
+  private volatile long batchAt = 0;
 
   public RemoteRelay(ConnectionSource source) {
+    this(source, SUBSCRIBE_TIMEOUT_MS, BATCH_TIMEOUT_MS);
+  }
+
+  RemoteRelay(ConnectionSource source, long subscribeTimeoutMs, long batchTimeoutMs) {
     this.source = source;
+    this.subscribeTimeoutMs = subscribeTimeoutMs;
+    this.batchTimeoutMs = batchTimeoutMs;
   }
 
   @Override
@@ -159,6 +228,92 @@ public final class RemoteRelay implements Relay {
     return result;
   }
 
+  // WRITE
+  //
+  // Send every message over one connection with a RELAY_WRITE_BATCH_REQUEST.
+  // A relay from before batches were added ignores the request. It may hold
+  // the connection open, close it, or reset it. So when the relay gives no
+  // response code, because the batch timed out or the connection ended
+  // first, the messages are sent again one at a time and batches are not
+  // tried again for a while. Any other failure fails the batch once, as the
+  // relay may already have some of it and there is no telling a broken relay
+  // from an old one.
+  @Override
+  public boolean write(Uuid teamId, Secret teamSecret, Collection<Relay.Outgoing> messages) {
+
+    if (System.currentTimeMillis() < batchAt) {
+      return writeEach(teamId, teamSecret, messages);
+    }
+
+    boolean unanswered = false;
+
+    try (final Connection connection = source.connect()) {
+
+      final Watchdog watchdog = new Watchdog(connection, batchTimeoutMs);
+      watchdog.start();
+
+      try {
+
+        watchdog.waiting();
+
+        try {
+          Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_BATCH_REQUEST);
+          Uuid.SERIALIZER.write(connection.out(), teamId);
+          Secret.SERIALIZER.write(connection.out(), teamSecret);
+          Serializers.collection(OUTGOING_SERIALIZER).write(connection.out(), messages);
+        } catch (IOException ex) {
+          // An old relay that stops reading can time out the request before
+          // it has all been written.
+          unanswered = watchdog.expired();
+          throw ex;
+        }
+
+        final InputStream in = connection.in();
+
+        final int type;
+        try {
+          type = Serializers.INTEGER.read(in);
+        } catch (IOException ex) {
+          unanswered = true;
+          throw ex;
+        }
+
+        if (type == NetworkCode.RELAY_WRITE_BATCH_RESPONSE) {
+          return Serializers.BOOLEAN.read(in);
+        }
+
+        LOG.error("Server did not handle RELAY_WRITE_BATCH_REQUEST");
+        return false;
+
+      } finally {
+        watchdog.interrupt();
+      }
+
+    } catch (Exception ex) {
+      if (!unanswered) {
+        LOG.error(ex, "Unexpected error when sending RELAY_WRITE_BATCH_REQUEST");
+        return false;
+      }
+    }
+
+    // The batch connection is closed by now so that the single writes do not
+    // hold two connections to the relay at once.
+    LOG.warning("Relay did not answer RELAY_WRITE_BATCH_REQUEST, writing one at a time");
+    batchAt = System.currentTimeMillis() + BATCH_RETRY_MS;
+    return writeEach(teamId, teamSecret, messages);
+  }
+
+  // WRITE EACH
+  //
+  // Send every message with its own RELAY_WRITE_REQUEST.
+  private boolean writeEach(Uuid teamId, Secret teamSecret, Collection<Relay.Outgoing> messages) {
+    boolean result = true;
+    for (final Relay.Outgoing message : messages) {
+      result &= write(teamId, teamSecret, message.user(), message.conversation(), message.message());
+    }
+    return result;
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
 
@@ -183,4 +338,125 @@ public final class RemoteRelay implements Relay {
 
     return result;
   }
+
+  // SUBSCRIBE
+  //
+  // Holds a connection open for as long as the relay keeps sending bundles
+  // over it. A relay from before subscriptions were added closes the
+  // connection without answering, which is reported the same as being
+  // turned down so that the caller falls back to "read". A relay that goes
+  // quiet for longer than the subscribe timeout has its connection closed,
+  // which ends the subscription.
+  @Override
+  public boolean subscribe(Uuid teamId, Secret teamSecret, Uuid root, Relay.Subscriber subscriber) {
+
+    boolean accepted = false;
+
+    try (final Connection connection = source.connect()) {
+
+      final Watchdog watchdog = new Watchdog(connection, subscribeTimeoutMs);
+      watchdog.start();
+
+      try {
+
+        Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_SUBSCRIBE_REQUEST);
+        Uuid.SERIALIZER.write(connection.out(), teamId);
+        Secret.SERIALIZER.write(connection.out(), teamSecret);
+        Uuid.SERIALIZER.write(connection.out(), root);
+
+        watchdog.waiting();
+
+        if (Serializers.INTEGER.read(connection.in()) != NetworkCode.RELAY_SUBSCRIBE_RESPONSE) {
+          LOG.error("Server did not handle RELAY_SUBSCRIBE_REQUEST");
+          return false;
+        }
+
+        accepted = Serializers.BOOLEAN.read(connection.in());
+
+        while (accepted) {
+          final Collection<Relay.Bundle> bundles = Serializers.collection(BUNDLE_SERIALIZER).read(connection.in());
+          // However long the subscriber takes does not count against the relay.
+          watchdog.heard();
+          if (!subscriber.onBundles(bundles)) {
+            break;
+          }
+          watchdog.waiting();
+        }
+
+      } finally {
+        watchdog.interrupt();
+      }
+
+    } catch (Exception ex) {
+      if (accepted) {
+        LOG.warning("Subscription to relay ended: %s", ex);
+      } else {
+        LOG.warning("Unexpected error when sending RELAY_SUBSCRIBE_REQUEST: %s", ex);
+      }
+    }
+
+    return accepted;
+  }
+
+  // WATCHDOG
+  //
+  // Closes a connection once it has waited on the relay for longer than the
+  // timeout. A blocked read or write can't be interrupted but closing the
+  // connection under it makes it throw. The watchdog stops once it is
+  // interrupted.
+  private static final class Watchdog extends Thread {
+
+    private final Connection connection;
+    private final long timeoutMs;
+
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile boolean expired = false;
+
+    public Watchdog(Connection connection, long timeoutMs) {
+      this.connection = connection;
+      this.timeoutMs = timeoutMs;
+      setDaemon(true);
+    }
+
+    // WAITING
+    //
+    // A read is about to wait for the relay.
+    public void waiting() {
+      deadline = System.currentTimeMillis() + timeoutMs;
+    }
+
+    // HEARD
+    //
+    // The relay answered so nothing is waiting on it.
+    public void heard() {
+      deadline = Long.MAX_VALUE;
+    }
+
+    // EXPIRED
+    //
+    // Whether the timeout passed and the connection was closed.
+    public boolean expired() {
+      return expired;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            LOG.warning("Relay has been quiet for %d ms, closing connection.", timeoutMs);
+            expired = true;
+            connection.close();
+            return;
+          }
+          Thread.sleep(Math.min(wait, timeoutMs));
+        }
+      } catch (InterruptedException ex) {
+        // The exchange with the relay ended on its own.
+      } catch (IOException ex) {
+        LOG.warning("Failed to close quiet connection: %s", ex);
+      }
+    }
+  }
 }
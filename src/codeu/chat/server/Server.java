@@ -15,15 +15,25 @@
 
 package codeu.chat.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 
 import codeu.chat.common.*;
 import codeu.chat.util.Logger;
@@ -32,6 +42,8 @@ import codeu.chat.util.Time;
 import codeu.chat.util.Timeline;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.Handshake;
+import codeu.chat.util.connections.IncompleteRequestException;
 
 public final class Server {
 
@@ -45,26 +57,100 @@ public final class Server {
 
   private static final int RELAY_REFRESH_MS = 5000;  // 5 seconds
 
-  private final Timeline timeline = new Timeline();
-
+  // How often to check whether a new snapshot should be written, and when. A
+  // snapshot is written once enough changes have been logged since the last
+  // one, or once any have and the last one is old enough.
+  private static final int SNAPSHOT_CHECK_MS = 60 * 1000;  // 1 minute
+  private static final int SNAPSHOT_RECORDS = 100000;
+  private static final int SNAPSHOT_MAX_AGE_MS = 10 * 60 * 1000;  // 10 minutes
+
+  // Requests are read and answered on the workers so that many can run at
+  // once. New messages are added on the shard that owns their conversation so
+  // that messages to one conversation are added in the order they arrived
+  // while messages to other conversations are added at the same time. A shard
+  // only holds the model's append lock and the lock of the conversation it is
+  // adding to, so shards never wait on each other. The relay link does all of
+  // the talking to the relay on its own threads.
+  private final ExecutorService workers;
+  private final Shards shards = new Shards(Runtime.getRuntime().availableProcessors());
+
+  // Commands that change the model. They run on the workers and only hold
+  // the model's locks while the controller makes the change.
   private final Map<Integer, Command> commands = new HashMap<>();
 
+  // Commands that only read from the model. They run on the workers while
+  // holding the model's read lock, once the secondary indexes are ready.
+  private final Map<Integer, Command> queries = new HashMap<>();
+
+  // Commands that only read the parts of the model that can be read while it
+  // is written to. They run on the workers without taking any lock so they
+  // never wait for a change to finish.
+  private final Map<Integer, Command> reads = new HashMap<>();
+
   private final Uuid id;
   private final Secret secret;
 
-  private final Model model = new Model();
-  private final View view = new View(model);
+  private final Model model;
+  private final View view;
   private final Controller controller;
 
-  private final Relay relay;
-  private Uuid lastSeen = Uuid.NULL;
+  // Every change is added to the log, if there is one, and each command that
+  // makes a change waits for it to be synced before it answers. Snapshots
+  // of the model are written to the same directory on their own timeline so
+  // that they never hold up the relay.
+  private final WriteAheadLog log;
+  private final File directory;
+  private final Timeline snapshots;
+  private long lastSnapshot = System.currentTimeMillis();
+
+  private final RelayLink relayLink;
 
   public Server(final Uuid id, final Secret secret, final Relay relay) {
+    this(id, secret, relay, Workers.pool());
+  }
+
+  // SERVER
+  //
+  // "workers" runs every connection given to "handleConnection". See Workers
+  // for the choices.
+  public Server(final Uuid id, final Secret secret, final Relay relay, final ExecutorService workers) {
+    this(id, secret, relay, workers, new Model(), null, null);
+  }
+
+  // RESTORE
+  //
+  // Make a server that keeps its write-ahead log and snapshots in "directory",
+  // starting with everything in the newest snapshot and the log after it. See
+  // WriteAheadLog for the sync policies.
+  public static Server restore(Uuid id,
+                               Secret secret,
+                               Relay relay,
+                               ExecutorService workers,
+                               File directory,
+                               String syncPolicy) throws IOException {
+    final Model model = new Model();
+    final long snapshot = SnapshotFile.load(directory, model, ForkJoinPool.commonPool());
+    final WriteAheadLog log = WriteAheadLog.open(directory, syncPolicy, snapshot, new Controller(id, model));
+    return new Server(id, secret, relay, workers, model, log, directory);
+  }
 
+  private Server(final Uuid id,
+                 final Secret secret,
+                 final Relay relay,
+                 final ExecutorService workers,
+                 final Model model,
+                 final WriteAheadLog log,
+                 final File directory) {
+
+    this.workers = workers;
     this.id = id;
     this.secret = secret;
-    this.controller = new Controller(id, model);
-    this.relay = relay;
+    this.model = model;
+    this.view = new View(model);
+    this.log = log;
+    this.directory = directory;
+    this.snapshots = log == null ? null : new Timeline();
+    this.controller = new Controller(id, model, log);
 
     // New Message - A client wants to add a new message to the back end.
     this.commands.put(NetworkCode.NEW_MESSAGE_REQUEST, new Command() {
@@ -75,15 +161,49 @@ public final class Server {
         final Uuid conversation = Uuid.SERIALIZER.read(in);
         final String content = Serializers.STRING.read(in);
 
-        final Message message = controller.newMessage(author, conversation, content);
+        final Message message = shards.run(conversation, new Callable<Message>() {
+          @Override
+          public Message call() {
+            final Message message;
+            final Lock append = model.appendLock();
+            append.lock();
+            try {
+              final Lock lock = model.conversationLock(conversation);
+              lock.lock();
+              try {
+                message = controller.newMessage(author, conversation, content);
+              } finally {
+                lock.unlock();
+              }
+            } finally {
+              append.unlock();
+            }
+            sendToRelay(conversation, message);
+            return message;
+          }
+        });
+
+        sync();
 
         Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_RESPONSE);
         Serializers.nullable(Message.SERIALIZER).write(out, message);
+      }
+    });
+
+    // New Messages Batch - A client wants to add many messages to the back end
+    // at once.
+    this.commands.put(NetworkCode.NEW_MESSAGES_BATCH_REQUEST, new Command() {
+      @Override
+      public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+        final Collection<NewMessage> requests = Serializers.collection(NewMessage.SERIALIZER).read(in);
 
-        timeline.scheduleNow(createSendToRelayEvent(
-            author,
-            conversation,
-            message.id));
+        final Collection<Message> messages = newMessages(requests);
+
+        sync();
+
+        Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGES_BATCH_RESPONSE);
+        Serializers.collection(Serializers.nullable(Message.SERIALIZER)).write(out, messages);
       }
     });
 
@@ -93,7 +213,17 @@ public final class Server {
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
         final String name = Serializers.STRING.read(in);
-        final User user = controller.newUser(name);
+
+        final User user;
+        final Lock lock = model.writeLock();
+        lock.lock();
+        try {
+          user = controller.newUser(name);
+        } finally {
+          lock.unlock();
+        }
+
+        sync();
 
         Serializers.INTEGER.write(out, NetworkCode.NEW_USER_RESPONSE);
         Serializers.nullable(User.SERIALIZER).write(out, user);
@@ -107,7 +237,17 @@ public final class Server {
 
         final String title = Serializers.STRING.read(in);
         final Uuid owner = Uuid.SERIALIZER.read(in);
-        final ConversationHeader conversation = controller.newConversation(title, owner);
+
+        final ConversationHeader conversation;
+        final Lock lock = model.writeLock();
+        lock.lock();
+        try {
+          conversation = controller.newConversation(title, owner);
+        } finally {
+          lock.unlock();
+        }
+
+        sync();
 
         Serializers.INTEGER.write(out, NetworkCode.NEW_CONVERSATION_RESPONSE);
         Serializers.nullable(ConversationHeader.SERIALIZER).write(out, conversation);
@@ -115,7 +255,7 @@ public final class Server {
     });
 
     // Get Users - A client wants to get all the users from the back end.
-    this.commands.put(NetworkCode.GET_USERS_REQUEST, new Command() {
+    this.reads.put(NetworkCode.GET_USERS_REQUEST, new Command() {
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
@@ -127,7 +267,7 @@ public final class Server {
     });
 
     // Get Conversations - A client wants to get all the conversations from the back end.
-    this.commands.put(NetworkCode.GET_ALL_CONVERSATIONS_REQUEST, new Command() {
+    this.reads.put(NetworkCode.GET_ALL_CONVERSATIONS_REQUEST, new Command() {
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
@@ -142,7 +282,7 @@ public final class Server {
     //                           the back end. Normally this will be done after calling
     //                           Get Conversations to get all the headers and now the client
     //                           wants to get a subset of the payloads.
-    this.commands.put(NetworkCode.GET_CONVERSATIONS_BY_ID_REQUEST, new Command() {
+    this.reads.put(NetworkCode.GET_CONVERSATIONS_BY_ID_REQUEST, new Command() {
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
@@ -155,7 +295,7 @@ public final class Server {
     });
 
     // Get Messages By Id - A client wants to get a subset of the messages from the back end.
-    this.commands.put(NetworkCode.GET_MESSAGES_BY_ID_REQUEST, new Command() {
+    this.reads.put(NetworkCode.GET_MESSAGES_BY_ID_REQUEST, new Command() {
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
@@ -167,8 +307,77 @@ public final class Server {
       }
     });
 
+    // Get Messages Range - A client wants to get a page of the messages in a
+    //                      conversation, starting after a given message.
+    this.reads.put(NetworkCode.GET_MESSAGES_RANGE_REQUEST, new Command() {
+      @Override
+      public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+        final Uuid conversation = Uuid.SERIALIZER.read(in);
+        final Uuid start = Uuid.SERIALIZER.read(in);
+        final int direction = Serializers.INTEGER.read(in);
+        final int count = Serializers.INTEGER.read(in);
+
+        final Collection<Message> messages = view.getMessages(conversation, start, direction, count);
+
+        Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_RANGE_RESPONSE);
+        Serializers.collection(Message.SERIALIZER).write(out, messages);
+      }
+    });
+
+    // Search Messages - A client wants to find messages by the words in them.
+    this.queries.put(NetworkCode.SEARCH_MESSAGES_REQUEST, new Command() {
+      @Override
+      public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+        final String query = Serializers.STRING.read(in);
+        final Uuid conversation = Uuid.SERIALIZER.read(in);
+        final int offset = Serializers.INTEGER.read(in);
+        final int count = Serializers.INTEGER.read(in);
+
+        final Collection<Message> messages = view.searchMessages(query, conversation, offset, count);
+
+        Serializers.INTEGER.write(out, NetworkCode.SEARCH_MESSAGES_RESPONSE);
+        Serializers.collection(Message.SERIALIZER).write(out, messages);
+      }
+    });
+
+    // Get Users By Name - A client wants to find users by their name or by the
+    //                     start of their name.
+    this.queries.put(NetworkCode.GET_USERS_BY_NAME_REQUEST, new Command() {
+      @Override
+      public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+        final String name = Serializers.STRING.read(in);
+        final boolean prefix = Serializers.BOOLEAN.read(in);
+        final int limit = Serializers.INTEGER.read(in);
+
+        final Collection<User> users = view.getUsersByName(name, prefix, limit);
+
+        Serializers.INTEGER.write(out, NetworkCode.GET_USERS_BY_NAME_RESPONSE);
+        Serializers.collection(User.SERIALIZER).write(out, users);
+      }
+    });
+
+    // Get Conversations By Title - A client wants to find conversations by
+    //                              their title or by the start of their title.
+    this.queries.put(NetworkCode.GET_CONVERSATIONS_BY_TITLE_REQUEST, new Command() {
+      @Override
+      public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+        final String title = Serializers.STRING.read(in);
+        final boolean prefix = Serializers.BOOLEAN.read(in);
+        final int limit = Serializers.INTEGER.read(in);
+
+        final Collection<ConversationHeader> conversations = view.getConversationsByTitle(title, prefix, limit);
+
+        Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_TITLE_RESPONSE);
+        Serializers.collection(ConversationHeader.SERIALIZER).write(out, conversations);
+      }
+    });
+
     // Get Server Info - A client wants to see the current server version.
-    this.commands.put(NetworkCode.SERVER_INFO_REQUEST, new Command() {
+    this.reads.put(NetworkCode.SERVER_INFO_REQUEST, new Command() {
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
@@ -178,31 +387,63 @@ public final class Server {
       }
     });
 
-    this.timeline.scheduleNow(new Runnable() {
+    // Handshake - A client wants to agree on a protocol version and features.
+    // Connection sources that can multiplex answer the handshake themselves,
+    // so a handshake that gets here is on a connection that can only carry
+    // this one request and no features are granted.
+    this.reads.put(NetworkCode.HANDSHAKE_REQUEST, new Command() {
       @Override
-      public void run() {
-        try {
+      public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+        final int version = Serializers.INTEGER.read(in);
+        final int features = Serializers.INTEGER.read(in);
 
-          LOG.verbose("Reading update from relay...");
+        Serializers.INTEGER.write(out, NetworkCode.HANDSHAKE_RESPONSE);
+        Serializers.INTEGER.write(out, Math.min(version, Handshake.VERSION));
+        Serializers.INTEGER.write(out, 0);
+      }
+    });
 
-          for (final Relay.Bundle bundle : relay.read(id, secret, lastSeen, 32)) {
+    this.relayLink = new RelayLink(id, secret, relay, RELAY_REFRESH_MS, new RelayLink.Listener() {
+      @Override
+      public void onBundles(Collection<Relay.Bundle> bundles) {
+        final Lock lock = model.writeLock();
+        lock.lock();
+        try {
+          for (final Relay.Bundle bundle : bundles) {
             onBundle(bundle);
-            lastSeen = bundle.id();
           }
-
-        } catch (Exception ex) {
-
-          LOG.error(ex, "Failed to read update from relay.");
-
+        } finally {
+          lock.unlock();
         }
-
-        timeline.scheduleIn(RELAY_REFRESH_MS, this);
       }
     });
+    this.relayLink.start();
+
+    if (snapshots != null) {
+      this.snapshots.scheduleIn(SNAPSHOT_CHECK_MS, new Runnable() {
+        @Override
+        public void run() {
+
+          final long records = log.recordsSinceRotate();
+          final long age = System.currentTimeMillis() - lastSnapshot;
+
+          if (records >= SNAPSHOT_RECORDS || (records > 0 && age >= SNAPSHOT_MAX_AGE_MS)) {
+            try {
+              snapshot();
+            } catch (Exception ex) {
+              LOG.error(ex, "Failed to write snapshot.");
+            }
+          }
+
+          snapshots.scheduleIn(SNAPSHOT_CHECK_MS, this);
+        }
+      });
+    }
   }
 
   public void handleConnection(final Connection connection) {
-    timeline.scheduleNow(new Runnable() {
+    workers.execute(new Runnable() {
       @Override
       public void run() {
         try {
@@ -210,32 +451,193 @@ public final class Server {
           LOG.info("Handling connection...");
 
           final int type = Serializers.INTEGER.read(connection.in());
-          final Command command = commands.get(type);
 
-          if (command == null) {
+          if (reads.containsKey(type)) {
+            reads.get(type).onMessage(connection.in(), connection.out());
+            LOG.info("Connection accepted");
+          } else if (queries.containsKey(type)) {
+            query(queries.get(type), connection);
+          } else if (commands.containsKey(type)) {
+            commands.get(type).onMessage(connection.in(), connection.out());
+            LOG.info("Connection accepted");
+          } else {
             // The message type cannot be handled so return a dummy message.
             Serializers.INTEGER.write(connection.out(), NetworkCode.NO_MESSAGE);
             LOG.info("Connection rejected");
-          } else {
-            command.onMessage(connection.in(), connection.out());
-            LOG.info("Connection accepted");
           }
 
+        } catch (IncompleteRequestException ex) {
+
+          // Nothing has been changed or written yet. Closing the connection will
+          // let its source give it back once more of the request has arrived.
+          LOG.verbose("Request not fully received, waiting for more.");
+
         } catch (Exception ex) {
 
           LOG.error(ex, "Exception while handling connection.");
 
         }
 
-        try {
-          connection.close();
-        } catch (Exception ex) {
-          LOG.error(ex, "Exception while closing connection.");
-        }
+        close(connection);
       }
     });
   }
 
+  // CLOSE
+  //
+  // Stop the server's own threads once the changes that were already started
+  // are done, then close the log. The workers were given to the server and
+  // are left running.
+  public void close() throws IOException {
+    shards.close();
+    relayLink.stop();
+    if (snapshots != null) {
+      snapshots.stop();
+      snapshots.join();
+    }
+    if (log != null) {
+      log.close();
+    }
+  }
+
+  private void query(Command query, Connection connection) throws IOException {
+
+    // Queries use the secondary indexes, which may still be being rebuilt
+    // after a snapshot was loaded.
+    try {
+      model.awaitSecondary();
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("Interrupted while waiting for indexes");
+    }
+
+    final Lock lock = model.readLock();
+    lock.lock();
+    try {
+      query.onMessage(connection.in(), connection.out());
+      LOG.info("Connection accepted");
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // SNAPSHOT
+  //
+  // Write everything in the model to a snapshot and drop the log segments that
+  // it covers. The write lock is only held long enough to start a new log
+  // segment and pin the model's version. The snapshot is then written from
+  // the pinned version while requests carry on changing the model.
+  private void snapshot() throws IOException {
+
+    final long segment;
+    final Model.Snapshot pinned;
+
+    final Lock lock = model.writeLock();
+    lock.lock();
+    try {
+      segment = log.rotate();
+      pinned = model.snapshot();
+    } finally {
+      lock.unlock();
+    }
+
+    SnapshotFile.write(directory, segment, model, pinned);
+    log.truncate(segment);
+
+    lastSnapshot = System.currentTimeMillis();
+  }
+
+  // SYNC
+  //
+  // Wait for every change made so far to be written to the log. Must not be
+  // called while holding the model's lock, so that changes made by other
+  // requests in the meantime can be written along with this one.
+  private void sync() throws IOException {
+    if (log != null) {
+      log.sync();
+    }
+  }
+
+  private static void close(Connection connection) {
+    try {
+      connection.close();
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while closing connection.");
+    }
+  }
+
+  // NEW MESSAGES
+  //
+  // Split a batch of new messages by conversation, add each part on the shard
+  // that owns its conversation and put the results back in the order of the
+  // requests.
+  private Collection<Message> newMessages(Collection<NewMessage> requests) throws IOException {
+
+    final Map<Uuid, List<NewMessage>> parts = new HashMap<>();
+    final Map<Uuid, List<Integer>> positions = new HashMap<>();
+
+    int position = 0;
+    for (final NewMessage request : requests) {
+      if (!parts.containsKey(request.conversation)) {
+        parts.put(request.conversation, new ArrayList<NewMessage>());
+        positions.put(request.conversation, new ArrayList<Integer>());
+      }
+      parts.get(request.conversation).add(request);
+      positions.get(request.conversation).add(position++);
+    }
+
+    final Map<Uuid, Future<Collection<Message>>> added = new HashMap<>();
+    for (final Map.Entry<Uuid, List<NewMessage>> part : parts.entrySet()) {
+      final Uuid conversation = part.getKey();
+      added.put(conversation, shards.submit(shards.shardOf(conversation), new Callable<Collection<Message>>() {
+        @Override
+        public Collection<Message> call() {
+          final Collection<Message> messages;
+          final Lock append = model.appendLock();
+          append.lock();
+          try {
+            final Lock lock = model.conversationLock(conversation);
+            lock.lock();
+            try {
+              messages = controller.newMessages(part.getValue());
+            } finally {
+              lock.unlock();
+            }
+          } finally {
+            append.unlock();
+          }
+          for (final Message message : messages) {
+            sendToRelay(conversation, message);
+          }
+          return messages;
+        }
+      }));
+    }
+
+    final Message[] messages = new Message[position];
+    for (final Map.Entry<Uuid, Future<Collection<Message>>> part : added.entrySet()) {
+      final Iterator<Integer> at = positions.get(part.getKey()).iterator();
+      for (final Message message : Shards.await(part.getValue())) {
+        messages[at.next()] = message;
+      }
+    }
+
+    return Arrays.asList(messages);
+  }
+
+  // SEND TO RELAY
+  //
+  // Called on the shard that added the message so that the messages of one
+  // conversation reach the relay link in the order they were added. The
+  // author and conversation are read without a lock as the message that
+  // points to them has already been added.
+  private void sendToRelay(Uuid conversation, Message message) {
+    if (message != null) {
+      relayLink.send(model.userById().first(message.author),
+                     model.conversationById().first(conversation),
+                     message);
+    }
+  }
+
   private void onBundle(Relay.Bundle bundle) {
 
     final Relay.Bundle.Component relayUser = bundle.user();
@@ -271,22 +673,4 @@ public final class Server {
                                       relayMessage.time());
     }
   }
-
-  private Runnable createSendToRelayEvent(final Uuid userId,
-                                          final Uuid conversationId,
-                                          final Uuid messageId) {
-    return new Runnable() {
-      @Override
-      public void run() {
-        final User user = view.findUser(userId);
-        final ConversationHeader conversation = view.findConversation(conversationId);
-        final Message message = view.findMessage(messageId);
-        relay.write(id,
-                    secret,
-                    relay.pack(user.id, user.name, user.creation),
-                    relay.pack(conversation.id, conversation.title, conversation.creation),
-                    relay.pack(message.id, message.content, message.creation));
-      }
-    };
-  }
 }
@@ -0,0 +1,110 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import codeu.chat.util.Uuid;
+
+// SHARDS
+//
+// A fixed number of single thread executors. Every conversation is owned by
+// exactly one shard and every change to a conversation is run on the shard
+// that owns it. Changes to one conversation happen one at a time and in the
+// order that they were submitted while changes to conversations on other
+// shards happen at the same time. The shards' threads run until "close" is
+// called.
+final class Shards {
+
+  private final List<ExecutorService> shards = new ArrayList<>();
+
+  public Shards(int count) {
+    for (int i = 0; i < Math.max(1, count); i++) {
+      shards.add(Executors.newSingleThreadExecutor());
+    }
+  }
+
+  public int count() {
+    return shards.size();
+  }
+
+  // SHARD OF
+  //
+  // Get the index of the shard that owns a conversation.
+  public int shardOf(Uuid conversation) {
+    return (conversation.hashCode() & Integer.MAX_VALUE) % shards.size();
+  }
+
+  public <T> Future<T> submit(int shard, Callable<T> change) {
+    return shards.get(shard).submit(change);
+  }
+
+  // RUN
+  //
+  // Run a change on the shard that owns the conversation and wait for it to
+  // finish.
+  public <T> T run(Uuid conversation, Callable<T> change) throws IOException {
+    return await(submit(shardOf(conversation), change));
+  }
+
+  // CLOSE
+  //
+  // Stop taking changes and wait for the ones that were already submitted to
+  // finish.
+  public void close() throws IOException {
+    for (final ExecutorService shard : shards) {
+      shard.shutdown();
+    }
+    try {
+      for (final ExecutorService shard : shards) {
+        shard.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while closing shards");
+    }
+  }
+
+  // AWAIT
+  //
+  // Wait for a change that was submitted to a shard. If the change threw, the
+  // same exception is thrown here.
+  public static <T> T await(Future<T> change) throws IOException {
+    try {
+      return change.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for shard");
+    } catch (ExecutionException ex) {
+      final Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+}
@@ -0,0 +1,448 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.Wire;
+import codeu.chat.util.store.LogAccessor;
+
+// SNAPSHOT FILE
+//
+// Everything in the model at one version, written to a single file so that
+// startup only has to read the snapshot and replay the write-ahead log
+// segments that came after it.
+//
+// A snapshot is named for the last log segment that it covers. It is written
+// under a temporary name and only renamed once it is complete, so a snapshot
+// that can be found is always whole.
+//
+// The file is split into sections that can each be read on their own:
+//
+//   header    MAGIC, FORMAT, segment
+//   USERS     count, then each user
+//   HEADERS   count, then each conversation header
+//   MESSAGES  count, then for each conversation: its place among the
+//             headers, its message count and its messages in order
+//   ...       as many MESSAGES sections as it takes to hold every message
+//   table     for each section: type, offset, length
+//   footer    table offset, MAGIC
+//
+// Loading maps each section into memory and reads it with buffer serializers,
+// with the sections read at the same time on a fork-join pool. Message links
+// and conversation payloads are not written; they follow from the order of
+// the messages.
+public final class SnapshotFile {
+
+  private final static Logger.Log LOG = Logger.newLog(SnapshotFile.class);
+
+  private static final int MAGIC = 0x43484154;  // "CHAT"
+  private static final int FORMAT = 2;
+
+  private static final int USERS = 1;
+  private static final int HEADERS = 2;
+  private static final int MESSAGES = 3;
+
+  // Conversations are added to a MESSAGES section until it holds at least
+  // this many messages.
+  private static final int SECTION_MESSAGES = 64 * 1024;
+
+  private static final int HEADER_BYTES = 16;  // magic, format, segment
+  private static final int TABLE_ENTRY_BYTES = 20;  // type, offset, length
+  private static final int FOOTER_BYTES = 12;  // table offset, magic
+
+  private static final String PREFIX = "snapshot-";
+  private static final String SUFFIX = ".snap";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
+  private SnapshotFile() { }
+
+  // WRITE
+  //
+  // Write the model as "snapshot" sees it, as the snapshot for log segments up
+  // to and including "segment", and remove any older snapshots. The model can
+  // be changed while this runs.
+  public static void write(File directory, long segment, Model model, Model.Snapshot snapshot)
+      throws IOException {
+
+    final File temporary = new File(directory, name(segment) + TEMPORARY_SUFFIX);
+
+    // Users and conversations added after the snapshot's version may be
+    // written too. Replaying the log skips anything that is already there,
+    // so that does no harm.
+    final List<User> users = list(model.userById().all());
+    final List<ConversationHeader> conversations = list(model.conversationById().all());
+
+    final List<long[]> table = new ArrayList<>();
+    long messages = 0;
+
+    try (final RandomAccessFile raw = new RandomAccessFile(temporary, "rw")) {
+
+      final Output out = new Output(raw.getChannel());
+
+      out.put(BufferSerializers.INTEGER, MAGIC);
+      out.put(BufferSerializers.INTEGER, FORMAT);
+      out.put(BufferSerializers.LONG, segment);
+
+      long start = out.position();
+      out.put(BufferSerializers.INTEGER, users.size());
+      for (final User user : users) {
+        out.put(User.BUFFER_SERIALIZER, user);
+      }
+      table.add(new long[] { USERS, start, out.position() - start });
+
+      start = out.position();
+      out.put(BufferSerializers.INTEGER, conversations.size());
+      for (final ConversationHeader conversation : conversations) {
+        out.put(ConversationHeader.BUFFER_SERIALIZER, conversation);
+      }
+      table.add(new long[] { HEADERS, start, out.position() - start });
+
+      int next = 0;
+      while (next < conversations.size()) {
+
+        // Find how many conversations go in this section before writing it,
+        // as the count comes first.
+        final List<LogAccessor<Message>> logs = new ArrayList<>();
+        int inSection = 0;
+        while (next + logs.size() < conversations.size() && inSection < SECTION_MESSAGES) {
+          final LogAccessor<Message> log = snapshot.messagesIn(conversations.get(next + logs.size()).id);
+          logs.add(log);
+          inSection += log == null ? 0 : log.size();
+        }
+
+        start = out.position();
+        out.put(BufferSerializers.INTEGER, logs.size());
+
+        for (final LogAccessor<Message> log : logs) {
+          final int size = log == null ? 0 : log.size();
+          out.put(BufferSerializers.INTEGER, next++);
+          out.put(BufferSerializers.INTEGER, size);
+          for (int i = 0; i < size; i++) {
+            final Message message = log.get(i);
+            out.put(Uuid.BUFFER_SERIALIZER, message.id);
+            out.put(Uuid.BUFFER_SERIALIZER, message.author);
+            out.put(Time.BUFFER_SERIALIZER, message.creation);
+            out.put(BufferSerializers.STRING, message.content);
+          }
+          messages += size;
+        }
+
+        table.add(new long[] { MESSAGES, start, out.position() - start });
+      }
+
+      final long tableStart = out.position();
+      for (final long[] section : table) {
+        out.put(BufferSerializers.INTEGER, (int) section[0]);
+        out.put(BufferSerializers.LONG, section[1]);
+        out.put(BufferSerializers.LONG, section[2]);
+      }
+      out.put(BufferSerializers.LONG, tableStart);
+      out.put(BufferSerializers.INTEGER, MAGIC);
+
+      out.flush();
+      raw.getChannel().force(true);
+    }
+
+    if (!temporary.renameTo(file(directory, segment))) {
+      throw new IOException("Failed to rename " + temporary);
+    }
+
+    LOG.info("Wrote snapshot through segment %d: %d users, %d conversations, %d messages.",
+             segment, users.size(), conversations.size(), messages);
+
+    for (final File old : directory.listFiles()) {
+      final String name = old.getName();
+      if (name.startsWith(PREFIX) && !name.equals(name(segment) + SUFFIX) && !old.delete()) {
+        LOG.warning("Failed to delete old snapshot %s", old);
+      }
+    }
+  }
+
+  // LOAD
+  //
+  // Load the newest snapshot in "directory" into an empty model and return
+  // the last log segment that it covers. Returns zero, leaving the model empty,
+  // if there is no snapshot. The sections are read on "pool" and the model's
+  // secondary indexes are left building on it. See Model.load.
+  public static long load(File directory, Model model, ForkJoinPool pool) throws IOException {
+
+    final long segment = latest(directory);
+
+    if (segment == 0) {
+      return 0;
+    }
+
+    final File file = file(directory, segment);
+
+    try (final RandomAccessFile raw = new RandomAccessFile(file, "r")) {
+
+      final FileChannel channel = raw.getChannel();
+      final long size = channel.size();
+
+      if (size < HEADER_BYTES + FOOTER_BYTES) {
+        throw new IOException(file + " is not a snapshot");
+      }
+
+      final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+      final ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_BYTES, FOOTER_BYTES);
+
+      final long tableStart = footer.getLong();
+
+      if (header.getInt() != MAGIC || footer.getInt() != MAGIC) {
+        throw new IOException(file + " is not a snapshot");
+      }
+      final int format = header.getInt();
+      if (format != FORMAT) {
+        throw new IOException(file + " has unsupported format " + format);
+      }
+      if (header.getLong() != segment) {
+        throw new IOException(file + " is for a different segment");
+      }
+
+      final ByteBuffer table = channel.map(
+          FileChannel.MapMode.READ_ONLY, tableStart, size - FOOTER_BYTES - tableStart);
+
+      ByteBuffer users = null;
+      ByteBuffer headers = null;
+      final List<ByteBuffer> messageSections = new ArrayList<>();
+
+      while (table.remaining() >= TABLE_ENTRY_BYTES) {
+        final int type = table.getInt();
+        final ByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, table.getLong(), table.getLong());
+        if (type == USERS) {
+          users = section;
+        } else if (type == HEADERS) {
+          headers = section;
+        } else if (type == MESSAGES) {
+          messageSections.add(section);
+        } else {
+          LOG.warning("Skipping unknown section type %d in %s", type, file);
+        }
+      }
+
+      if (users == null || headers == null) {
+        throw new IOException(file + " is missing sections");
+      }
+
+      final Future<List<User>> readUsers = pool.submit(reader(users, User.BUFFER_SERIALIZER));
+      final Future<List<ConversationHeader>> readHeaders =
+          pool.submit(reader(headers, ConversationHeader.BUFFER_SERIALIZER));
+
+      final List<Future<List<Object[]>>> readMessages = new ArrayList<>();
+      for (final ByteBuffer section : messageSections) {
+        readMessages.add(pool.submit(messagesReader(section)));
+      }
+
+      final List<User> loadedUsers = join(readUsers);
+      final List<ConversationHeader> loadedConversations = join(readHeaders);
+
+      final List<Message[]> loadedMessages = new ArrayList<>(loadedConversations.size());
+      for (int i = 0; i < loadedConversations.size(); i++) {
+        loadedMessages.add(new Message[0]);
+      }
+
+      long count = 0;
+      for (final Future<List<Object[]>> read : readMessages) {
+        for (final Object[] conversation : join(read)) {
+          final Message[] inConversation = (Message[]) conversation[1];
+          loadedMessages.set((Integer) conversation[0], inConversation);
+          count += inConversation.length;
+        }
+      }
+
+      model.load(loadedUsers, loadedConversations, loadedMessages, pool);
+
+      LOG.info("Loaded snapshot through segment %d: %d users, %d conversations, %d messages.",
+               segment, loadedUsers.size(), loadedConversations.size(), count);
+    }
+
+    return segment;
+  }
+
+  // LATEST
+  //
+  // The last log segment covered by the newest snapshot in "directory", or
+  // zero if there is none.
+  public static long latest(File directory) {
+    long latest = 0;
+    final String[] names = directory.list();
+    if (names != null) {
+      for (final String name : names) {
+        if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+          try {
+            latest = Math.max(latest, Long.parseLong(
+                name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+          } catch (NumberFormatException ex) {
+            LOG.warning("Ignoring %s in %s", name, directory);
+          }
+        }
+      }
+    }
+    return latest;
+  }
+
+  private static <T> Callable<List<T>> reader(final ByteBuffer section, final BufferSerializer<T> serializer) {
+    return new Callable<List<T>>() {
+      @Override
+      public List<T> call() throws IOException {
+        final int count = section.getInt();
+        final List<T> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          values.add(serializer.read(section, Wire.STANDARD));
+        }
+        return values;
+      }
+    };
+  }
+
+  // MESSAGES READER
+  //
+  // Reads one MESSAGES section into pairs of a conversation's place among the
+  // headers and its messages, linked to each other.
+  private static Callable<List<Object[]>> messagesReader(final ByteBuffer section) {
+    return new Callable<List<Object[]>>() {
+      @Override
+      public List<Object[]> call() throws IOException {
+
+        final int conversations = section.getInt();
+        final List<Object[]> read = new ArrayList<>(conversations);
+
+        for (int i = 0; i < conversations; i++) {
+
+          final int place = section.getInt();
+          final Message[] messages = new Message[section.getInt()];
+
+          Uuid id = messages.length > 0 ? Uuid.BUFFER_SERIALIZER.read(section, Wire.STANDARD) : Uuid.NULL;
+          Uuid previous = Uuid.NULL;
+
+          for (int j = 0; j < messages.length; j++) {
+
+            final Uuid author = Uuid.BUFFER_SERIALIZER.read(section, Wire.STANDARD);
+            final Time creation = Time.BUFFER_SERIALIZER.read(section, Wire.STANDARD);
+            final String content = BufferSerializers.STRING.read(section, Wire.STANDARD);
+
+            // The next message's id is read now so that this one can be built
+            // already linked to it.
+            final Uuid next = j + 1 < messages.length ?
+                Uuid.BUFFER_SERIALIZER.read(section, Wire.STANDARD) :
+                Uuid.NULL;
+
+            messages[j] = new Message(id, next, previous, creation, author, content);
+
+            previous = id;
+            id = next;
+          }
+
+          read.add(new Object[] { place, messages });
+        }
+
+        return read;
+      }
+    };
+  }
+
+  private static <T> T join(Future<T> read) throws IOException {
+    try {
+      return read.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading snapshot", ex);
+    } catch (ExecutionException ex) {
+      throw new IOException("Failed to read snapshot", ex.getCause());
+    }
+  }
+
+  private static File file(File directory, long segment) {
+    return new File(directory, name(segment) + SUFFIX);
+  }
+
+  private static String name(long segment) {
+    return String.format("%s%016d", PREFIX, segment);
+  }
+
+  private static <T> List<T> list(Iterable<T> values) {
+    final List<T> list = new ArrayList<>();
+    for (final T value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+
+  // OUTPUT
+  //
+  // Writes values with buffer serializers into a buffer that is written to
+  // the file each time it fills up, keeping track of where in the file the
+  // next value will go.
+  private static final class Output {
+
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+    private long flushed = 0;
+
+    public Output(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    public long position() {
+      return flushed + buffer.position();
+    }
+
+    public <T> void put(BufferSerializer<T> serializer, T value) throws IOException {
+      while (true) {
+        final int start = buffer.position();
+        try {
+          serializer.write(buffer, value, Wire.STANDARD);
+          return;
+        } catch (BufferOverflowException ex) {
+          buffer.position(start);
+          if (start == 0) {
+            // A single value larger than the whole buffer.
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+          } else {
+            flush();
+          }
+        }
+      }
+    }
+
+    public void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        flushed += channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
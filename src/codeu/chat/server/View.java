@@ -36,12 +36,17 @@ import codeu.chat.common.User;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
-import codeu.chat.util.store.StoreAccessor;
+import codeu.chat.util.store.HashStoreAccessor;
+import codeu.chat.util.store.LogAccessor;
 
 public final class View implements BasicView, SinglesView {
 
   private final static Logger.Log LOG = Logger.newLog(View.class);
 
+  // The most values that one call to get a range of messages, to search or to
+  // find by name will return, no matter how many were asked for.
+  public static final int MAX_PAGE_SIZE = 1000;
+
   private final Model model;
 
   public View(Model model) {
@@ -69,6 +74,78 @@ public final class View implements BasicView, SinglesView {
     return intersect(model.messageById(), ids);
   }
 
+  @Override
+  public Collection<Message> getMessages(Uuid conversation, Uuid start, int direction, int count) {
+
+    final Collection<Message> page = new ArrayList<>();
+
+    // The whole page is read from one snapshot so messages that are added
+    // while it is read can't show up in it half linked.
+    final LogAccessor<Message> log = model.snapshot().messagesIn(conversation);
+
+    if (log == null || count <= 0 || (direction != FORWARD && direction != BACKWARD)) {
+      return page;
+    }
+
+    int position;
+
+    if (Uuid.equals(start, Uuid.NULL)) {
+      position = direction == FORWARD ? 0 : log.size() - 1;
+    } else {
+      // The start must be a message in this conversation, not just a message
+      // at the same position in some other conversation.
+      final Integer found = model.messagePositionById().first(start);
+      if (found == null || found >= log.size() || !Uuid.equals(log.get(found).id, start)) {
+        LOG.warning("Message %s is not in conversation %s", start, conversation);
+        return page;
+      }
+      position = found + direction;
+    }
+
+    final int end = Math.min(count, MAX_PAGE_SIZE);
+
+    for (int i = 0; i < end && position >= 0 && position < log.size(); i++) {
+      page.add(linked(log, position));
+      position += direction;
+    }
+
+    return page;
+  }
+
+  @Override
+  public Collection<Message> searchMessages(String query, Uuid conversation, int offset, int count) {
+
+    final Collection<Message> found = new ArrayList<>();
+
+    // The index holds each message as it was added. Its links may have
+    // changed since then.
+    for (final Message message : model.messageByWord().search(
+        query,
+        Uuid.equals(conversation, Uuid.NULL) ? null : conversation,
+        offset,
+        Math.min(count, MAX_PAGE_SIZE))) {
+      found.add(model.messageById().first(message.id));
+    }
+
+    return found;
+  }
+
+  @Override
+  public Collection<User> getUsersByName(String name, boolean prefix, int limit) {
+    final int capped = Math.min(limit, MAX_PAGE_SIZE);
+    return prefix ?
+        model.userByName().complete(name, capped) :
+        model.userByName().exact(name, capped);
+  }
+
+  @Override
+  public Collection<ConversationHeader> getConversationsByTitle(String title, boolean prefix, int limit) {
+    final int capped = Math.min(limit, MAX_PAGE_SIZE);
+    return prefix ?
+        model.conversationByTitle().complete(title, capped) :
+        model.conversationByTitle().exact(title, capped);
+  }
+
   @Override
   public User findUser(Uuid id) { return model.userById().first(id); }
 
@@ -78,7 +155,22 @@ public final class View implements BasicView, SinglesView {
   @Override
   public Message findMessage(Uuid id) { return model.messageById().first(id); }
 
-  private static <S,T> Collection<T> all(StoreAccessor<S,T> store) {
+  // LINKED
+  //
+  // The message at "position" in a snapshot of a conversation's log, linked
+  // to the messages around it as they were in that snapshot.
+  private static Message linked(LogAccessor<Message> log, int position) {
+    final Message message = log.get(position);
+    return new Message(
+        message.id,
+        position + 1 < log.size() ? log.get(position + 1).id : Uuid.NULL,
+        position > 0 ? log.get(position - 1).id : Uuid.NULL,
+        message.creation,
+        message.author,
+        message.content);
+  }
+
+  private static <S,T> Collection<T> all(HashStoreAccessor<S,T> store) {
 
     final Collection<T> all = new ArrayList<>();
 
@@ -89,7 +181,7 @@ public final class View implements BasicView, SinglesView {
     return all;
   }
 
-  private static <T> Collection<T> intersect(StoreAccessor<Uuid, T> store, Collection<Uuid> ids) {
+  private static <T> Collection<T> intersect(HashStoreAccessor<Uuid, T> store, Collection<Uuid> ids) {
 
     // Use a set to hold the found users as this will prevent duplicate ids from
     // yielding duplicates in the result.
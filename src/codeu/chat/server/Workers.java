@@ -0,0 +1,91 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import codeu.chat.util.Logger;
+
+// WORKERS
+//
+// The ways that a server can run the connections that it is handed.
+//
+//   POOL     A fixed pool with one thread per processor. Works best with a
+//            connection source that has already read the whole request, such
+//            as the SelectorConnectionSource, so that workers never wait on a
+//            socket.
+//
+//   VIRTUAL  A new virtual thread for every connection. Reading a request
+//            straight off of a blocking socket only parks the virtual thread
+//            and not the platform thread under it, so any number of slow
+//            clients can be waited on at once. Virtual threads need Java 21
+//            or later. On older runtimes this mode is refused rather than
+//            giving every connection a platform thread with no limit.
+public final class Workers {
+
+  private final static Logger.Log LOG = Logger.newLog(Workers.class);
+
+  public static final String POOL = "pool";
+  public static final String VIRTUAL = "virtual";
+
+  private Workers() { }
+
+  public static ExecutorService pool() {
+    return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  // VIRTUAL
+  //
+  // Throws UnsupportedOperationException if this runtime has no virtual
+  // threads. Check "hasVirtual" first to refuse the mode up front.
+  public static ExecutorService virtual() {
+    try {
+      // Looked up by name so that the server still builds and runs on
+      // runtimes without virtual threads.
+      final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (Exception ex) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later", ex);
+    }
+  }
+
+  // HAS VIRTUAL
+  //
+  // Whether this runtime can run the virtual mode.
+  public static boolean hasVirtual() {
+    try {
+      virtual().shutdown();
+      return true;
+    } catch (UnsupportedOperationException ex) {
+      LOG.verbose("Virtual threads are not available: %s", ex.getCause());
+      return false;
+    }
+  }
+
+  // FOR MODE
+  //
+  // Get the workers for one of the modes above by name.
+  public static ExecutorService forMode(String mode) {
+    if (POOL.equals(mode)) {
+      return pool();
+    }
+    if (VIRTUAL.equals(mode)) {
+      return virtual();
+    }
+    throw new IllegalArgumentException("Unknown mode: " + mode);
+  }
+}
@@ -0,0 +1,582 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.RawController;
+import codeu.chat.common.User;
+import codeu.chat.util.BufferInputStream;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// WRITE AHEAD LOG
+//
+// An append-only record of every change made to the model, written as the
+// RawController calls that would make the same change again. Replaying the
+// records into an empty model on startup brings back everything that was in
+// it.
+//
+// Adding a record only copies it into memory. A single thread writes out
+// everything that has been added since its last write in one go, so any
+// number of changes that arrive while it is busy share the next write and
+// the next fsync. A caller that needs its change to be safe on disk before
+// it answers calls "sync" once it is no longer holding any locks.
+//
+// Callers wait for the writer on a lock and condition rather than a monitor so
+// that a virtual thread waiting out an fsync does not hold on to its carrier.
+//
+// Once the writer has failed, or the log has been closed, nothing added would
+// ever reach the disk, so adding a record throws IllegalStateException. Add
+// the record before making the change so that the change is refused.
+//
+// How often the log is forced to disk is set by the sync policy:
+//
+//   ALWAYS    Every write is forced before "sync" returns. Nothing that was
+//             acknowledged is lost, even if the machine goes down.
+//
+//   INTERVAL  "sync" returns once the write has reached the operating system
+//             and the log is forced at most once every INTERVAL_MS. Nothing
+//             is lost if only the server goes down.
+//
+//   NEVER     The operating system decides when the log reaches the disk.
+//
+// The log is split into numbered segment files. "rotate" starts a new
+// segment so that once a snapshot holds everything in the older segments
+// they can be thrown away with "truncate". Each record is framed with its
+// length and a checksum. A record that was only partly written when the
+// server went down is dropped on replay, along with anything after it in the
+// same segment.
+public final class WriteAheadLog implements Closeable {
+
+  private final static Logger.Log LOG = Logger.newLog(WriteAheadLog.class);
+
+  public static final String ALWAYS = "always";
+  public static final String INTERVAL = "interval";
+  public static final String NEVER = "never";
+
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private static final int INTERVAL_MS = 1000;
+
+  private static final int FRAME_HEADER_BYTES = 8;  // length, checksum
+
+  private static final int USER = 1;
+  private static final int CONVERSATION = 2;
+  private static final int MESSAGE = 3;
+
+  private final File directory;
+  private final String policy;
+
+  // Only used by the writer thread once it has started.
+  private FileChannel file;
+
+  // Records that have been added but not written yet, how many records have
+  // been added and written in total, and the record counts at which the
+  // writer must move on to a new segment. All guarded by "lock". The writer
+  // waits on "work" for records, rotations, or the log to close. Everyone else
+  // waits on "progress" for the writer to write, move segments, or fail.
+  private final Lock lock = new ReentrantLock();
+  private final Condition work = lock.newCondition();
+  private final Condition progress = lock.newCondition();
+  private List<ByteBuffer> pending = new ArrayList<>();
+  private long added = 0;
+  private long written = 0;
+  private List<Long> rotations = new ArrayList<>();
+  private long segment;         // the newest segment, which "rotate" moves on
+  private long writing;         // the segment that the writer has open
+  private long sinceRotate = 0; // records added to the newest segment
+  private IOException failed = null;
+  private boolean closed = false;
+
+  private final Thread writer = new Thread() {
+    @Override
+    public void run() {
+      writeLoop();
+    }
+  };
+
+  private WriteAheadLog(File directory, String policy, long segment) throws IOException {
+    this.directory = directory;
+    this.policy = policy;
+    this.segment = segment;
+    this.writing = segment;
+    this.file = openSegment(directory, segment);
+    writer.setName("write-ahead-log");
+    writer.setDaemon(true);
+  }
+
+  // OPEN
+  //
+  // Open the log in "directory", replaying every segment after "after" into
+  // "controller". The controller given here must not log its changes. Segments
+  // up to and including "after" are left alone; they should already be in the
+  // snapshot that the model was loaded from. New records go to a new segment.
+  public static WriteAheadLog open(File directory, String policy, long after, RawController controller)
+      throws IOException {
+
+    if (!ALWAYS.equals(policy) && !INTERVAL.equals(policy) && !NEVER.equals(policy)) {
+      throw new IllegalArgumentException("Unknown sync policy: " + policy);
+    }
+
+    long last = after;
+    int count = 0;
+
+    for (final long segment : segments(directory)) {
+      if (segment > after) {
+        count += replay(segmentFile(directory, segment), controller);
+        last = segment;
+      }
+    }
+
+    LOG.info("Replayed %d records from the log after segment %d.", count, after);
+
+    final WriteAheadLog log = new WriteAheadLog(directory, policy, last + 1);
+    log.writer.start();
+    return log;
+  }
+
+  // SEGMENTS
+  //
+  // The numbers of all the segments in "directory", oldest first.
+  public static List<Long> segments(File directory) {
+    final List<Long> segments = new ArrayList<>();
+    final String[] names = directory.list();
+    if (names != null) {
+      for (final String name : names) {
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          try {
+            segments.add(Long.parseLong(
+                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+          } catch (NumberFormatException ex) {
+            LOG.warning("Ignoring %s in %s", name, directory);
+          }
+        }
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  public static File segmentFile(File directory, long segment) {
+    return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+  }
+
+  public void user(User user) {
+    try {
+      final ByteArrayOutputStream out = record(USER);
+      Uuid.SERIALIZER.write(out, user.id);
+      Serializers.STRING.write(out, user.name);
+      Time.SERIALIZER.write(out, user.creation);
+      add(out);
+    } catch (IOException ex) {
+      // Only ever written to memory.
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  public void conversation(ConversationHeader conversation) {
+    try {
+      final ByteArrayOutputStream out = record(CONVERSATION);
+      Uuid.SERIALIZER.write(out, conversation.id);
+      Serializers.STRING.write(out, conversation.title);
+      Uuid.SERIALIZER.write(out, conversation.owner);
+      Time.SERIALIZER.write(out, conversation.creation);
+      add(out);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  public void message(Uuid conversation, Message message) {
+    try {
+      final ByteArrayOutputStream out = record(MESSAGE);
+      Uuid.SERIALIZER.write(out, message.id);
+      Uuid.SERIALIZER.write(out, message.author);
+      Uuid.SERIALIZER.write(out, conversation);
+      Serializers.STRING.write(out, message.content);
+      Time.SERIALIZER.write(out, message.creation);
+      add(out);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  // SYNC
+  //
+  // Wait until every record added before this call is as safe as the sync
+  // policy makes it.
+  public void sync() throws IOException {
+
+    lock.lock();
+    try {
+      final long target = added;
+      while (written < target && failed == null && !closed) {
+        waitForWriter();
+      }
+      if (written < target) {
+        throw failed != null ? failed : new IOException("Log closed");
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // RECORDS SINCE ROTATE
+  //
+  // How many records have been added since the last call to "rotate".
+  public long recordsSinceRotate() {
+    lock.lock();
+    try {
+      return sinceRotate;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // ROTATE
+  //
+  // Start a new segment. Every record added before this call is in one of the
+  // segments up to and including the one returned and every record added
+  // after it is in a later one. Must be called while no records are being
+  // added, such as while holding the model's write lock.
+  public long rotate() {
+    lock.lock();
+    try {
+      rotations.add(added);
+      sinceRotate = 0;
+      work.signal();
+      return segment++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // TRUNCATE
+  //
+  // Delete every segment up to and including "through". Waits for the writer
+  // to be done with them first.
+  public void truncate(long through) throws IOException {
+
+    lock.lock();
+    try {
+      while (writing <= through && failed == null && !closed) {
+        waitForWriter();
+      }
+      if (writing <= through) {
+        throw failed != null ? failed : new IOException("Log closed");
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    for (final long old : segments(directory)) {
+      if (old <= through && !segmentFile(directory, old).delete()) {
+        LOG.warning("Failed to delete segment %d", old);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      closed = true;
+      work.signal();
+      progress.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("Interrupted while closing the log");
+    }
+    file.close();
+  }
+
+  // WAIT FOR WRITER
+  //
+  // Must be called while holding "lock".
+  private void waitForWriter() throws IOException {
+    try {
+      progress.await();
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("Interrupted while waiting for the log");
+    }
+  }
+
+  private static FileChannel openSegment(File directory, long segment) throws IOException {
+    final FileChannel file = new RandomAccessFile(segmentFile(directory, segment), "rw").getChannel();
+    file.position(file.size());
+    return file;
+  }
+
+  private static ByteArrayOutputStream record(int type) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(out, type);
+    return out;
+  }
+
+  private void add(ByteArrayOutputStream record) {
+
+    final byte[] body = record.toByteArray();
+
+    final CRC32 checksum = new CRC32();
+    checksum.update(body, 0, body.length);
+
+    final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + body.length);
+    frame.putInt(body.length);
+    frame.putInt((int) checksum.getValue());
+    frame.put(body);
+    frame.flip();
+
+    lock.lock();
+    try {
+      if (failed != null) {
+        throw new IllegalStateException("Log failed, refusing change", failed);
+      }
+      if (closed) {
+        throw new IllegalStateException("Log closed, refusing change");
+      }
+      pending.add(frame);
+      added++;
+      sinceRotate++;
+      work.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // WRITE LOOP
+  //
+  // Runs on the writer thread until the log is closed and everything that was
+  // added before then has been written.
+  private void writeLoop() {
+
+    long lastForce = System.currentTimeMillis();
+    boolean unforced = false;
+    long done = 0;
+
+    while (true) {
+
+      final List<ByteBuffer> batch;
+      final List<Long> switches;
+      final long count;
+
+      lock.lock();
+      try {
+        while (pending.isEmpty() && rotations.isEmpty() && !closed) {
+          try {
+            if (unforced) {
+              work.await(Math.max(1, lastForce + INTERVAL_MS - System.currentTimeMillis()),
+                         TimeUnit.MILLISECONDS);
+              break;
+            }
+            work.await();
+          } catch (InterruptedException ex) {
+            // Keep going until closed.
+          }
+        }
+        if (pending.isEmpty() && rotations.isEmpty() && closed) {
+          break;
+        }
+        batch = pending;
+        switches = rotations;
+        count = added;
+        pending = new ArrayList<>();
+        rotations = new ArrayList<>();
+      } finally {
+        lock.unlock();
+      }
+
+      try {
+
+        // Write the batch in runs, moving to the next segment at each
+        // rotation that falls inside it.
+        int start = 0;
+        for (final long at : switches) {
+          final int end = (int) (at - done);
+          write(batch.subList(start, end));
+          file.force(false);
+          file.close();
+          unforced = false;
+          start = end;
+          file = openSegment(directory, writing + 1);
+          lock.lock();
+          try {
+            writing++;
+            progress.signalAll();
+          } finally {
+            lock.unlock();
+          }
+        }
+        write(batch.subList(start, batch.size()));
+        unforced = unforced || batch.size() > start;
+        done = count;
+
+        final long now = System.currentTimeMillis();
+
+        if (unforced && (ALWAYS.equals(policy) ||
+                         (INTERVAL.equals(policy) && now - lastForce >= INTERVAL_MS))) {
+          file.force(false);
+          lastForce = now;
+          unforced = false;
+        } else if (NEVER.equals(policy)) {
+          unforced = false;
+        }
+
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to write to the log.");
+        lock.lock();
+        try {
+          failed = ex;
+          progress.signalAll();
+        } finally {
+          lock.unlock();
+        }
+        return;
+      }
+
+      lock.lock();
+      try {
+        written = count;
+        progress.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    try {
+      if (!NEVER.equals(policy)) {
+        file.force(false);
+      }
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to force the log to disk.");
+    }
+  }
+
+  private void write(List<ByteBuffer> run) throws IOException {
+    if (run.isEmpty()) {
+      return;
+    }
+    final ByteBuffer[] buffers = run.toArray(new ByteBuffer[run.size()]);
+    while (buffers[buffers.length - 1].hasRemaining()) {
+      file.write(buffers);
+    }
+  }
+
+  // REPLAY
+  //
+  // Apply every whole record in a segment to "controller" and return how many
+  // there were. Anything after the last whole record is cut off.
+  private static int replay(File segment, RawController controller) throws IOException {
+
+    try (final FileChannel file = new RandomAccessFile(segment, "rw").getChannel()) {
+
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(file.position(0))));
+
+      long end = 0;
+      int count = 0;
+
+      while (true) {
+
+        final byte[] body;
+
+        try {
+          final int length = in.readInt();
+          final int expected = in.readInt();
+          if (length < 0 || length > file.size() - end - FRAME_HEADER_BYTES) {
+            break;
+          }
+          body = new byte[length];
+          in.readFully(body);
+          final CRC32 checksum = new CRC32();
+          checksum.update(body, 0, length);
+          if ((int) checksum.getValue() != expected) {
+            break;
+          }
+        } catch (EOFException ex) {
+          break;
+        }
+
+        apply(new BufferInputStream(ByteBuffer.wrap(body)), controller);
+
+        end += FRAME_HEADER_BYTES + body.length;
+        count++;
+      }
+
+      if (end < file.size()) {
+        LOG.warning("Dropping %d bytes of incomplete records from the end of %s.", file.size() - end, segment);
+        file.truncate(end);
+      }
+
+      return count;
+    }
+  }
+
+  private static void apply(InputStream in, RawController controller) throws IOException {
+
+    final int type = Serializers.INTEGER.read(in);
+
+    if (type == USER) {
+      controller.newUser(
+          Uuid.SERIALIZER.read(in),
+          Serializers.STRING.read(in),
+          Time.SERIALIZER.read(in));
+    } else if (type == CONVERSATION) {
+      controller.newConversation(
+          Uuid.SERIALIZER.read(in),
+          Serializers.STRING.read(in),
+          Uuid.SERIALIZER.read(in),
+          Time.SERIALIZER.read(in));
+    } else if (type == MESSAGE) {
+      controller.newMessage(
+          Uuid.SERIALIZER.read(in),
+          Uuid.SERIALIZER.read(in),
+          Uuid.SERIALIZER.read(in),
+          Serializers.STRING.read(in),
+          Time.SERIALIZER.read(in));
+    } else {
+      throw new IOException("Unknown record type " + type);
+    }
+  }
+}
@@ -0,0 +1,171 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// BUFFER INPUT STREAM
+//
+// An input stream over a byte buffer that buffer serializers can read from
+// directly. The buffer either already holds everything there is to read or
+// is filled from another stream as more bytes are needed.
+//
+// When a value is read with "read(BufferSerializer)" and the buffer ends part
+// way through it, the buffer is filled and the value is read again from the
+// start. Nothing is copied until the value itself is built.
+//
+// Values are read with the stream's wire, which is the standard wire unless
+// another one is given.
+public class BufferInputStream extends InputStream {
+
+  private static final int INITIAL_CAPACITY = 8 * 1024;
+
+  private final InputStream source;
+
+  // If true, only one byte is taken from the source at a time.
+  private final boolean exact;
+
+  private ByteBuffer buffer;
+  private Wire wire;
+
+  // BUFFER INPUT STREAM
+  //
+  // Read only the bytes between the buffer's position and its limit.
+  public BufferInputStream(ByteBuffer buffer) {
+    this(buffer, Wire.STANDARD);
+  }
+
+  public BufferInputStream(ByteBuffer buffer, Wire wire) {
+    this.source = null;
+    this.exact = false;
+    this.buffer = buffer;
+    this.wire = wire;
+  }
+
+  // BUFFER INPUT STREAM
+  //
+  // Read everything from "source", taking in as many bytes as it has ready
+  // each time that more are needed.
+  public BufferInputStream(InputStream source) {
+    this(source, INITIAL_CAPACITY, false);
+  }
+
+  private BufferInputStream(InputStream source, int capacity, boolean exact) {
+    this.source = source;
+    this.exact = exact;
+    this.buffer = ByteBuffer.allocate(capacity);
+    this.buffer.flip();
+    this.wire = Wire.STANDARD;
+  }
+
+  // READ
+  //
+  // Read a single value from "in" using a buffer serializer. Streams that are
+  // not buffer input streams are read from one byte at a time so that no
+  // bytes past the end of the value are taken from them.
+  public static <T> T read(InputStream in, BufferSerializer<T> serializer) throws IOException {
+    final BufferInputStream buffered = in instanceof BufferInputStream ?
+        (BufferInputStream) in :
+        new BufferInputStream(in, 64, true);
+    return buffered.read(serializer);
+  }
+
+  public <T> T read(BufferSerializer<T> serializer) throws IOException {
+    while (true) {
+      final int start = buffer.position();
+      final Wire before = wire.copy();
+      try {
+        return serializer.read(buffer, wire);
+      } catch (BufferUnderflowException ex) {
+        buffer.position(start);
+        wire = before;
+        if (!fill()) {
+          onEnd();
+          throw new EOFException("Stream ended part way through a value");
+        }
+      }
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!buffer.hasRemaining() && !fill()) {
+      onEnd();
+      return -1;
+    }
+    return buffer.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (!buffer.hasRemaining() && !fill()) {
+      onEnd();
+      return -1;
+    }
+    final int count = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, count);
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+
+  // ON END
+  //
+  // Called when a reader needs more bytes than there will ever be. By default
+  // the stream just ends, but subclasses can throw something more meaningful.
+  protected void onEnd() throws IOException { }
+
+  // FILL
+  //
+  // Add more bytes from the source to the end of the buffer, keeping every
+  // byte from the current position on. Returns false if there are no more.
+  private boolean fill() throws IOException {
+
+    if (source == null) {
+      return false;
+    }
+
+    buffer.compact();
+
+    if (!buffer.hasRemaining()) {
+      final ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+      buffer.flip();
+      larger.put(buffer);
+      buffer = larger;
+    }
+
+    final int count = source.read(
+        buffer.array(),
+        buffer.arrayOffset() + buffer.position(),
+        exact ? 1 : buffer.remaining());
+
+    if (count > 0) {
+      buffer.position(buffer.position() + count);
+    }
+
+    buffer.flip();
+    return count > 0;
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+// BUFFER OUTPUT STREAM
+//
+// An output stream that collects everything written to it in a buffer taken
+// from a pool. When there is no room left, the bytes are moved to a larger
+// buffer from the same pool. Once writing is done, "finish" gives the bytes
+// back as a buffer ready to be sent and "release" returns that buffer to the
+// pool.
+//
+// Values are written with the stream's wire, which is the standard wire
+// unless another one is given.
+public final class BufferOutputStream extends OutputStream {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private final BufferPool pool;
+  private ByteBuffer buffer;
+  private Wire wire;
+
+  public BufferOutputStream(BufferPool pool) {
+    this(pool, Wire.STANDARD);
+  }
+
+  public BufferOutputStream(BufferPool pool, Wire wire) {
+    this.pool = pool;
+    this.buffer = pool.acquire(INITIAL_CAPACITY);
+    this.wire = wire;
+  }
+
+  @Override
+  public void write(int value) {
+    ensure(1);
+    buffer.put((byte) value);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) {
+    ensure(length);
+    buffer.put(bytes, offset, length);
+  }
+
+  // WRITE
+  //
+  // Write a value straight into the stream's buffer. If it does not fit, the
+  // buffer is grown and the value is written again.
+  public <T> void write(BufferSerializer<T> serializer, T value) throws IOException {
+    while (true) {
+      final int start = buffer.position();
+      final Wire before = wire.copy();
+      try {
+        serializer.write(buffer, value, wire);
+        return;
+      } catch (BufferOverflowException ex) {
+        buffer.position(start);
+        wire = before;
+        ensure(buffer.remaining() + 1);
+      }
+    }
+  }
+
+  public int size() {
+    return buffer.position();
+  }
+
+  // FINISH
+  //
+  // Get all the bytes that were written, ready to be read from. Nothing
+  // should be written to the stream after it has been finished.
+  public ByteBuffer finish() {
+    buffer.flip();
+    return buffer;
+  }
+
+  // RELEASE
+  //
+  // Return the stream's buffer to its pool. Neither the stream nor the buffer
+  // returned by "finish" can be used after this.
+  public void release() {
+    pool.release(buffer);
+    buffer = null;
+  }
+
+  private void ensure(int count) {
+    if (buffer.remaining() < count) {
+      final ByteBuffer larger = pool.acquire(Math.max(buffer.capacity() * 2, buffer.position() + count));
+      buffer.flip();
+      larger.put(buffer);
+      pool.release(buffer);
+      buffer = larger;
+    }
+  }
+}
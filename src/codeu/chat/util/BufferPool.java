@@ -0,0 +1,96 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// BUFFER POOL
+//
+// Hands out direct byte buffers and takes them back once they are no longer
+// needed so that framing every request and response does not allocate. The
+// capacity of every pooled buffer is a power of two. Requests for buffers
+// larger than the largest pooled size are allocated on the heap and are never
+// kept. Buffers that the pool did not hand out are ignored by "release".
+//
+// A pool can be shared by any number of threads.
+public final class BufferPool {
+
+  private static final int MIN_SHIFT = 8;   // 256 bytes
+  private static final int MAX_SHIFT = 20;  // 1 MiB
+
+  private final List<BlockingQueue<ByteBuffer>> free = new ArrayList<>();
+
+  // BUFFER POOL
+  //
+  // "maxPerSize" is the most buffers of each size that will be held while
+  // not in use. Any buffers released after that are left for the garbage
+  // collector.
+  public BufferPool(int maxPerSize) {
+    for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+      free.add(new ArrayBlockingQueue<ByteBuffer>(Math.max(1, maxPerSize)));
+    }
+  }
+
+  // ACQUIRE
+  //
+  // Get an empty buffer that can hold at least "capacity" bytes.
+  public ByteBuffer acquire(int capacity) {
+
+    final int shift = shiftFor(capacity);
+
+    if (shift > MAX_SHIFT) {
+      return ByteBuffer.allocate(capacity);
+    }
+
+    final ByteBuffer pooled = free.get(shift - MIN_SHIFT).poll();
+
+    if (pooled == null) {
+      return ByteBuffer.allocateDirect(1 << shift);
+    }
+
+    pooled.clear();
+    return pooled;
+  }
+
+  // RELEASE
+  //
+  // Give a buffer back to the pool. The buffer must not be used after it has
+  // been released.
+  public void release(ByteBuffer buffer) {
+
+    if (buffer == null || !buffer.isDirect()) {
+      return;
+    }
+
+    final int capacity = buffer.capacity();
+    final int shift = shiftFor(capacity);
+
+    if (capacity == (1 << shift) && shift >= MIN_SHIFT && shift <= MAX_SHIFT) {
+      free.get(shift - MIN_SHIFT).offer(buffer);
+    }
+  }
+
+  private static int shiftFor(int capacity) {
+    int shift = MIN_SHIFT;
+    while (shift <= MAX_SHIFT && (1 << shift) < capacity) {
+      shift++;
+    }
+    return shift;
+  }
+}
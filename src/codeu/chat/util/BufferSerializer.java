@@ -0,0 +1,42 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// BUFFER SERIALIZER
+//
+// The same contract as Serializer but working directly on byte buffers so
+// that values can be written into and read out of pooled or memory-mapped
+// buffers without being copied through streams.
+//
+// Writing starts at the buffer's position and leaves the position after the
+// last byte written. If the value does not fit, a BufferOverflowException is
+// thrown and the caller may try again with a larger buffer. Reading works the
+// same way - if the buffer ends part way through the value, a
+// BufferUnderflowException is thrown and the caller may try again once more
+// bytes are available. In both cases the position is left wherever the
+// failure happened, so callers that want to retry must reset it themselves.
+//
+// The wire decides how numbers, lengths, times and ids are laid out. A value
+// must be read with the same kind of wire that it was written with.
+public interface BufferSerializer<T> {
+
+  void write(ByteBuffer out, T value, Wire wire) throws IOException;
+
+  T read(ByteBuffer in, Wire wire) throws IOException;
+
+}
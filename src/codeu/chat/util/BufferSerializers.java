@@ -0,0 +1,186 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+
+// BUFFER SERIALIZERS
+//
+// The byte buffer versions of the serializers in Serializers. On the standard
+// wire the bytes they produce are exactly the same as the stream versions so
+// either can be used to read what the other wrote.
+public final class BufferSerializers {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  public static final BufferSerializer<Boolean> BOOLEAN = new BufferSerializer<Boolean>() {
+
+    @Override
+    public void write(ByteBuffer out, Boolean value, Wire wire) {
+      out.put((byte) (value ? 1 : 0));
+    }
+
+    @Override
+    public Boolean read(ByteBuffer in, Wire wire) {
+      return in.get() != 0;
+    }
+  };
+
+  public static final BufferSerializer<Integer> INTEGER = new BufferSerializer<Integer>() {
+
+    @Override
+    public void write(ByteBuffer out, Integer value, Wire wire) {
+      wire.putInt(out, value);
+    }
+
+    @Override
+    public Integer read(ByteBuffer in, Wire wire) throws IOException {
+      return wire.getInt(in);
+    }
+  };
+
+  public static final BufferSerializer<Long> LONG = new BufferSerializer<Long>() {
+
+    @Override
+    public void write(ByteBuffer out, Long value, Wire wire) {
+      wire.putLong(out, value);
+    }
+
+    @Override
+    public Long read(ByteBuffer in, Wire wire) throws IOException {
+      return wire.getLong(in);
+    }
+  };
+
+  public static final BufferSerializer<byte[]> BYTES = new BufferSerializer<byte[]>() {
+
+    @Override
+    public void write(ByteBuffer out, byte[] value, Wire wire) {
+      wire.putLength(out, value.length);
+      out.put(value);
+    }
+
+    @Override
+    public byte[] read(ByteBuffer in, Wire wire) throws IOException {
+      final byte[] array = new byte[length(in, wire)];
+      in.get(array);
+      return array;
+    }
+  };
+
+  // STRING
+  //
+  // Strings are always sent as UTF-8. When reading, the characters are
+  // decoded straight out of the buffer - from its backing array if it has one
+  // or from a view of the buffer's memory if it is direct.
+  public static final BufferSerializer<String> STRING = new BufferSerializer<String>() {
+
+    @Override
+    public void write(ByteBuffer out, String value, Wire wire) {
+      final byte[] bytes = value.getBytes(UTF_8);
+      wire.putLength(out, bytes.length);
+      out.put(bytes);
+    }
+
+    @Override
+    public String read(ByteBuffer in, Wire wire) throws IOException {
+
+      final int length = length(in, wire);
+      final int start = in.position();
+
+      final String value;
+
+      if (in.hasArray()) {
+        value = new String(in.array(), in.arrayOffset() + start, length, UTF_8);
+      } else {
+        final ByteBuffer view = in.duplicate();
+        view.limit(start + length);
+        value = UTF_8.decode(view).toString();
+      }
+
+      in.position(start + length);
+      return value;
+    }
+  };
+
+  public static <T> BufferSerializer<Collection<T>> collection(final BufferSerializer<T> serializer) {
+
+    return new BufferSerializer<Collection<T>>() {
+
+      @Override
+      public void write(ByteBuffer out, Collection<T> value, Wire wire) throws IOException {
+        wire.putLength(out, value.size());
+        for (final T x : value) {
+          serializer.write(out, x, wire);
+        }
+      }
+
+      @Override
+      public Collection<T> read(ByteBuffer in, Wire wire) throws IOException {
+        final int size = wire.getLength(in);
+        // Every value takes at least one byte so do not trust a size that
+        // could not possibly fit in what is left of the buffer when deciding
+        // how much room to make.
+        final Collection<T> list = new ArrayList<>(Math.min(size, in.remaining()));
+        for (int i = 0; i < size; i++) {
+          list.add(serializer.read(in, wire));
+        }
+        return list;
+      }
+    };
+  }
+
+  public static <T> BufferSerializer<T> nullable(final BufferSerializer<T> serializer) {
+
+    final byte NO_VALUE = 0x00;
+    final byte YES_VALUE = (byte) 0xFF;
+
+    return new BufferSerializer<T>() {
+
+      @Override
+      public void write(ByteBuffer out, T value, Wire wire) throws IOException {
+        if (value == null) {
+          out.put(NO_VALUE);
+        } else {
+          out.put(YES_VALUE);
+          serializer.write(out, value, wire);
+        }
+      }
+
+      @Override
+      public T read(ByteBuffer in, Wire wire) throws IOException {
+        return in.get() == NO_VALUE ? null : serializer.read(in, wire);
+      }
+    };
+  }
+
+  // LENGTH
+  //
+  // Read the length that comes before an array of bytes. A length longer than
+  // what is left in the buffer is not an error as the rest of the bytes may
+  // not have arrived yet.
+  private static int length(ByteBuffer in, Wire wire) throws IOException {
+    final int length = wire.getLength(in);
+    if (length > in.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    return length;
+  }
+}
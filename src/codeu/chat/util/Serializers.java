@@ -17,115 +17,78 @@ package codeu.chat.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 
 public final class Serializers {
 
-  public static final Serializer<Boolean> BOOLEAN = new Serializer<Boolean>() {
+  public static final Serializer<Boolean> BOOLEAN = adapt(BufferSerializers.BOOLEAN);
 
-    @Override
-    public void write(OutputStream out, Boolean value) throws IOException {
-      out.write(value ? 1 : 0);
-    }
+  public static final Serializer<Integer> INTEGER = adapt(BufferSerializers.INTEGER);
 
-    @Override
-    public Boolean read(InputStream in) throws IOException {
-      return in.read() != 0;
-    }
-  };
+  public static final Serializer<Long> LONG = adapt(BufferSerializers.LONG);
 
-  public static final Serializer<Integer> INTEGER = new Serializer<Integer>() {
+  public static final Serializer<byte[]> BYTES = adapt(BufferSerializers.BYTES);
 
-    @Override
-    public void write(OutputStream out, Integer value) throws IOException {
+  public static final Serializer<String> STRING = adapt(BufferSerializers.STRING);
 
-      for (int i = 24; i >= 0; i -= 8) {
-        out.write(0xFF & (value >>> i));
-      }
-
-    }
+  // Values written to streams that are not buffer output streams are put
+  // together in this buffer first. Each thread keeps its own so that it can
+  // be reused without locking.
+  private static final int MAX_SCRATCH_BYTES = 64 * 1024;
 
+  private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>() {
     @Override
-    public Integer read(InputStream in) throws IOException {
-
-      int value = 0;
-
-      for (int i = 0; i < 4; i++) {
-        value = (value << 8) | in.read();
-      }
-
-      return value;
-
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocate(256);
     }
   };
 
-  public static final Serializer<Long> LONG = new Serializer<Long>() {
-
-    @Override
-    public void write(OutputStream out, Long value) throws IOException {
-
-      for (int i = 56; i >= 0; i -= 8) {
-        out.write((int)(0xFF & (value >>> i)));
-      }
-
-    }
-
-    @Override
-    public Long read(InputStream in) throws IOException {
-
-      long value = 0;
-
-      for (int i = 0; i < 8; i++) {
-        value = (value << 8) | in.read();
-      }
-
-      return value;
-
-    }
-  };
+  // ADAPT
+  //
+  // Make a stream serializer from a buffer serializer. Values read from a
+  // BufferInputStream or written to a BufferOutputStream go straight to or
+  // from the stream's buffer. Any other stream still works, just with an
+  // extra copy and always on the standard wire.
+  public static <T> Serializer<T> adapt(final BufferSerializer<T> serializer) {
 
-  public static final Serializer<byte[]> BYTES = new Serializer<byte[]>() {
+    return new Serializer<T>() {
 
-    @Override
-    public void write(OutputStream out, byte[] value) throws IOException {
+      @Override
+      public void write(OutputStream out, T value) throws IOException {
 
-      INTEGER.write(out, value.length);
-      out.write(value);
+        if (out instanceof BufferOutputStream) {
+          ((BufferOutputStream) out).write(serializer, value);
+          return;
+        }
 
-    }
+        ByteBuffer scratch = SCRATCH.get();
 
-    @Override
-    public byte[] read(InputStream input) throws IOException {
+        while (true) {
+          scratch.clear();
+          try {
+            serializer.write(scratch, value, Wire.STANDARD);
+            break;
+          } catch (BufferOverflowException ex) {
+            scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+          }
+        }
 
-      final int length = INTEGER.read(input);
-      final byte[] array = new byte[length];
+        out.write(scratch.array(), scratch.arrayOffset(), scratch.position());
 
-      for (int i = 0; i < length; i++) {
-        array[i] = (byte)input.read();
+        if (scratch.capacity() <= MAX_SCRATCH_BYTES) {
+          SCRATCH.set(scratch);
+        }
       }
 
-      return array;
-
-    }
-  };
-
-  public static final Serializer<String> STRING = new Serializer<String>() {
-
-    @Override
-    public void write(OutputStream out, String value) throws IOException {
-
-      BYTES.write(out, value.getBytes());
-
-    }
-
-    @Override
-    public String read(InputStream input) throws IOException {
-
-      return new String(BYTES.read(input));
-
-    }
-  };
+      @Override
+      public T read(InputStream in) throws IOException {
+        return BufferInputStream.read(in, serializer);
+      }
+    };
+  }
 
   public static <T> Serializer<Collection<T>> collection(final Serializer<T> serializer) {
 
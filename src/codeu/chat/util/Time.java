@@ -15,30 +15,44 @@
 package codeu.chat.util;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public final class Time implements Comparable<Time> {
 
-  public static final Serializer<Time> SERIALIZER = new Serializer<Time>() {
+  // On the compact wire each time is sent as the difference from the last
+  // time sent on the same wire. Times sent together tend to be close to each
+  // other so the difference is usually much smaller than the time itself.
+  public static final BufferSerializer<Time> BUFFER_SERIALIZER = new BufferSerializer<Time>() {
 
     @Override
-    public void write(OutputStream out, Time value) throws IOException {
+    public void write(ByteBuffer out, Time value, Wire wire) {
 
-      Serializers.LONG.write(out, value.inMs());
+      if (wire.isCompact()) {
+        wire.putLong(out, value.inMs() - wire.lastTime);
+        wire.lastTime = value.inMs();
+      } else {
+        out.putLong(value.inMs());
+      }
 
     }
 
     @Override
-    public Time read(InputStream in) throws IOException {
+    public Time read(ByteBuffer in, Wire wire) throws IOException {
 
-      return Time.fromMs(Serializers.LONG.read(in));
+      if (wire.isCompact()) {
+        wire.lastTime += wire.getLong(in);
+        return Time.fromMs(wire.lastTime);
+      }
+
+      return Time.fromMs(in.getLong());
 
     }
   };
 
+  public static final Serializer<Time> SERIALIZER = Serializers.adapt(BUFFER_SERIALIZER);
+
   private static final SimpleDateFormat formatter =
       new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss.SSS");
 
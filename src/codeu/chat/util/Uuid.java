@@ -16,18 +16,28 @@ package codeu.chat.util;
 
 import java.lang.StringBuilder;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Objects;
+import java.nio.ByteBuffer;
 
 public final class Uuid {
 
   public static final Uuid NULL = new Uuid(0);
 
-  public static final Serializer<Uuid> SERIALIZER = new Serializer<Uuid>() {
+  // On the compact wire a Uuid starts with a tag. If the lowest bit of the tag
+  // is set, the Uuid has the same root as the last Uuid that had a root and
+  // only its own id follows. Otherwise the rest of the tag is the length of
+  // the chain and every id in the chain follows, just like the standard wire.
+  public static final BufferSerializer<Uuid> BUFFER_SERIALIZER = new BufferSerializer<Uuid>() {
 
     @Override
-    public void write(OutputStream out, Uuid value) throws IOException {
+    public void write(ByteBuffer out, Uuid value, Wire wire) throws IOException {
+
+      final Uuid root = value == null ? null : value.root();
+
+      if (wire.isCompact() && root != null && root.equals(wire.lastRoot)) {
+        wire.putLength(out, 1);
+        wire.putInt(out, value.id());
+        return;
+      }
 
       int length = 0;
       for (Uuid current = value; current != null; current = current.root()) {
@@ -37,27 +47,50 @@ public final class Uuid {
       // To make things easy, limit the max length to be 255. It should be unlikely
       // that this limit will ever be reached as most chains should be less than
       // three long.
-      if (length >= 0 && length <= 255) {
-        out.write(length);
-      } else {
+      if (length < 0 || length > 255) {
         throw new IOException("Max supported Uuid chain length is 255");
+      } else if (wire.isCompact()) {
+        wire.putLength(out, length << 1);
+      } else {
+        out.put((byte) length);
       }
 
       for (Uuid current = value; current != null; current = current.root()) {
-        Serializers.INTEGER.write(out, current.id());
+        wire.putInt(out, current.id());
+      }
+
+      if (root != null) {
+        wire.lastRoot = root;
       }
     }
 
     @Override
-    public Uuid read(InputStream in) throws IOException {
+    public Uuid read(ByteBuffer in, Wire wire) throws IOException {
+
+      final int length;
+
+      if (wire.isCompact()) {
+        final int tag = wire.getLength(in);
+        if ((tag & 1) != 0) {
+          if (wire.lastRoot == null) {
+            throw new IOException("Uuid refers to a root that was never sent");
+          }
+          return new Uuid(wire.lastRoot, wire.getInt(in));
+        }
+        length = tag >>> 1;
+        if (length > 255) {
+          throw new IOException("Max supported Uuid chain length is 255");
+        }
+      } else {
+        // The length is a single unsigned byte so there is no need to check
+        // that the bounds of 0 to 255 is respected.
+        length = in.get() & 0xFF;
+      }
 
-      // "input.read" can only return one by of data so there is no need
-      // to check that the bounds of 0 to 255 is respected.
-      final int length = in.read();
       final int[] chain = new int[length];
 
       for (int i = 0; i < length; i++) {
-        chain[i] = Serializers.INTEGER.read(in);
+        chain[i] = wire.getInt(in);
       }
 
       Uuid head = null;
@@ -66,10 +99,15 @@ public final class Uuid {
         head = new Uuid(head, chain[i]);
       }
 
+      if (head != null && head.root() != null) {
+        wire.lastRoot = head.root();
+      }
+
       return head;
     }
   };
 
+  public static final Serializer<Uuid> SERIALIZER = Serializers.adapt(BUFFER_SERIALIZER);
 
   // GENERATOR
   //
@@ -88,14 +126,20 @@ public final class Uuid {
   private final Uuid root;
   private final int id;
 
+  // Uuids are used as keys in hash stores so the hash of the whole chain is
+  // worked out once, from the hash of the root, rather than on every lookup.
+  private final int hash;
+
   public Uuid(Uuid root, int id) {
     this.root = root;
     this.id = id;
+    this.hash = hash(root, id);
   }
 
   public Uuid(int id) {
     this.root = null;
     this.id = id;
+    this.hash = hash(null, id);
   }
 
   public Uuid root() {
@@ -112,7 +156,7 @@ public final class Uuid {
   }
 
   @Override
-  public int hashCode() { return hash(this); }
+  public int hashCode() { return hash; }
 
   @Override
   public String toString() {
@@ -136,31 +180,30 @@ public final class Uuid {
       return true;
     }
 
-    if (a == null && b != null) {
-      return false;
-    }
-
-    if (a != null && b == null) {
+    if (a == null || b == null || a.hash != b.hash) {
       return false;
     }
 
     // Check id before checking the root as the ids are more likely to differ
     // and will short-circuit the logic preventing us from wasting time checking
-    // the full chain.
-    return a.id() == b.id() && equals(a.root(), b.root());
+    // the full chain. Stop as soon as both chains share the same root.
+    while (a != b) {
+      if (a == null || b == null || a.id() != b.id()) {
+        return false;
+      }
+      a = a.root();
+      b = b.root();
+    }
 
+    return true;
   }
 
-  // Compute a hash code for the Uuids by walking up the chain.
-  private static int hash(Uuid id) {
-
-    int hash = 0;
-
-    for (Uuid current = id; current != null; current = current.root()) {
-      hash ^= Objects.hash(current.id());
-    }
-
-    return hash;
+  // Compute a hash code for a Uuid from the hash of its root and its own id.
+  // The id is mixed so that ids that only differ in their high bits still
+  // spread across a hash table.
+  private static int hash(Uuid root, int id) {
+    final int mixed = id * 0x9E3779B9;
+    return (root == null ? 0 : root.hash * 31) + (mixed ^ (mixed >>> 16));
   }
 
   // Compute human-readable representation for Uuids
@@ -0,0 +1,147 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// WIRE
+//
+// How values are laid out in bytes. The standard wire uses fixed-size,
+// big-endian numbers and is what every connection uses unless both ends
+// agree on something else.
+//
+// The compact wire uses variable length numbers so that small values take
+// fewer bytes. Signed numbers are zigzag encoded first so that small negative
+// numbers are small too. It also remembers some of what was already written
+// so that later values can be sent as a difference from it:
+//
+//   - Each time is sent as the difference from the time before it.
+//   - A Uuid whose root is the same as the root of the last Uuid is sent as
+//     just its last link.
+//
+// This means that a compact wire has state and both ends have to see the
+// same values in the same order. Each request and each response gets a new
+// compact wire.
+public final class Wire {
+
+  public static final Wire STANDARD = new Wire(false);
+
+  private final boolean compact;
+
+  // What the compact wire remembers. Only Time and Uuid use these.
+  long lastTime = 0;
+  Uuid lastRoot = null;
+
+  private Wire(boolean compact) {
+    this.compact = compact;
+  }
+
+  public static Wire compact() {
+    return new Wire(true);
+  }
+
+  public boolean isCompact() {
+    return compact;
+  }
+
+  // COPY
+  //
+  // Get a wire that remembers what this one remembers now. Used to undo what
+  // a failed attempt to read or write a value did to the wire.
+  public Wire copy() {
+    if (!compact) {
+      return this;
+    }
+    final Wire copy = new Wire(true);
+    copy.lastTime = lastTime;
+    copy.lastRoot = lastRoot;
+    return copy;
+  }
+
+  public void putInt(ByteBuffer out, int value) {
+    if (compact) {
+      putVarLong(out, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    } else {
+      out.putInt(value);
+    }
+  }
+
+  public int getInt(ByteBuffer in) throws IOException {
+    if (compact) {
+      final int value = (int) getVarLong(in);
+      return (value >>> 1) ^ -(value & 1);
+    }
+    return in.getInt();
+  }
+
+  public void putLong(ByteBuffer out, long value) {
+    if (compact) {
+      putVarLong(out, (value << 1) ^ (value >> 63));
+    } else {
+      out.putLong(value);
+    }
+  }
+
+  public long getLong(ByteBuffer in) throws IOException {
+    if (compact) {
+      final long value = getVarLong(in);
+      return (value >>> 1) ^ -(value & 1);
+    }
+    return in.getLong();
+  }
+
+  // PUT LENGTH
+  //
+  // Lengths and sizes are never negative so the compact wire does not need
+  // to zigzag them.
+  public void putLength(ByteBuffer out, int length) {
+    if (compact) {
+      putVarLong(out, length);
+    } else {
+      out.putInt(length);
+    }
+  }
+
+  public int getLength(ByteBuffer in) throws IOException {
+    final long length = compact ? getVarLong(in) : in.getInt();
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IOException("Bad length " + length);
+    }
+    return (int) length;
+  }
+
+  // Seven bits at a time, lowest first, with the top bit of each byte set if
+  // more bytes follow.
+  private static void putVarLong(ByteBuffer out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte) value);
+  }
+
+  private static long getVarLong(ByteBuffer in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Variable length number is too long");
+  }
+}
@@ -0,0 +1,36 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.nio.ByteBuffer;
+
+// FRAME
+//
+// Every request and response sent over a multiplexed socket is a frame: the
+// request id, the number of bytes in the payload, and then the payload. The
+// header is kept in its own buffer so that the payload can be written without
+// being copied by writing both buffers with a single gathering write.
+final class Frame {
+
+  public static final int HEADER_BYTES = 8;
+
+  public static ByteBuffer header(int id, int length) {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(id);
+    header.putInt(length);
+    header.flip();
+    return header;
+  }
+}
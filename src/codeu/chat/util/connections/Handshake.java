@@ -0,0 +1,74 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.nio.ByteBuffer;
+
+import codeu.chat.common.NetworkCode;
+
+// HANDSHAKE
+//
+// The first request a client sends when it wants more than one request per
+// socket. It is laid out like any other request on the standard wire so that
+// a server that does not know about it can still answer it, even if only to
+// say that it does not know what it is:
+//
+//   request  : [int REQUEST]  [int version] [int features wanted]
+//   response : [int RESPONSE] [int version] [int features granted]
+//
+// The version in the response is the highest version that both sides know.
+// Only the features granted in the response may be used. If the server does
+// not grant MULTIPLEX, it closes the socket after answering, just like any
+// other legacy request, and the client should go back to sending one request
+// per socket.
+public final class Handshake {
+
+  public static final int REQUEST = NetworkCode.HANDSHAKE_REQUEST;
+  public static final int RESPONSE = NetworkCode.HANDSHAKE_RESPONSE;
+
+  public static final int VERSION = 1;
+
+  public static final int BYTES = 12;
+
+  // FEATURES
+  //
+  //   MULTIPLEX   : The socket stays open and carries request and response
+  //                 frames. Any number of requests can be in flight at once.
+  //   COMPACT     : Frames are written on the compact wire. Only used along
+  //                 with MULTIPLEX.
+  //   COMPRESSION : Reserved. No server grants it yet.
+  public static final int MULTIPLEX = 0x1;
+  public static final int COMPACT = 0x2;
+  public static final int COMPRESSION = 0x4;
+
+  private Handshake() { }
+
+  public static ByteBuffer request(int version, int features) {
+    return message(REQUEST, version, features);
+  }
+
+  public static ByteBuffer response(int version, int features) {
+    return message(RESPONSE, version, features);
+  }
+
+  private static ByteBuffer message(int type, int version, int features) {
+    final ByteBuffer message = ByteBuffer.allocate(BYTES);
+    message.putInt(type);
+    message.putInt(version);
+    message.putInt(features);
+    message.flip();
+    return message;
+  }
+}
@@ -0,0 +1,31 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.EOFException;
+
+// INCOMPLETE REQUEST EXCEPTION
+//
+// Thrown by connections that only hold the bytes that have been received so
+// far when a reader asks for more than has arrived. It is not an error - it
+// means that the request should be read again once more of it has arrived.
+public final class IncompleteRequestException extends EOFException {
+
+  private static final long serialVersionUID = 1L;
+
+  public IncompleteRequestException() {
+    super("Request has not been fully received");
+  }
+}
@@ -0,0 +1,444 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import codeu.chat.util.BufferInputStream;
+import codeu.chat.util.BufferOutputStream;
+import codeu.chat.util.BufferPool;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Wire;
+
+// MULTIPLEXED CONNECTION SOURCE
+//
+// Implements the ConnectionSource interface for clients that want to send
+// all of their requests over a single long-lived socket. Each connection
+// returned from "connect" is one request. Its request is sent as a frame,
+// tagged with a request id, the first time that "in" is called and "in" then
+// waits for the response frame with the same id. Any number of requests can
+// be waiting at the same time and their responses can arrive in any order.
+//
+// If the socket fails, every waiting request fails and the next call to
+// "connect" opens a new socket.
+//
+// Every new socket starts with a Handshake. If the server does not grant
+// MULTIPLEX - because it is an older server or because its connection source
+// cannot multiplex - this source falls back to sending each request over its
+// own socket, the same as a ClientConnectionSource. A handshake can also fail
+// because of a brief problem with the network or the server, so after a while
+// the next request tries the handshake again.
+public final class MultiplexedConnectionSource implements ConnectionSource {
+
+  private final static Logger.Log LOG = Logger.newLog(MultiplexedConnectionSource.class);
+
+  // How long to send requests one per socket before asking the server to
+  // multiplex again.
+  private static final long RETRY_MS = 60 * 1000;  // 1 minute
+
+  private final String host;
+  private final int port;
+  private final int features;
+  private final long retryMs;
+
+  private final AtomicInteger nextId = new AtomicInteger(0);
+
+  // Requests are written into buffers from this pool and the buffers are
+  // given back as soon as the request has been sent.
+  private final BufferPool pool = new BufferPool(16);
+
+  private Channel channel = null;
+
+  // Set while the server is treated as having turned down MULTIPLEX, until
+  // "retryAt".
+  private ConnectionSource legacy = null;
+  private long retryAt = 0;
+
+  public MultiplexedConnectionSource(String host, int port) {
+    this(host, port, Handshake.MULTIPLEX | Handshake.COMPACT);
+  }
+
+  // MULTIPLEXED CONNECTION SOURCE
+  //
+  // "features" are the Handshake features to ask the server for. Without
+  // MULTIPLEX every request will be sent over its own socket.
+  public MultiplexedConnectionSource(String host, int port, int features) {
+    this(host, port, features, RETRY_MS);
+  }
+
+  MultiplexedConnectionSource(String host, int port, int features, long retryMs) {
+    this.host = host;
+    this.port = port;
+    this.features = features;
+    this.retryMs = retryMs;
+  }
+
+  @Override
+  public Connection connect() throws IOException {
+
+    final Channel current;
+    final ConnectionSource fallback;
+    synchronized (this) {
+      current = open();
+      fallback = legacy;
+    }
+
+    return current == null ?
+        fallback.connect() :
+        new Call(current, nextId.incrementAndGet(), pool);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  // OPEN
+  //
+  // Get the socket that requests should be sent over, opening a new one if
+  // needed. Returns null if requests should go through "legacy" instead.
+  private synchronized Channel open() throws IOException {
+
+    if (legacy != null && System.currentTimeMillis() < retryAt) {
+      return null;
+    }
+
+    if (channel == null || channel.isClosed()) {
+
+      final SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port));
+
+      final int granted;
+      try {
+        granted = handshake(socket);
+      } catch (IOException ex) {
+        socket.close();
+        throw ex;
+      }
+
+      if ((granted & Handshake.MULTIPLEX) == 0) {
+        LOG.info("Server did not agree to multiplexing, using a socket per request for now.");
+        socket.close();
+        legacy = new ClientConnectionSource(host, port);
+        retryAt = System.currentTimeMillis() + retryMs;
+        return null;
+      }
+
+      channel = new Channel(socket, granted);
+      legacy = null;
+    }
+
+    return channel;
+  }
+
+  // HANDSHAKE
+  //
+  // Ask the server for "features" and return the ones that it granted. A
+  // server that does not know about the handshake will answer with some other
+  // response or just close the socket, which means nothing was granted.
+  private int handshake(SocketChannel socket) throws IOException {
+
+    final ByteBuffer request = Handshake.request(Handshake.VERSION, features);
+    while (request.hasRemaining()) {
+      socket.write(request);
+    }
+
+    final ByteBuffer response = ByteBuffer.allocate(Handshake.BYTES);
+    while (response.hasRemaining()) {
+      if (socket.read(response) < 0) {
+        // A legacy response is only four bytes long before the socket closes.
+        return 0;
+      }
+    }
+    response.flip();
+
+    final int type = response.getInt();
+    final int version = response.getInt();
+    final int granted = response.getInt();
+
+    if (type != Handshake.RESPONSE || version < 1 || version > Handshake.VERSION) {
+      return 0;
+    }
+
+    return granted & features;
+  }
+
+  // PENDING
+  //
+  // A request that has been sent and is waiting for its response.
+  private static final class Pending {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private byte[] response;
+    private IOException error;
+
+    public void complete(byte[] response) {
+      this.response = response;
+      done.countDown();
+    }
+
+    public void fail(IOException error) {
+      this.error = error;
+      done.countDown();
+    }
+
+    public byte[] await() throws IOException {
+      try {
+        done.await();
+      } catch (InterruptedException ex) {
+        throw new InterruptedIOException("Interrupted while waiting for response");
+      }
+      if (error != null) {
+        throw error;
+      }
+      return response;
+    }
+  }
+
+  // CHANNEL
+  //
+  // A single socket and the thread that reads responses off of it. Writes
+  // come from whichever thread is sending a request so they are synchronized
+  // on the socket. Each request goes out as one gathering write of its frame
+  // header and payload.
+  private static final class Channel {
+
+    private static final int INBOX_BYTES = 64 * 1024;
+
+    // The largest response that will be accepted. Anything claiming to be
+    // larger means the server and client no longer agree on where frames
+    // start.
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+
+    private final SocketChannel socket;
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+
+    private final boolean compact;
+
+    private volatile boolean closed = false;
+
+    // The reader pulls in as many bytes as are available at once and then
+    // takes every whole frame out of them. Only frames too large to fit in
+    // the inbox are read on their own.
+    private final Thread reader = new Thread() {
+      @Override
+      public void run() {
+
+        final ByteBuffer inbox = ByteBuffer.allocate(INBOX_BYTES);
+
+        try {
+          while (!closed && socket.read(inbox) >= 0) {
+
+            inbox.flip();
+
+            while (inbox.remaining() >= Frame.HEADER_BYTES) {
+
+              final int id = inbox.getInt(inbox.position());
+              final int length = inbox.getInt(inbox.position() + 4);
+
+              if (length < 0 || length > MAX_RESPONSE_BYTES) {
+                throw new IOException("Bad frame length " + length);
+              }
+
+              if (inbox.remaining() - Frame.HEADER_BYTES < length &&
+                  Frame.HEADER_BYTES + length <= inbox.capacity()) {
+                break;  // the rest of the frame will fit once it arrives
+              }
+
+              inbox.position(inbox.position() + Frame.HEADER_BYTES);
+
+              final byte[] response = new byte[length];
+              final int buffered = Math.min(length, inbox.remaining());
+              inbox.get(response, 0, buffered);
+              readFully(ByteBuffer.wrap(response, buffered, length - buffered));
+
+              deliver(id, response);
+            }
+
+            inbox.compact();
+          }
+        } catch (IOException ex) {
+          if (!closed) {
+            LOG.error(ex, "Connection to server lost.");
+          }
+        } finally {
+          // Whatever stopped the reader, no more responses will arrive so
+          // nothing can be left waiting for one.
+          close();
+        }
+      }
+    };
+
+    public Channel(SocketChannel socket, int granted) throws IOException {
+      this.socket = socket;
+      this.compact = (granted & Handshake.COMPACT) != 0;
+
+      // Each frame is written as soon as it is ready so there is nothing to
+      // gain from the socket waiting to fill a packet.
+      socket.socket().setTcpNoDelay(true);
+
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    public Pending send(int id, ByteBuffer payload) throws IOException {
+
+      final Pending waiting = new Pending();
+      pending.put(id, waiting);
+
+      // The reader may have failed everything that was waiting just before
+      // this request was added.
+      if (closed) {
+        pending.remove(id);
+        throw new IOException("Connection to server closed");
+      }
+
+      final ByteBuffer header = Frame.header(id, payload.remaining());
+      final ByteBuffer[] frame = { header, payload };
+
+      try {
+        synchronized (socket) {
+          // Loop on both buffers as an empty payload still has a header.
+          while (header.hasRemaining() || payload.hasRemaining()) {
+            socket.write(frame);
+          }
+        }
+      } catch (IOException ex) {
+        pending.remove(id);
+        close();
+        throw ex;
+      }
+
+      return waiting;
+    }
+
+    public boolean isClosed() {
+      return closed;
+    }
+
+    // WIRE
+    //
+    // Get a new wire for one request or response.
+    public Wire wire() {
+      return compact ? Wire.compact() : Wire.STANDARD;
+    }
+
+    public void close() {
+      closed = true;
+      try {
+        socket.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to close connection to server.");
+      }
+      fail(new IOException("Connection to server closed"));
+    }
+
+    private void deliver(int id, byte[] response) {
+      final Pending waiting = pending.remove(id);
+      if (waiting == null) {
+        LOG.warning("Response for unknown request %d", id);
+      } else {
+        waiting.complete(response);
+      }
+    }
+
+    private void fail(IOException error) {
+      closed = true;
+      for (final Integer id : pending.keySet()) {
+        final Pending waiting = pending.remove(id);
+        if (waiting != null) {
+          waiting.fail(error);
+        }
+      }
+    }
+
+    private void readFully(ByteBuffer target) throws IOException {
+      while (target.hasRemaining()) {
+        if (socket.read(target) < 0) {
+          throw new EOFException("Server closed connection mid-frame");
+        }
+      }
+    }
+  }
+
+  // CALL
+  //
+  // The connection given out by "connect". Everything written to "out" is
+  // the request. Calling "in" sends the request and waits for the response.
+  private static final class Call implements Connection {
+
+    private final Channel channel;
+    private final int id;
+
+    private final BufferOutputStream out;
+    private InputStream in = null;
+    private Pending waiting = null;
+
+    public Call(Channel channel, int id, BufferPool pool) {
+      this.channel = channel;
+      this.id = id;
+      this.out = new BufferOutputStream(pool, channel.wire());
+    }
+
+    @Override
+    public InputStream in() throws IOException {
+      if (in == null) {
+        in = new BufferInputStream(ByteBuffer.wrap(send().await()), channel.wire());
+      }
+      return in;
+    }
+
+    @Override
+    public OutputStream out() {
+      return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+      // If the request was never sent, send it now but do not wait for the
+      // response. The reader will drop the response when it arrives.
+      if (waiting == null && out.size() > 0) {
+        send();
+      } else if (waiting == null) {
+        out.release();
+      }
+    }
+
+    private Pending send() throws IOException {
+      if (waiting == null) {
+        try {
+          waiting = channel.send(id, out.finish());
+        } finally {
+          out.release();
+        }
+      }
+      return waiting;
+    }
+  }
+}
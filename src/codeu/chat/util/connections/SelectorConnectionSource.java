@@ -0,0 +1,647 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import codeu.chat.util.BufferInputStream;
+import codeu.chat.util.BufferOutputStream;
+import codeu.chat.util.BufferPool;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Wire;
+
+// SELECTOR CONNECTION SOURCE
+//
+// Implements the ConnectionSource interface for servers using non-blocking
+// channels. One thread accepts sockets and hands them to a small number of
+// event loops. Each loop reads from and writes to all of its sockets, so no
+// thread ever waits on a single slow client.
+//
+// Connections returned from "connect" only hold the bytes that the client has
+// sent so far, so reading from them never blocks. If a reader asks for more
+// bytes than have arrived, an IncompleteRequestException is thrown. Once that
+// connection is closed, the request is held until more bytes arrive and then
+// it is returned from "connect" again. Anything written to a connection is
+// sent by the event loop after the connection is closed.
+//
+// Every time a request is returned again it is read from its first byte, so a
+// client that sends a large request a few bytes at a time could make the
+// server read it over and over. After the first few tries a request is only
+// returned again once it has doubled in size since the last try, or once the
+// client has stopped sending for a moment, which is when a complete request
+// is waiting for its response.
+//
+// Clients that are granted MULTIPLEX in a Handshake keep their socket open and
+// send many framed requests over it. Each frame is returned from "connect" as
+// its own connection and its response is sent back in a frame with the same
+// id. Any other features that were granted, such as the compact wire, are
+// used for every frame on the socket.
+public final class SelectorConnectionSource implements ConnectionSource {
+
+  private final static Logger.Log LOG = Logger.newLog(SelectorConnectionSource.class);
+
+  // Stop a client from making the server buffer an unbounded amount of data
+  // for a single request.
+  private static final int MAX_REQUEST_BYTES = 16 * 1024 * 1024;
+
+  private static final int READ_BUFFER_BYTES = 16 * 1024;
+
+  private static final int ACCEPT_BACKLOG = 1024;
+
+  // How many times an incomplete request is returned again as soon as any
+  // more of it arrives, and how long its client must then go quiet before it
+  // is returned again without having doubled in size.
+  private static final int FREE_REPLAYS = 4;
+  private static final long REPLAY_DELAY_MS = 20;
+
+  // The most buffers that will be written in one gathering write.
+  private static final int MAX_GATHER = 64;
+
+  // The multiplexed features that this source agrees to.
+  private static final int SUPPORTED_FEATURES = Handshake.MULTIPLEX | Handshake.COMPACT;
+
+  private final BlockingQueue<Connection> ready = new LinkedBlockingQueue<>();
+
+  // Responses are written into buffers from this pool and the buffers are
+  // given back once the event loop has sent them.
+  private final BufferPool pool = new BufferPool(256);
+
+  private final ServerSocketChannel serverChannel;
+  private final Loop[] loops;
+
+  private volatile boolean running = true;
+
+  // This thread only accepts new sockets. As soon as a socket is accepted it
+  // is given to one of the event loops and never seen by this thread again.
+  private final Thread acceptor = new Thread() {
+    @Override
+    public void run() {
+      int next = 0;
+      while (running) {
+        try {
+          final SocketChannel channel = serverChannel.accept();
+          loops[next].register(channel);
+          next = (next + 1) % loops.length;
+        } catch (IOException ex) {
+          if (running) {
+            LOG.error(ex, "Failed to accept connection.");
+          }
+        }
+      }
+    }
+  };
+
+  private SelectorConnectionSource(ServerSocketChannel serverChannel, int loopCount) throws IOException {
+
+    this.serverChannel = serverChannel;
+    this.loops = new Loop[Math.max(1, loopCount)];
+
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new Loop(Selector.open());
+      loops[i].start();
+    }
+
+    acceptor.start();
+  }
+
+  @Override
+  public Connection connect() throws IOException {
+    try {
+      return ready.take();
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("Interrupted while waiting for a request");
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    running = false;
+    serverChannel.close();
+    for (final Loop loop : loops) {
+      loop.selector.wakeup();
+    }
+  }
+
+  // PORT
+  //
+  // The port that this source is accepting on. Useful when it was opened on
+  // port 0 and given any free port.
+  int port() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  public static ConnectionSource forPort(int port) throws IOException {
+    return forPort(port, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+  }
+
+  public static ConnectionSource forPort(int port, int loops) throws IOException {
+    final ServerSocketChannel channel = ServerSocketChannel.open();
+    channel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+    return new SelectorConnectionSource(channel, loops);
+  }
+
+  // LOOP
+  //
+  // An event loop that owns a selector and every socket registered with it.
+  // All state for a socket is only touched from its loop's thread. Other
+  // threads talk to the loop by giving it tasks to run.
+  private final class Loop extends Thread {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+
+    // Legacy requests that have more bytes than when they were last tried
+    // but are waiting for their client to go quiet before being tried again.
+    private final Set<Peer> waiting = new HashSet<>();
+
+    public Loop(Selector selector) {
+      this.selector = selector;
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          if (waiting.isEmpty()) {
+            selector.select();
+          } else {
+            selector.select(REPLAY_DELAY_MS);
+          }
+        } catch (IOException ex) {
+          LOG.error(ex, "Failed to select.");
+        }
+
+        for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+          task.run();
+        }
+
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+
+          final Peer peer = (Peer) key.attachment();
+
+          try {
+            if (key.isValid() && key.isReadable()) {
+              peer.onReadable(scratch);
+            }
+            if (key.isValid() && key.isWritable()) {
+              peer.onWritable();
+            }
+          } catch (IOException ex) {
+            LOG.error(ex, "Exception while talking to client.");
+            peer.close();
+          }
+        }
+
+        replayQuiet();
+      }
+
+      for (final SelectionKey key : selector.keys()) {
+        ((Peer) key.attachment()).close();
+      }
+
+      try {
+        selector.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to close selector.");
+      }
+    }
+
+    // REPLAY QUIET
+    //
+    // Try again every waiting request whose client has not sent anything for
+    // REPLAY_DELAY_MS.
+    private void replayQuiet() {
+      final long now = System.nanoTime();
+      final Iterator<Peer> peers = waiting.iterator();
+      while (peers.hasNext()) {
+        final Peer peer = peers.next();
+        if (now - peer.lastArrival >= REPLAY_DELAY_MS * 1000000L) {
+          peers.remove();
+          peer.dispatch();
+        }
+      }
+    }
+
+    public void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    public void register(final SocketChannel channel) {
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final Peer peer = new Peer(Loop.this, channel);
+            peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+          } catch (IOException ex) {
+            LOG.error(ex, "Failed to register connection.");
+            try {
+              channel.close();
+            } catch (IOException closeEx) {
+              LOG.error(closeEx, "Failed to close connection.");
+            }
+          }
+        }
+      });
+    }
+  }
+
+  // PEER
+  //
+  // Everything the event loop knows about a single socket. The bytes that
+  // have been received are only ever appended to, so a request handed to
+  // another thread can safely keep reading from the array that it was given
+  // while the loop keeps receiving.
+  //
+  // A socket starts in the legacy mode where it carries exactly one request.
+  // If that request is a Handshake asking for MULTIPLEX, the loop answers it
+  // itself and the socket switches to carrying request frames until the
+  // client closes it.
+  private final class Peer {
+
+    private final Loop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    private byte[] received = new byte[256];
+    private int start = 0;  // the first byte not yet given out
+    private int size = 0;
+
+    // If true, requests that have been given out may still be reading from
+    // "received" so it cannot be reused.
+    private boolean shared = false;
+
+    private boolean modeKnown = false;
+    private boolean multiplexed = false;
+    private boolean compact = false;
+
+    // The number of bytes that were available the last time the legacy
+    // request was found to be incomplete. The request will not be given out
+    // again until more than this many bytes have arrived.
+    private int attempted = 0;
+
+    // How many times the legacy request has been given out and when bytes
+    // last arrived for it.
+    private int replays = 0;
+    private long lastArrival = System.nanoTime();
+
+    private boolean dispatched = false;
+    private boolean endOfInput = false;
+
+    private final Queue<ByteBuffer> outgoing = new ArrayDeque<>();
+
+    public Peer(Loop loop, SocketChannel channel) {
+      this.loop = loop;
+      this.channel = channel;
+    }
+
+    public void onReadable(ByteBuffer scratch) throws IOException {
+
+      int read;
+      while ((read = channel.read(scratch)) > 0) {
+        scratch.flip();
+        append(scratch);
+        scratch.clear();
+        lastArrival = System.nanoTime();
+        // Checked after every read so that a client never gets more than one
+        // scratch buffer past the limit, however much it had already sent.
+        if (size - start > MAX_REQUEST_BYTES) {
+          LOG.warning("Request exceeded %d bytes, dropping connection.", MAX_REQUEST_BYTES);
+          close();
+          return;
+        }
+      }
+
+      if (read < 0) {
+        // The client will not send anything else. Stop asking to read as
+        // the channel would otherwise be reported as readable forever.
+        endOfInput = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      }
+
+      // Every request, legacy or not, starts with a four byte value. Until
+      // that has arrived there is no way to know what to do with the socket.
+      // A handshake that does not ask for MULTIPLEX is handed out like any
+      // other legacy request.
+      if (!modeKnown && size >= 4 && readInt(received, 0) != Handshake.REQUEST) {
+        modeKnown = true;
+      } else if (!modeKnown && size >= Handshake.BYTES) {
+        modeKnown = true;
+        multiplexed = (readInt(received, 8) & Handshake.MULTIPLEX) != 0;
+        if (multiplexed) {
+          start = Handshake.BYTES;
+          accept(readInt(received, 4), readInt(received, 8));
+        }
+      }
+
+      if (multiplexed) {
+        dispatchFrames();
+        if (endOfInput) {
+          close();
+        }
+      } else if (modeKnown && !dispatched) {
+        retry();
+      } else if (!dispatched && endOfInput) {
+        close();
+      }
+    }
+
+    public void onWritable() throws IOException {
+
+      // Send as many queued buffers as possible in a single gathering write,
+      // this will often be several whole responses at once.
+      while (!outgoing.isEmpty()) {
+
+        final ByteBuffer[] batch = new ByteBuffer[Math.min(outgoing.size(), MAX_GATHER)];
+        final Iterator<ByteBuffer> queued = outgoing.iterator();
+        for (int i = 0; i < batch.length; i++) {
+          batch[i] = queued.next();
+        }
+
+        channel.write(batch);
+
+        while (!outgoing.isEmpty() && !outgoing.peek().hasRemaining()) {
+          pool.release(outgoing.remove());
+        }
+
+        if (batch[batch.length - 1].hasRemaining()) {
+          return;  // the socket is full, wait until it can take more
+        }
+      }
+
+      if (multiplexed) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      } else {
+        close();  // legacy sockets only carry one response
+      }
+    }
+
+    public void onIncomplete(int seen) {
+      if (!channel.isOpen()) {
+        return;
+      }
+      dispatched = false;
+      attempted = seen;
+      retry();
+    }
+
+    public void onResponse(ByteBuffer... buffers) {
+      if (!channel.isOpen() || !key.isValid()) {
+        for (final ByteBuffer buffer : buffers) {
+          pool.release(buffer);
+        }
+      } else {
+        for (final ByteBuffer buffer : buffers) {
+          outgoing.add(buffer);
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        try {
+          onWritable();
+        } catch (IOException ex) {
+          LOG.error(ex, "Exception while writing response.");
+          close();
+        }
+      }
+    }
+
+    public void close() {
+      loop.waiting.remove(this);
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to close connection.");
+      }
+      while (!outgoing.isEmpty()) {
+        pool.release(outgoing.remove());
+      }
+    }
+
+    // RETRY
+    //
+    // Give out the legacy request again if more of it has arrived since it
+    // was last tried and it is worth reading again now. Otherwise leave it for
+    // the loop to try once the client goes quiet.
+    private void retry() {
+      if (size <= attempted) {
+        if (endOfInput) {
+          close();
+        }
+      } else if (endOfInput || replays < FREE_REPLAYS || size >= 2 * attempted) {
+        loop.waiting.remove(this);
+        dispatch();
+      } else {
+        loop.waiting.add(this);
+      }
+    }
+
+    private void dispatch() {
+      if (dispatched || !channel.isOpen()) {
+        return;
+      }
+      replays++;
+      dispatched = true;
+      shared = true;
+      final RequestInputStream in = new RequestInputStream(received, 0, size, Wire.STANDARD);
+      ready.add(new Request(this, Request.LEGACY, in, pool, Wire.STANDARD));
+    }
+
+    // ACCEPT
+    //
+    // Answer a client's handshake with the version and features that will be
+    // used. This is always the first thing sent back on the socket.
+    private void accept(int version, int requested) {
+      final int granted = requested & SUPPORTED_FEATURES;
+      compact = (granted & Handshake.COMPACT) != 0;
+      onResponse(Handshake.response(Math.min(version, Handshake.VERSION), granted));
+    }
+
+    private Wire wire() {
+      return compact ? Wire.compact() : Wire.STANDARD;
+    }
+
+    // DISPATCH FRAMES
+    //
+    // Give out every frame that has fully arrived. Each frame is the request
+    // id, the length of the payload, and then the payload.
+    private void dispatchFrames() {
+
+      while (size - start >= Frame.HEADER_BYTES) {
+
+        final int id = readInt(received, start);
+        final int length = readInt(received, start + 4);
+
+        if (length < 0 || length > MAX_REQUEST_BYTES) {
+          LOG.warning("Bad frame length %d, dropping connection.", length);
+          close();
+          return;
+        }
+
+        if (size - start - Frame.HEADER_BYTES < length) {
+          break;  // wait for the rest of the frame
+        }
+
+        shared = true;
+        final RequestInputStream in = new RequestInputStream(received, start + Frame.HEADER_BYTES, length, wire());
+        ready.add(new Request(this, id, in, pool, wire()));
+        start += Frame.HEADER_BYTES + length;
+      }
+
+      if (start == size) {
+        start = 0;
+        size = 0;
+        if (shared) {
+          received = new byte[received.length];
+          shared = false;
+        }
+      }
+    }
+
+    private void append(ByteBuffer bytes) {
+      final int needed = size - start + bytes.remaining();
+      if (size + bytes.remaining() > received.length) {
+        // Only carry over the bytes that have not been given out yet.
+        final byte[] larger = new byte[Math.max(needed, received.length * 2)];
+        System.arraycopy(received, start, larger, 0, size - start);
+        received = larger;
+        size -= start;
+        start = 0;
+        shared = false;
+      }
+      final int count = bytes.remaining();
+      bytes.get(received, size, count);
+      size += count;
+    }
+  }
+
+  // REQUEST
+  //
+  // The connection given out by "connect". Closing it gives control of the
+  // socket back to the event loop that owns it.
+  private static final class Request implements Connection {
+
+    // The id given to requests that did not arrive in a frame.
+    public static final int LEGACY = -1;
+
+    private final Peer peer;
+    private final int id;
+    private final RequestInputStream in;
+    private final BufferOutputStream out;
+
+    private boolean closed = false;
+
+    public Request(Peer peer, int id, RequestInputStream in, BufferPool pool, Wire wire) {
+      this.peer = peer;
+      this.id = id;
+      this.in = in;
+      this.out = new BufferOutputStream(pool, wire);
+    }
+
+    @Override
+    public InputStream in() {
+      return in;
+    }
+
+    @Override
+    public OutputStream out() {
+      return out;
+    }
+
+    @Override
+    public void close() {
+
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+
+      if (id == LEGACY && in.incomplete) {
+        out.release();
+        peer.loop.execute(new Runnable() {
+          @Override
+          public void run() {
+            peer.onIncomplete(in.limit);
+          }
+        });
+      } else {
+        final ByteBuffer payload = out.finish();
+        final ByteBuffer[] buffers = id == LEGACY ?
+            new ByteBuffer[] { payload } :
+            new ByteBuffer[] { Frame.header(id, payload.remaining()), payload };
+        peer.loop.execute(new Runnable() {
+          @Override
+          public void run() {
+            peer.onResponse(buffers);
+          }
+        });
+      }
+    }
+  }
+
+  // REQUEST INPUT STREAM
+  //
+  // Reads the bytes of a request straight out of the array that the event
+  // loop received them into. Running out of bytes means that the rest of the
+  // request has not arrived yet.
+  private static final class RequestInputStream extends BufferInputStream {
+
+    private final int limit;
+
+    private boolean incomplete = false;
+
+    public RequestInputStream(byte[] bytes, int offset, int length, Wire wire) {
+      super(ByteBuffer.wrap(bytes, offset, length), wire);
+      this.limit = offset + length;
+    }
+
+    @Override
+    protected void onEnd() throws IOException {
+      incomplete = true;
+      throw new IncompleteRequestException();
+    }
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 24) |
+           ((bytes[offset + 1] & 0xFF) << 16) |
+           ((bytes[offset + 2] & 0xFF) << 8) |
+           (bytes[offset + 3] & 0xFF);
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import codeu.chat.util.BufferInputStream;
+
+// SOCKET CONNECTION
+//
+// A connection over a plain blocking socket. Reads and writes are buffered so
+// that serializers reading and writing a byte at a time do not turn into a
+// system call per byte. Reads go through a BufferInputStream so that buffer
+// serializers can decode straight out of what was received. Anything written
+// is sent once "in" is called or the connection is closed.
+final class SocketConnection implements Connection {
+
+  private static final int BUFFER_BYTES = 8 * 1024;
+
+  private final Socket socket;
+
+  private InputStream in = null;
+  private OutputStream out = null;
+
+  public SocketConnection(Socket socket) {
+    this.socket = socket;
+  }
+
+  @Override
+  public InputStream in() throws IOException {
+
+    // Whoever is reading is waiting on the other side to respond to what has
+    // been written so far, so make sure that it has all been sent.
+    flush();
+
+    if (in == null) {
+      in = new BufferInputStream(socket.getInputStream());
+    }
+    return in;
+  }
+
+  @Override
+  public OutputStream out() throws IOException {
+    if (out == null) {
+      out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES);
+    }
+    return out;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      socket.close();
+    }
+  }
+
+  private void flush() throws IOException {
+    if (out != null) {
+      out.flush();
+    }
+  }
+}
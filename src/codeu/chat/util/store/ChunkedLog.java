@@ -0,0 +1,192 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// CHUNKED LOG
+//
+// An append-only log kept in fixed size chunks. Finding a value by its
+// position takes constant time and appending never copies values, only the
+// small table of chunks when it runs out of room.
+//
+// There can only be one writer at a time but any number of readers can read
+// while it writes. A value is only counted in "size" once it has been stored
+// so a reader never sees a position that is not filled in.
+//
+// Every value can be stamped with a version when it is appended. Versions
+// must never go down. "asOf" then gives the log as it was at any version,
+// which does not change no matter what is appended later.
+public final class ChunkedLog<VALUE> implements LogAccessor<VALUE> {
+
+  private static final int CHUNK_SHIFT = 8;  // 256 values per chunk
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private volatile Object[][] chunks = new Object[1][];
+  private volatile long[][] versions = new long[1][];
+  private volatile int size = 0;
+
+  // APPEND
+  //
+  // Add a value to the end of the log and return its position. The value's
+  // version is its position.
+  public int append(VALUE value) {
+    return append(value, size);
+  }
+
+  // APPEND
+  //
+  // Add a value to the end of the log with the given version and return its
+  // position.
+  public int append(VALUE value, long version) {
+
+    final int position = size;
+    final int chunk = position >>> CHUNK_SHIFT;
+
+    Object[][] currentChunks = chunks;
+    long[][] currentVersions = versions;
+
+    if (chunk == currentChunks.length) {
+      final Object[][] largerChunks = new Object[currentChunks.length * 2][];
+      final long[][] largerVersions = new long[currentVersions.length * 2][];
+      System.arraycopy(currentChunks, 0, largerChunks, 0, currentChunks.length);
+      System.arraycopy(currentVersions, 0, largerVersions, 0, currentVersions.length);
+      chunks = currentChunks = largerChunks;
+      versions = currentVersions = largerVersions;
+    }
+
+    if (currentChunks[chunk] == null) {
+      currentChunks[chunk] = new Object[CHUNK_SIZE];
+      currentVersions[chunk] = new long[CHUNK_SIZE];
+    }
+
+    currentChunks[chunk][position & CHUNK_MASK] = value;
+    currentVersions[chunk][position & CHUNK_MASK] = version;
+    size = position + 1;
+
+    return position;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public VALUE get(int position) {
+    return get(position, size);
+  }
+
+  @Override
+  public Iterable<VALUE> from(int start) {
+    return walk(start, size, 1);
+  }
+
+  @Override
+  public Iterable<VALUE> backFrom(int start) {
+    final int end = size;
+    return walk(Math.min(start, end - 1), -1, -1);
+  }
+
+  // AS OF
+  //
+  // The log as it was once every value up to and including "version" had been
+  // appended.
+  public LogAccessor<VALUE> asOf(long version) {
+
+    // Versions never go down so the values that are in the view are all
+    // before the first value with a later version.
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (versions[middle >>> CHUNK_SHIFT][middle & CHUNK_MASK] <= version) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+
+    final int end = low;
+
+    return new LogAccessor<VALUE>() {
+
+      @Override
+      public int size() {
+        return end;
+      }
+
+      @Override
+      public VALUE get(int position) {
+        return ChunkedLog.this.get(position, end);
+      }
+
+      @Override
+      public Iterable<VALUE> from(int start) {
+        return walk(start, end, 1);
+      }
+
+      @Override
+      public Iterable<VALUE> backFrom(int start) {
+        return walk(Math.min(start, end - 1), -1, -1);
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private VALUE get(int position, int end) {
+    if (position < 0 || position >= end) {
+      throw new IndexOutOfBoundsException("Position " + position + " of " + end);
+    }
+    return (VALUE) chunks[position >>> CHUNK_SHIFT][position & CHUNK_MASK];
+  }
+
+  // WALK
+  //
+  // Step through the log from "start" towards "end", not including "end".
+  private Iterable<VALUE> walk(final int start, final int end, final int step) {
+    return new Iterable<VALUE>() {
+      @Override
+      public Iterator<VALUE> iterator() {
+        return new Iterator<VALUE>() {
+
+          private int next = step > 0 ? Math.max(start, 0) : start;
+
+          @Override
+          public boolean hasNext() {
+            return step > 0 ? next < end : next > end;
+          }
+
+          @Override
+          public VALUE next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            final VALUE value = get(next, Math.max(end, next + 1));
+            next += step;
+            return value;
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,204 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// CONCURRENT STORE
+//
+// An ordered store that can be read while it is being written to. Keys are
+// kept in a skip list and all the values with equal keys are kept together
+// in a group, in the order they were inserted. Readers never lock. Their
+// iterators are weakly consistent: they see every value that was inserted
+// before the iterator was made and may or may not see values that are
+// inserted while they are iterating.
+//
+// Writers only lock the group that they are adding to, and only when the key
+// is already in the store.
+public final class ConcurrentStore<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
+
+  private final ConcurrentNavigableMap<KEY, Group<VALUE>> index;
+
+  private final Comparator<KEY> comparator;
+
+  public ConcurrentStore(Comparator<KEY> comparator) {
+    this.index = new ConcurrentSkipListMap<>(comparator);
+    this.comparator = comparator;
+  }
+
+  public void insert(KEY key, VALUE value) {
+
+    final Group<VALUE> group = index.get(key);
+
+    if (group != null) {
+      group.append(value);
+      return;
+    }
+
+    // Another writer may have added the same key since it was looked up. If
+    // it did, add to its group instead.
+    final Group<VALUE> existing = index.putIfAbsent(key, new Group<>(value));
+
+    if (existing != null) {
+      existing.append(value);
+    }
+  }
+
+  @Override
+  public VALUE first(KEY key) {
+    final Group<VALUE> group = index.get(key);
+    return group == null ? null : group.head.value;
+  }
+
+  @Override
+  public Iterable<VALUE> all() {
+    return new GroupsIterable<>(index.values());
+  }
+
+  @Override
+  public Iterable<VALUE> at(KEY key) {
+    final Group<VALUE> group = index.get(key);
+    return group == null ? Collections.<VALUE>emptyList() : group;
+  }
+
+  @Override
+  public Iterable<VALUE> after(KEY start) {
+    return new GroupsIterable<>(index.tailMap(start, true).values());
+  }
+
+  @Override
+  public Iterable<VALUE> before(KEY end) {
+    return new GroupsIterable<>(index.headMap(end, true).values());
+  }
+
+  @Override
+  public Iterable<VALUE> range(KEY start, KEY end) {
+    // A skip list will not make a range that ends before it starts, but an
+    // empty range is what a Store gives back.
+    return comparator.compare(start, end) > 0 ?
+        Collections.<VALUE>emptyList() :
+        new GroupsIterable<>(index.subMap(start, true, end, true).values());
+  }
+
+  private static final class Node<VALUE> {
+
+    public final VALUE value;
+    public volatile Node<VALUE> next = null;
+
+    public Node(VALUE value) {
+      this.value = value;
+    }
+  }
+
+  // GROUP
+  //
+  // All the values for one key. A group is never empty. New values are put
+  // after the tail and only then made visible by setting "next" so readers
+  // only ever see whole nodes.
+  private static final class Group<VALUE> implements Iterable<VALUE> {
+
+    public final Node<VALUE> head;
+    private Node<VALUE> tail;
+
+    public Group(VALUE value) {
+      this.head = new Node<>(value);
+      this.tail = head;
+    }
+
+    public synchronized void append(VALUE value) {
+      final Node<VALUE> node = new Node<>(value);
+      tail.next = node;
+      tail = node;
+    }
+
+    @Override
+    public Iterator<VALUE> iterator() {
+      return new Iterator<VALUE>() {
+
+        private Node<VALUE> current = head;
+
+        @Override
+        public boolean hasNext() {
+          return current != null;
+        }
+
+        @Override
+        public VALUE next() {
+          if (current == null) {
+            throw new NoSuchElementException();
+          }
+          final VALUE value = current.value;
+          current = current.next;
+          return value;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  // GROUPS ITERABLE
+  //
+  // Every value of every group in a view of the skip list, in key order.
+  private static final class GroupsIterable<VALUE> implements Iterable<VALUE> {
+
+    private final Collection<Group<VALUE>> groups;
+
+    public GroupsIterable(Collection<Group<VALUE>> groups) {
+      this.groups = groups;
+    }
+
+    @Override
+    public Iterator<VALUE> iterator() {
+
+      final Iterator<Group<VALUE>> nextGroup = groups.iterator();
+
+      return new Iterator<VALUE>() {
+
+        private Iterator<VALUE> values = Collections.<VALUE>emptyIterator();
+
+        @Override
+        public boolean hasNext() {
+          while (!values.hasNext() && nextGroup.hasNext()) {
+            values = nextGroup.next().iterator();
+          }
+          return values.hasNext();
+        }
+
+        @Override
+        public VALUE next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return values.next();
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// HASH STORE
+//
+// A store for primary keys. Every key maps to exactly one value and lookups
+// take constant time no matter how many values there are. Use a Store when
+// values need to be found by range or when keys can repeat.
+//
+// The keys must have a good "hashCode" and an "equals" that agrees with it.
+//
+// Any number of writers can insert and replace at once, as long as no two
+// replace the same key at the same time, and any number of readers can read
+// while they write. Values are walked in the order their keys were inserted,
+// and a value that is replaced keeps its key's place.
+public final class HashStore<KEY, VALUE> implements HashStoreAccessor<KEY, VALUE> {
+
+  private final Map<KEY, VALUE> index = new ConcurrentHashMap<>();
+  private final ChunkedLog<KEY> order = new ChunkedLog<>();
+
+  // INSERT
+  //
+  // Add a value under a key that is not in the store yet. A key can only be
+  // inserted once as there is no way to tell which of two values with the
+  // same primary key should be returned. Inserts are put in order one at a
+  // time.
+  public synchronized void insert(KEY key, VALUE value) {
+    if (index.containsKey(key)) {
+      throw new IllegalArgumentException("Key already in store: " + key);
+    }
+    index.put(key, value);
+    order.append(key);
+  }
+
+  // REPLACE
+  //
+  // Swap the value under a key that is already in the store for a new one.
+  // Readers see either the old value or the new one, never a mix of the two.
+  public void replace(KEY key, VALUE value) {
+    if (!index.containsKey(key)) {
+      throw new IllegalArgumentException("Key not in store: " + key);
+    }
+    index.put(key, value);
+  }
+
+  @Override
+  public VALUE first(KEY key) {
+    return index.get(key);
+  }
+
+  @Override
+  public Iterable<VALUE> all() {
+    final Iterable<KEY> keys = order.from(0);
+    return new Iterable<VALUE>() {
+      @Override
+      public Iterator<VALUE> iterator() {
+        final Iterator<KEY> walk = keys.iterator();
+        return new Iterator<VALUE>() {
+
+          @Override
+          public boolean hasNext() {
+            return walk.hasNext();
+          }
+
+          @Override
+          public VALUE next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return index.get(walk.next());
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+}
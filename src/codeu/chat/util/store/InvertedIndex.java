@@ -0,0 +1,231 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// INVERTED INDEX
+//
+// Finds values by the words in their text. Every word (a run of letters and
+// digits, ignoring case) maps to a posting list of the values whose text has
+// that word in it. Each value also belongs to a group and every group has
+// posting lists of its own so that a search within one group only reads that
+// group's postings.
+//
+// Results are ranked by how well they match: words that appear in fewer
+// values count for more, and a word that appears many times in one value
+// counts for a little more than one that appears once. Values that match
+// equally well are ranked newest first.
+public final class InvertedIndex<GROUP, VALUE> {
+
+  // Puts the worst ranked match at the head of a heap so that it is the one
+  // pushed out when a better match is found.
+  private static final Comparator<Scored<?>> WORST_FIRST = new Comparator<Scored<?>>() {
+    @Override
+    public int compare(Scored<?> a, Scored<?> b) {
+      return rank(b.score, b.entry.order, a.score, a.entry.order);
+    }
+  };
+
+  private final Map<String, List<Posting<VALUE>>> global = new HashMap<>();
+  private final Map<GROUP, Map<String, List<Posting<VALUE>>>> groups = new HashMap<>();
+
+  private int size = 0;
+
+  // ADD
+  //
+  // Index a value by the words in "text".
+  public void add(GROUP group, String text, VALUE value) {
+
+    Map<String, List<Posting<VALUE>>> inGroup = groups.get(group);
+
+    if (inGroup == null) {
+      inGroup = new HashMap<>();
+      groups.put(group, inGroup);
+    }
+
+    final Entry<VALUE> entry = new Entry<>(value, size);
+
+    for (final Map.Entry<String, Integer> term : count(terms(text)).entrySet()) {
+      final Posting<VALUE> posting = new Posting<>(entry, term.getValue());
+      postings(global, term.getKey()).add(posting);
+      postings(inGroup, term.getKey()).add(posting);
+    }
+
+    size += 1;
+  }
+
+  // SEARCH
+  //
+  // Find the values that have at least one of the words in "query", best
+  // match first. If "group" is null every group is searched. "offset" and
+  // "count" pick out one page of the ranked results. Every match is scored
+  // but only the best "offset + count" are kept and sorted.
+  public List<VALUE> search(String query, GROUP group, int offset, int count) {
+
+    final Map<String, List<Posting<VALUE>>> index = group == null ? global : groups.get(group);
+
+    if (index == null || offset < 0 || count <= 0) {
+      return Collections.emptyList();
+    }
+
+    // Every posting for one value shares the same entry, so entries can be
+    // told apart by identity.
+    final Map<Entry<VALUE>, Double> scores = new HashMap<>();
+
+    for (final String term : count(terms(query)).keySet()) {
+
+      final List<Posting<VALUE>> postings = index.get(term);
+
+      if (postings == null) {
+        continue;
+      }
+
+      // How rare the word is across everything that has been indexed.
+      final double weight = Math.log(1.0 + (double) size / global.get(term).size());
+
+      for (final Posting<VALUE> posting : postings) {
+        final Double score = scores.get(posting.entry);
+        final double add = weight * (1.0 + Math.log(posting.count));
+        scores.put(posting.entry, score == null ? add : score + add);
+      }
+    }
+
+    final int keep = (int) Math.min((long) offset + count, scores.size());
+
+    if (keep <= offset) {
+      return Collections.emptyList();
+    }
+
+    final PriorityQueue<Scored<VALUE>> best = new PriorityQueue<>(keep, WORST_FIRST);
+
+    for (final Map.Entry<Entry<VALUE>, Double> scored : scores.entrySet()) {
+      final Entry<VALUE> entry = scored.getKey();
+      final double score = scored.getValue();
+      if (best.size() < keep) {
+        best.add(new Scored<>(entry, score));
+      } else if (rank(score, entry.order, best.peek().score, best.peek().entry.order) < 0) {
+        best.poll();
+        best.add(new Scored<>(entry, score));
+      }
+    }
+
+    // Emptying the heap gives the kept matches worst first.
+    final List<VALUE> ranked = new ArrayList<>(best.size());
+    while (!best.isEmpty()) {
+      ranked.add(best.poll().entry.value);
+    }
+    Collections.reverse(ranked);
+
+    return new ArrayList<>(ranked.subList(offset, ranked.size()));
+  }
+
+  // RANK
+  //
+  // Less than zero if the first match ranks ahead of the second: a higher
+  // score first and, for the same score, the one that was added later.
+  private static int rank(double score, int order, double otherScore, int otherOrder) {
+    final int byScore = Double.compare(otherScore, score);
+    return byScore == 0 ? Integer.compare(otherOrder, order) : byScore;
+  }
+
+  // TERMS
+  //
+  // Split text into the words that it is indexed by.
+  public static List<String> terms(String text) {
+
+    final List<String> terms = new ArrayList<>();
+    final StringBuilder term = new StringBuilder();
+
+    for (int i = 0; i <= text.length(); i++) {
+      final char c = i < text.length() ? text.charAt(i) : ' ';
+      if (Character.isLetterOrDigit(c)) {
+        term.append(Character.toLowerCase(c));
+      } else if (term.length() > 0) {
+        terms.add(term.toString());
+        term.setLength(0);
+      }
+    }
+
+    return terms;
+  }
+
+  private static Map<String, Integer> count(List<String> terms) {
+    final Map<String, Integer> counts = new LinkedHashMap<>();
+    for (final String term : terms) {
+      final Integer count = counts.get(term);
+      counts.put(term, count == null ? 1 : count + 1);
+    }
+    return counts;
+  }
+
+  private static <VALUE> List<Posting<VALUE>> postings(Map<String, List<Posting<VALUE>>> index, String term) {
+    List<Posting<VALUE>> postings = index.get(term);
+    if (postings == null) {
+      postings = new ArrayList<>();
+      index.put(term, postings);
+    }
+    return postings;
+  }
+
+  // ENTRY
+  //
+  // A value that has been indexed and when it was added.
+  private static final class Entry<VALUE> {
+
+    public final VALUE value;
+    public final int order;
+
+    public Entry(VALUE value, int order) {
+      this.value = value;
+      this.order = order;
+    }
+  }
+
+  // SCORED
+  //
+  // An entry that matched a search and how well it matched.
+  private static final class Scored<VALUE> {
+
+    public final Entry<VALUE> entry;
+    public final double score;
+
+    public Scored(Entry<VALUE> entry, double score) {
+      this.entry = entry;
+      this.score = score;
+    }
+  }
+
+  // POSTING
+  //
+  // One entry that has a word in it and how many times it has it.
+  private static final class Posting<VALUE> {
+
+    public final Entry<VALUE> entry;
+    public final int count;
+
+    public Posting(Entry<VALUE> entry, int count) {
+      this.entry = entry;
+      this.count = count;
+    }
+  }
+}
@@ -0,0 +1,33 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+// LOG ACCESSOR
+//
+// Read access to an append-only log. Every value has a position, starting at
+// zero for the first value appended, that never changes.
+public interface LogAccessor<VALUE> {
+
+  int size();
+
+  VALUE get(int position);
+
+  // All the values from "start" to the end of the log, oldest first.
+  Iterable<VALUE> from(int start);
+
+  // All the values from "start" back to the start of the log, newest first.
+  Iterable<VALUE> backFrom(int start);
+
+}
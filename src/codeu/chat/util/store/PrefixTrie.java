@@ -0,0 +1,131 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+// PREFIX TRIE
+//
+// Finds values by a string key, either the whole key or any prefix of it.
+// Matching a prefix ignores case so that it can be used to complete what a
+// person has started typing. Matching a whole key does not ignore case.
+//
+// Finding a key or a prefix only reads as many nodes as there are characters
+// in it, no matter how many keys there are. Completions come back in order of
+// their keys, ignoring case, and stop once the limit is reached.
+public final class PrefixTrie<VALUE> {
+
+  private final Node<VALUE> root = new Node<>();
+
+  public void insert(String key, VALUE value) {
+
+    Node<VALUE> current = root;
+
+    for (int i = 0; i < key.length(); i++) {
+      final char c = Character.toLowerCase(key.charAt(i));
+      Node<VALUE> next = current.children.get(c);
+      if (next == null) {
+        next = new Node<>();
+        current.children.put(c, next);
+      }
+      current = next;
+    }
+
+    current.entries.add(new Entry<>(key, value));
+  }
+
+  // EXACT
+  //
+  // Find up to "limit" values whose key is exactly "key".
+  public Collection<VALUE> exact(String key, int limit) {
+
+    final Collection<VALUE> found = new ArrayList<>();
+    final Node<VALUE> node = find(key);
+
+    if (node != null) {
+      for (final Entry<VALUE> entry : node.entries) {
+        if (found.size() >= limit) {
+          break;
+        }
+        if (entry.key.equals(key)) {
+          found.add(entry.value);
+        }
+      }
+    }
+
+    return found;
+  }
+
+  // COMPLETE
+  //
+  // Find up to "limit" values whose key starts with "prefix", ignoring case.
+  public Collection<VALUE> complete(String prefix, int limit) {
+
+    final Collection<VALUE> found = new ArrayList<>();
+    final Node<VALUE> node = find(prefix);
+
+    if (node != null) {
+      collect(node, found, limit);
+    }
+
+    return found;
+  }
+
+  private Node<VALUE> find(String key) {
+    Node<VALUE> current = root;
+    for (int i = 0; i < key.length() && current != null; i++) {
+      current = current.children.get(Character.toLowerCase(key.charAt(i)));
+    }
+    return current;
+  }
+
+  // Add the values of "node" and everything below it, shorter keys first and
+  // then in character order, until there are "limit" values.
+  private static <VALUE> void collect(Node<VALUE> node, Collection<VALUE> found, int limit) {
+
+    for (final Entry<VALUE> entry : node.entries) {
+      if (found.size() >= limit) {
+        return;
+      }
+      found.add(entry.value);
+    }
+
+    for (final Node<VALUE> child : node.children.values()) {
+      if (found.size() >= limit) {
+        return;
+      }
+      collect(child, found, limit);
+    }
+  }
+
+  private static final class Node<VALUE> {
+    public final Map<Character, Node<VALUE>> children = new TreeMap<>();
+    public final Collection<Entry<VALUE>> entries = new ArrayList<>();
+  }
+
+  private static final class Entry<VALUE> {
+
+    public final String key;
+    public final VALUE value;
+
+    public Entry(String key, VALUE value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+}
@@ -26,7 +26,10 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
   // the "next" value is used more than the "this" or "current" reference.
   private final StoreLink<KEY, VALUE> rootLink = new StoreLink<>(null, null, null);
 
-  private final NavigableMap<KEY, StoreLink<KEY, VALUE>> index;
+  // The index holds one entry per key. Each entry knows the first and last
+  // link with that key so that a new value can be put at the end of its key's
+  // series without walking past all the values already there.
+  private final NavigableMap<KEY, Group<KEY, VALUE>> index;
 
   private final Comparator<KEY> comparator;
 
@@ -37,40 +40,33 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
 
   public void insert(KEY key, VALUE value) {
 
-    final StoreLink<KEY, VALUE> closestLink = floor(key);
+    final Map.Entry<KEY, Group<KEY, VALUE>> closest = index.floorEntry(key);
 
-    // Assume that the new value can only come after the current position. Move
-    // through the chain of links until the next link is either the end (null)
-    // or will logically come after the new value.
-    StoreLink<KEY, VALUE> current = (closestLink == null) ? (rootLink) : (closestLink);
-    while(current.next != null && comparator.compare(current.next.key, key) <= 0) {
-      current = current.next;
-    }
+    // The new value goes right after the last link that does not come after
+    // it. That is the last link in the closest group, or the root link if
+    // every key in the store comes after the new one.
+    final StoreLink<KEY, VALUE> current = (closest == null) ? (rootLink) : (closest.getValue().last);
 
     // "current.next" may be null, but "current" can never be null. So it
     // should always be safe to call to current.
     final StoreLink<KEY, VALUE> newLink = new StoreLink<>(key, value, current.next);
     current.next = newLink;
 
-    // Before adding the link to the index, first check if the hint has an
-    // equal key. If it does - do not add the index.
-    //
-    // There are two reasons for this:
-    //  1. The index class does not handle duplicate keys well (as stated in
-    //     the code for the index).
-    //  2. There is no advantage to having multiple equal keys in the index as
-    //     it would not help with the interators. As long as the key will map
-    //     to the first link, the other links will always be found. This is
-    //     why the insert is always put at the end of the series.
-    if (closestLink == null || comparator.compare(newLink.key, closestLink.key) != 0) {
-      index.put(key, newLink);
+    // Values with equal keys are kept in the order they were inserted, so an
+    // equal key only moves the end of its group. The index class does not
+    // handle duplicate keys and there is no advantage to having them as the
+    // iterators always start from the first link of a key.
+    if (closest != null && comparator.compare(key, closest.getKey()) == 0) {
+      closest.getValue().last = newLink;
+    } else {
+      index.put(key, new Group<>(newLink));
     }
   }
 
   @Override
   public VALUE first(KEY key) {
-    final StoreLink<KEY, VALUE> link = index.get(key);
-    return link == null ? null : link.value;
+    final Group<KEY, VALUE> group = index.get(key);
+    return group == null ? null : group.first.value;
   }
 
   @Override
@@ -114,7 +110,21 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
     return extract(index.floorEntry(key));
   }
 
-  private StoreLink<KEY, VALUE> extract(Map.Entry<KEY, StoreLink<KEY, VALUE>> entry) {
-    return entry == null ? null : entry.getValue();
+  private StoreLink<KEY, VALUE> extract(Map.Entry<KEY, Group<KEY, VALUE>> entry) {
+    return entry == null ? null : entry.getValue().first;
+  }
+
+  // GROUP
+  //
+  // The first and last links of all the values with one key.
+  private static final class Group<KEY, VALUE> {
+
+    public final StoreLink<KEY, VALUE> first;
+    public StoreLink<KEY, VALUE> last;
+
+    public Group(StoreLink<KEY, VALUE> link) {
+      this.first = link;
+      this.last = link;
+    }
   }
 }
@@ -25,10 +25,26 @@ public final class TestRunner {
              codeu.chat.common.SecretTest.class,
              codeu.chat.common.ServerInfoTest.class,
              codeu.chat.relay.ServerTest.class,
+             codeu.chat.relay.WorkersTest.class,
              codeu.chat.server.BasicControllerTest.class,
              codeu.chat.server.RawControllerTest.class,
+             codeu.chat.server.RelayLinkTest.class,
+             codeu.chat.server.RemoteRelayTest.class,
+             codeu.chat.server.ServerTest.class,
+             codeu.chat.server.ViewTest.class,
+             codeu.chat.server.WorkersTest.class,
+             codeu.chat.server.WriteAheadLogTest.class,
+             codeu.chat.util.BufferSerializersTest.class,
              codeu.chat.util.TimeTest.class,
              codeu.chat.util.UuidTest.class,
+             codeu.chat.util.connections.HandshakeTest.class,
+             codeu.chat.util.connections.MultiplexedConnectionSourceTest.class,
+             codeu.chat.util.connections.SelectorConnectionSourceTest.class,
+             codeu.chat.util.store.ChunkedLogTest.class,
+             codeu.chat.util.store.ConcurrentStoreTest.class,
+             codeu.chat.util.store.HashStoreTest.class,
+             codeu.chat.util.store.InvertedIndexTest.class,
+             codeu.chat.util.store.PrefixTrieTest.class,
              codeu.chat.util.store.StoreTest.class,
              codeu.chat.util.TokenizerTest.class
          );
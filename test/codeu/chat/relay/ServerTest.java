@@ -14,7 +14,13 @@
 
 package codeu.chat.relay;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -287,4 +293,165 @@ public final class ServerTest {
       assertTrue(Uuid.equals(bundle.id(), new Uuid(3)));
     }
   }
+
+  @Test
+  public void testReadAfterHistoryWraps() {
+
+    final Server relay = new Server(4, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    // Write more than the history can hold so that it has wrapped around more
+    // than once. Only bundles 7 through 10 should be left.
+    for (int i = 0; i < 10; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(100 + i), "Hello World", Time.now())));
+    }
+
+    final List<Relay.Bundle> afterRoot = new ArrayList<>(relay.read(team, secret, new Uuid(8), 8));
+    assertTrue(afterRoot.size() == 2);
+    assertTrue(Uuid.equals(afterRoot.get(0).id(), new Uuid(9)));
+    assertTrue(Uuid.equals(afterRoot.get(1).id(), new Uuid(10)));
+
+    // A root that has been overwritten is treated as a missing root.
+    final List<Relay.Bundle> fromOldest = new ArrayList<>(relay.read(team, secret, new Uuid(3), 8));
+    assertTrue(fromOldest.size() == 4);
+    assertTrue(Uuid.equals(fromOldest.get(0).id(), new Uuid(7)));
+    assertTrue(Uuid.equals(fromOldest.get(0).message().id(), new Uuid(106)));
+
+    assertTrue(relay.read(team, secret, new Uuid(10), 8).isEmpty());
+  }
+
+  @Test
+  public void testWriteBatchAndRead() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    assertTrue(relay.write(team,
+                           secret,
+                           Arrays.asList(outgoing(relay, new Uuid(6)),
+                                         outgoing(relay, new Uuid(7)),
+                                         outgoing(relay, new Uuid(8)))));
+
+    final List<Relay.Bundle> read = new ArrayList<>(relay.read(team, secret, Uuid.NULL, 8));
+    assertTrue(read.size() == 3);
+
+    // The messages should be in the order that they were in the batch.
+    assertTrue(Uuid.equals(read.get(0).message().id(), new Uuid(6)));
+    assertTrue(Uuid.equals(read.get(1).message().id(), new Uuid(7)));
+    assertTrue(Uuid.equals(read.get(2).message().id(), new Uuid(8)));
+  }
+
+  @Test
+  public void testWriteBatchFailWrongSecret() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+    final Secret wrongSecret = new Secret((byte)0x00, (byte)0x01, (byte)0x03);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    assertFalse(relay.write(team,
+                            wrongSecret,
+                            Arrays.asList(outgoing(relay, new Uuid(6)),
+                                          outgoing(relay, new Uuid(7)))));
+
+    assertTrue(relay.read(team, secret, Uuid.NULL, 8).isEmpty());
+  }
+
+  @Test
+  public void testSubscribe() throws Exception {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    assertTrue(relay.write(team, secret, Arrays.asList(outgoing(relay, new Uuid(6)))));
+
+    final BlockingQueue<Uuid> seen = new LinkedBlockingQueue<>();
+    final boolean[] result = { false };
+
+    final Thread subscriber = new Thread() {
+      @Override
+      public void run() {
+        result[0] = relay.subscribe(team, secret, Uuid.NULL, new Relay.Subscriber() {
+
+          private int count = 0;
+
+          @Override
+          public boolean onBundles(Collection<Relay.Bundle> bundles) {
+            for (final Relay.Bundle bundle : bundles) {
+              seen.add(bundle.message().id());
+              count++;
+            }
+            return count < 3;
+          }
+        });
+      }
+    };
+    subscriber.setDaemon(true);
+    subscriber.start();
+
+    // The bundle that was already there is sent right away.
+    assertTrue(Uuid.equals(seen.poll(5, TimeUnit.SECONDS), new Uuid(6)));
+
+    // Anything written after that is pushed as soon as it is written.
+    assertTrue(relay.write(team, secret, Arrays.asList(outgoing(relay, new Uuid(7)))));
+    assertTrue(Uuid.equals(seen.poll(5, TimeUnit.SECONDS), new Uuid(7)));
+
+    assertTrue(relay.write(team, secret, Arrays.asList(outgoing(relay, new Uuid(8)))));
+    assertTrue(Uuid.equals(seen.poll(5, TimeUnit.SECONDS), new Uuid(8)));
+
+    // The subscriber said it was done after the third bundle.
+    subscriber.join(5000);
+    assertFalse(subscriber.isAlive());
+    assertTrue(result[0]);
+  }
+
+  @Test
+  public void testSubscribeFailWrongSecret() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+    final Secret wrongSecret = new Secret((byte)0x00, (byte)0x01, (byte)0x03);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    assertFalse(relay.subscribe(team, wrongSecret, Uuid.NULL, new Relay.Subscriber() {
+      @Override
+      public boolean onBundles(Collection<Relay.Bundle> bundles) {
+        fail("Subscriber should not be called");
+        return false;
+      }
+    }));
+  }
+
+  private static Relay.Outgoing outgoing(final Relay relay, final Uuid message) {
+    return new Relay.Outgoing() {
+      @Override
+      public Relay.Bundle.Component user() { return relay.pack(new Uuid(4), "User", Time.now()); }
+      @Override
+      public Relay.Bundle.Component conversation() { return relay.pack(new Uuid(5), "Conversation", Time.now()); }
+      @Override
+      public Relay.Bundle.Component message() { return relay.pack(message, "Hello World", Time.now()); }
+    };
+  }
 }
@@ -0,0 +1,65 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class WorkersTest {
+
+  @Test
+  public void testTurnsAwayWorkPastTheLimit() throws Exception {
+
+    final ExecutorService workers = Workers.bounded(2, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch ran = new CountDownLatch(3);
+
+    final Runnable hold = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          // Let the thread go.
+        }
+        ran.countDown();
+      }
+    };
+
+    try {
+      // Two run and one waits, so a fourth is turned away.
+      workers.execute(hold);
+      workers.execute(hold);
+      workers.execute(hold);
+
+      try {
+        workers.execute(hold);
+        fail("Expected the fourth task to be rejected");
+      } catch (RejectedExecutionException ex) {
+        // Expected.
+      }
+
+      release.countDown();
+      assertTrue(ran.await(5, TimeUnit.SECONDS));
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+}
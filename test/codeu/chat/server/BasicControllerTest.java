@@ -14,15 +14,22 @@
 
 package codeu.chat.server;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
 import static org.junit.Assert.*;
 import org.junit.Test;
 import org.junit.Before;
 
 import codeu.chat.common.BasicController;
 import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
 import codeu.chat.common.Message;
+import codeu.chat.common.NewMessage;
 import codeu.chat.common.User;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.store.LogAccessor;
 
 public final class BasicControllerTest {
 
@@ -89,4 +96,59 @@ public final class BasicControllerTest {
         "Check that the message has a valid reference",
         message == null);
   }
+
+  @Test
+  public void testAddMessages() {
+
+    final User user = controller.newUser("user");
+    final ConversationHeader first = controller.newConversation("first", user.id);
+    final ConversationHeader second = controller.newConversation("second", user.id);
+
+    final Message existing = controller.newMessage(user.id, first.id, "existing");
+
+    final Collection<Message> messages = controller.newMessages(Arrays.asList(
+        new NewMessage(user.id, first.id, "a"),
+        new NewMessage(user.id, second.id, "b"),
+        new NewMessage(Uuid.NULL, first.id, "no such author"),
+        new NewMessage(user.id, first.id, "c")));
+
+    assertEquals(4, messages.size());
+
+    final Iterator<Message> added = messages.iterator();
+    final Message a = added.next();
+    final Message b = added.next();
+    assertNull(added.next());
+    final Message c = added.next();
+
+    assertEquals(a.id, model.messageById().first(existing.id).next);
+    assertEquals(c.id, a.next);
+    assertEquals(Uuid.NULL, c.next);
+
+    final ConversationPayload firstPayload = model.conversationPayloadById().first(first.id);
+    assertEquals(existing.id, firstPayload.firstMessage);
+    assertEquals(c.id, firstPayload.lastMessage);
+
+    final ConversationPayload secondPayload = model.conversationPayloadById().first(second.id);
+    assertEquals(b.id, secondPayload.firstMessage);
+    assertEquals(b.id, secondPayload.lastMessage);
+  }
+
+  @Test
+  public void testMessagesInOrder() {
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+
+    final Message a = controller.newMessage(user.id, conversation.id, "a");
+    final Message b = controller.newMessage(user.id, conversation.id, "b");
+    final Message c = controller.newMessages(Arrays.asList(
+        new NewMessage(user.id, conversation.id, "c"))).iterator().next();
+
+    final LogAccessor<Message> log = model.messagesIn(conversation.id);
+
+    assertEquals(3, log.size());
+    assertEquals(a.id, log.get(0).id);
+    assertEquals(b.id, log.get(1).id);
+    assertEquals(c.id, log.get(2).id);
+  }
 }
@@ -0,0 +1,292 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.common.User;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class RelayLinkTest {
+
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  private static final User USER = new User(new Uuid(1), "user", Time.now());
+  private static final ConversationHeader CONVERSATION =
+      new ConversationHeader(new Uuid(2), USER.id, Time.now(), "conversation");
+
+  // TEST RELAY
+  //
+  // Records the id of every message written to it and the size of every
+  // batch that they were written in. Hands out whatever
+  // bundles are waiting in "unread", either when read or by pushing them to a
+  // subscriber. Writes wait until "open" is counted down.
+  private static final class TestRelay implements Relay {
+
+    public final CountDownLatch open = new CountDownLatch(1);
+    public final BlockingQueue<Uuid> written = new LinkedBlockingQueue<>();
+    public final BlockingQueue<Integer> batches = new LinkedBlockingQueue<>();
+    public final BlockingQueue<Relay.Bundle> unread = new LinkedBlockingQueue<>();
+
+    // Whether "subscribe" takes subscriptions or sends the link back to
+    // "read".
+    public volatile boolean subscribable = false;
+
+    private final NoOpRelay packer = new NoOpRelay();
+
+    @Override
+    public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+      return packer.pack(id, text, time);
+    }
+
+    @Override
+    public boolean write(Uuid teamId,
+                         Secret teamSecret,
+                         Relay.Bundle.Component user,
+                         Relay.Bundle.Component conversation,
+                         Relay.Bundle.Component message) {
+      try {
+        open.await();
+      } catch (InterruptedException ex) {
+        return false;
+      }
+      written.add(message.id());
+      return true;
+    }
+
+    @Override
+    public boolean write(Uuid teamId, Secret teamSecret, Collection<Relay.Outgoing> messages) {
+      boolean result = true;
+      for (final Relay.Outgoing message : messages) {
+        result &= write(teamId, teamSecret, message.user(), message.conversation(), message.message());
+      }
+      batches.add(messages.size());
+      return result;
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+      final List<Relay.Bundle> bundles = new ArrayList<>();
+      unread.drainTo(bundles, range);
+      return bundles;
+    }
+
+    @Override
+    public boolean subscribe(Uuid teamId, Secret teamSecret, Uuid root, Relay.Subscriber subscriber) {
+
+      if (!subscribable) {
+        return false;
+      }
+
+      try {
+        while (true) {
+          final List<Relay.Bundle> bundles = new ArrayList<>();
+          final Relay.Bundle next = unread.poll(100, TimeUnit.MILLISECONDS);
+          if (next != null) {
+            bundles.add(next);
+            unread.drainTo(bundles);
+          }
+          if (!subscriber.onBundles(bundles)) {
+            return true;
+          }
+        }
+      } catch (InterruptedException ex) {
+        return true;
+      }
+    }
+  }
+
+  private RelayLink link;
+
+  @After
+  public void doAfter() {
+    if (link != null) {
+      link.stop();
+    }
+  }
+
+  @Test
+  public void testSendInOrder() throws Exception {
+
+    final TestRelay relay = new TestRelay();
+    relay.open.countDown();
+
+    link = new RelayLink(Uuid.NULL, SECRET, relay, 10, new RelayLink.Listener() {
+      @Override
+      public void onBundles(Collection<Relay.Bundle> bundles) { }
+    });
+    link.start();
+
+    for (int i = 0; i < 100; i++) {
+      assertTrue(link.send(USER, CONVERSATION, message(i)));
+    }
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(new Uuid(100 + i), relay.written.poll(5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testSendInBatches() throws Exception {
+
+    final TestRelay relay = new TestRelay();
+
+    link = new RelayLink(Uuid.NULL, SECRET, relay, 10, new RelayLink.Listener() {
+      @Override
+      public void onBundles(Collection<Relay.Bundle> bundles) { }
+    });
+    link.start();
+
+    // Hold the first write so that everything else waits in the outbox and
+    // has to go out in as few batches as will hold it.
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(link.send(USER, CONVERSATION, message(i)));
+    }
+    relay.open.countDown();
+
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(new Uuid(100 + i), relay.written.poll(5, TimeUnit.SECONDS));
+    }
+
+    final List<Integer> sizes = new ArrayList<>();
+    relay.batches.drainTo(sizes);
+    assertTrue(sizes.size() < 10);
+  }
+
+  @Test
+  public void testSendDropsWhenFull() throws Exception {
+
+    final TestRelay relay = new TestRelay();
+
+    link = new RelayLink(Uuid.NULL, SECRET, relay, 10, new RelayLink.Listener() {
+      @Override
+      public void onBundles(Collection<Relay.Bundle> bundles) { }
+    });
+    link.start();
+
+    // The relay never finishes a write so the outbox can only fill up. Sending
+    // must keep returning right away, just without keeping the message.
+    int sent = 0;
+    while (sent < 100000 && link.send(USER, CONVERSATION, message(sent))) {
+      sent++;
+    }
+
+    assertTrue(sent < 100000);
+    assertFalse(link.send(USER, CONVERSATION, message(sent)));
+
+    relay.open.countDown();
+  }
+
+  @Test
+  public void testPollDeliversBundles() throws Exception {
+
+    final TestRelay relay = new TestRelay();
+    final BlockingQueue<Uuid> applied = new LinkedBlockingQueue<>();
+
+    for (int i = 0; i < 50; i++) {
+      relay.unread.add(bundle(i));
+    }
+
+    link = new RelayLink(Uuid.NULL, SECRET, relay, 10, new RelayLink.Listener() {
+      @Override
+      public void onBundles(Collection<Relay.Bundle> bundles) {
+        for (final Relay.Bundle bundle : bundles) {
+          applied.add(bundle.id());
+        }
+      }
+    });
+    link.start();
+
+    for (int i = 0; i < 50; i++) {
+      assertEquals(new Uuid(1000 + i), applied.poll(5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testSubscriptionDeliversBundles() throws Exception {
+
+    final TestRelay relay = new TestRelay();
+    relay.subscribable = true;
+
+    final BlockingQueue<Uuid> applied = new LinkedBlockingQueue<>();
+
+    // Reading would only happen once a minute so anything that arrives in
+    // time must have been pushed.
+    link = new RelayLink(Uuid.NULL, SECRET, relay, 60000, new RelayLink.Listener() {
+      @Override
+      public void onBundles(Collection<Relay.Bundle> bundles) {
+        for (final Relay.Bundle bundle : bundles) {
+          applied.add(bundle.id());
+        }
+      }
+    });
+    link.start();
+
+    for (int i = 0; i < 50; i++) {
+      relay.unread.add(bundle(i));
+    }
+
+    for (int i = 0; i < 50; i++) {
+      assertEquals(new Uuid(1000 + i), applied.poll(5, TimeUnit.SECONDS));
+    }
+  }
+
+  private static Message message(int i) {
+    return new Message(new Uuid(100 + i), Uuid.NULL, Uuid.NULL, Time.now(), USER.id, "message " + i);
+  }
+
+  private static Relay.Bundle bundle(final int i) {
+    final NoOpRelay packer = new NoOpRelay();
+    final Time now = Time.now();
+    return new Relay.Bundle() {
+      @Override
+      public Uuid id() { return new Uuid(1000 + i); }
+
+      @Override
+      public Time time() { return now; }
+
+      @Override
+      public Uuid team() { return Uuid.NULL; }
+
+      @Override
+      public Relay.Bundle.Component user() { return packer.pack(USER.id, USER.name, now); }
+
+      @Override
+      public Relay.Bundle.Component conversation() {
+        return packer.pack(CONVERSATION.id, CONVERSATION.title, now);
+      }
+
+      @Override
+      public Relay.Bundle.Component message() {
+        return packer.pack(new Uuid(100 + i), "message " + i, now);
+      }
+    };
+  }
+}
@@ -0,0 +1,303 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.ClientConnectionSource;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+
+public final class RemoteRelayTest {
+
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  private ServerSocket socket;
+  private Thread relay;
+
+  // Connections the test relay took. Like a relay, it never closes them
+  // itself.
+  private final List<Socket> clients = Collections.synchronizedList(new ArrayList<Socket>());
+
+  @Before
+  public void doBefore() throws IOException {
+    socket = new ServerSocket(0);
+  }
+
+  @After
+  public void doAfter() throws Exception {
+    socket.close();
+    if (relay != null) {
+      relay.interrupt();
+      relay.join();
+    }
+    for (final Socket client : clients) {
+      client.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testQuietRelayEndsSubscription() throws Exception {
+
+    // Takes the subscription and sends the first, empty, group of bundles
+    // and then never sends anything again while holding the connection open.
+    relay = new Thread() {
+      @Override
+      public void run() {
+        try (final Socket client = socket.accept()) {
+          final OutputStream out = client.getOutputStream();
+          Serializers.INTEGER.write(out, NetworkCode.RELAY_SUBSCRIBE_RESPONSE);
+          Serializers.BOOLEAN.write(out, true);
+          Serializers.collection(Uuid.SERIALIZER).write(out, new ArrayList<Uuid>());
+          out.flush();
+          Thread.sleep(Long.MAX_VALUE);
+        } catch (IOException | InterruptedException ex) {
+          // The test is over.
+        }
+      }
+    };
+    relay.start();
+
+    final RemoteRelay remote = new RemoteRelay(new ClientConnectionSource("localhost", socket.getLocalPort()), 200, 200);
+    final AtomicInteger calls = new AtomicInteger(0);
+
+    final boolean accepted = remote.subscribe(new Uuid(1), SECRET, Uuid.NULL, new Relay.Subscriber() {
+      @Override
+      public boolean onBundles(Collection<Relay.Bundle> bundles) {
+        calls.incrementAndGet();
+        return true;
+      }
+    });
+
+    // The subscription did start, so the caller is told that it ended rather
+    // than that it was turned down.
+    assertTrue(accepted);
+    assertEquals(1, calls.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testSlowSubscriberIsNotTimedOut() throws Exception {
+
+    // Sends two groups of bundles, the second only once the first has been
+    // taken, and then ends the subscription by closing the connection.
+    relay = new Thread() {
+      @Override
+      public void run() {
+        try (final Socket client = socket.accept()) {
+          final OutputStream out = client.getOutputStream();
+          Serializers.INTEGER.write(out, NetworkCode.RELAY_SUBSCRIBE_RESPONSE);
+          Serializers.BOOLEAN.write(out, true);
+          Serializers.collection(Uuid.SERIALIZER).write(out, new ArrayList<Uuid>());
+          Serializers.collection(Uuid.SERIALIZER).write(out, new ArrayList<Uuid>());
+          out.flush();
+        } catch (IOException ex) {
+          // The test will fail on its own.
+        }
+      }
+    };
+    relay.start();
+
+    final RemoteRelay remote = new RemoteRelay(new ClientConnectionSource("localhost", socket.getLocalPort()), 200, 200);
+    final AtomicInteger calls = new AtomicInteger(0);
+
+    // The subscriber takes longer than the timeout but the relay has already
+    // answered, so the second group must still be read.
+    assertTrue(remote.subscribe(new Uuid(1), SECRET, Uuid.NULL, new Relay.Subscriber() {
+      @Override
+      public boolean onBundles(Collection<Relay.Bundle> bundles) {
+        try {
+          Thread.sleep(600);
+        } catch (InterruptedException ex) {
+          return false;
+        }
+        calls.incrementAndGet();
+        return true;
+      }
+    }));
+
+    assertEquals(2, calls.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testBatchFallsBackWhenRelayNeverAnswers() throws Exception {
+
+    // Like a relay from before batches: a request it does not know is ignored
+    // and the connection is left open.
+    final List<Integer> types = serve(OLD_RELAY);
+
+    final RemoteRelay remote = new RemoteRelay(new ClientConnectionSource("localhost", socket.getLocalPort()), 200, 200);
+
+    assertTrue(remote.write(new Uuid(1), SECRET, outgoing(remote, 2)));
+    assertEquals(Arrays.asList(NetworkCode.RELAY_WRITE_BATCH_REQUEST,
+                               NetworkCode.RELAY_WRITE_REQUEST,
+                               NetworkCode.RELAY_WRITE_REQUEST), types);
+
+    // Having timed out once, the next messages go one at a time right away.
+    assertTrue(remote.write(new Uuid(1), SECRET, outgoing(remote, 1)));
+    assertEquals(Arrays.asList(NetworkCode.RELAY_WRITE_BATCH_REQUEST,
+                               NetworkCode.RELAY_WRITE_REQUEST,
+                               NetworkCode.RELAY_WRITE_REQUEST,
+                               NetworkCode.RELAY_WRITE_REQUEST), types);
+  }
+
+  @Test(timeout = 10000)
+  public void testBatchFallsBackWhenRelayResets() throws Exception {
+
+    final List<Integer> types = serve(new Answer() {
+      @Override
+      public void answer(int type, Socket client) throws IOException {
+        if (type == NetworkCode.RELAY_WRITE_BATCH_REQUEST) {
+          // Closing right away sends a reset rather than an end of stream.
+          client.setSoLinger(true, 0);
+          client.close();
+        } else {
+          OLD_RELAY.answer(type, client);
+        }
+      }
+    });
+
+    // The timeout is long enough that only the reset can end the batch.
+    final RemoteRelay remote = new RemoteRelay(new ClientConnectionSource("localhost", socket.getLocalPort()), 200, 60000);
+
+    assertTrue(remote.write(new Uuid(1), SECRET, outgoing(remote, 2)));
+    assertEquals(Arrays.asList(NetworkCode.RELAY_WRITE_BATCH_REQUEST,
+                               NetworkCode.RELAY_WRITE_REQUEST,
+                               NetworkCode.RELAY_WRITE_REQUEST), types);
+  }
+
+  @Test(timeout = 10000)
+  public void testBatchFailsOnceOnUnexpectedAnswer() throws Exception {
+
+    final List<Integer> types = serve(new Answer() {
+      @Override
+      public void answer(int type, Socket client) throws IOException {
+        Serializers.INTEGER.write(client.getOutputStream(), NetworkCode.NO_MESSAGE);
+      }
+    });
+
+    final RemoteRelay remote = new RemoteRelay(new ClientConnectionSource("localhost", socket.getLocalPort()), 200, 200);
+
+    assertFalse(remote.write(new Uuid(1), SECRET, outgoing(remote, 2)));
+    assertEquals(Arrays.asList(NetworkCode.RELAY_WRITE_BATCH_REQUEST), types);
+  }
+
+  @Test
+  public void testBatchFailsOnceWhenRelayIsDown() throws Exception {
+
+    final AtomicInteger attempts = new AtomicInteger(0);
+    final RemoteRelay remote = new RemoteRelay(new ConnectionSource() {
+      @Override
+      public Connection connect() throws IOException {
+        attempts.incrementAndGet();
+        throw new IOException("Connection refused");
+      }
+
+      @Override
+      public void close() { }
+    });
+
+    assertFalse(remote.write(new Uuid(1), SECRET, outgoing(remote, 3)));
+    assertEquals(1, attempts.get());
+  }
+
+  // ANSWER
+  //
+  // What the test relay does once it has read a request's type.
+  private interface Answer {
+    void answer(int type, Socket client) throws IOException;
+  }
+
+  // OLD RELAY
+  //
+  // Answers a single write, as a relay does without reading past the type
+  // first, and ignores every other request.
+  private static final Answer OLD_RELAY = new Answer() {
+    @Override
+    public void answer(int type, Socket client) throws IOException {
+      if (type == NetworkCode.RELAY_WRITE_REQUEST) {
+        Serializers.INTEGER.write(client.getOutputStream(), NetworkCode.RELAY_WRITE_RESPONSE);
+        Serializers.BOOLEAN.write(client.getOutputStream(), true);
+      }
+    }
+  };
+
+  // SERVE
+  //
+  // Take connections one at a time, recording the type of each request and
+  // answering it. Like a relay, the connection is then left open for the
+  // other side to close.
+  private List<Integer> serve(final Answer answer) {
+
+    final List<Integer> types = Collections.synchronizedList(new ArrayList<Integer>());
+
+    relay = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Socket client = socket.accept();
+            clients.add(client);
+            final int type = Serializers.INTEGER.read(client.getInputStream());
+            types.add(type);
+            answer.answer(type, client);
+          }
+        } catch (IOException ex) {
+          // The test is over.
+        }
+      }
+    };
+    relay.start();
+
+    return types;
+  }
+
+  private static Collection<Relay.Outgoing> outgoing(Relay relay, int count) {
+    final Collection<Relay.Outgoing> messages = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      final Relay.Bundle.Component user = relay.pack(new Uuid(1), "user", Time.now());
+      final Relay.Bundle.Component conversation = relay.pack(new Uuid(2), "conversation", Time.now());
+      final Relay.Bundle.Component message = relay.pack(new Uuid(3 + i), "message " + i, Time.now());
+      messages.add(new Relay.Outgoing() {
+        @Override
+        public Relay.Bundle.Component user() { return user; }
+        @Override
+        public Relay.Bundle.Component conversation() { return conversation; }
+        @Override
+        public Relay.Bundle.Component message() { return message; }
+      });
+    }
+    return messages;
+  }
+}
@@ -0,0 +1,151 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import codeu.chat.client.core.Context;
+import codeu.chat.client.core.ConversationContext;
+import codeu.chat.client.core.UserContext;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.ClientConnectionSource;
+import codeu.chat.util.connections.ConnectionSource;
+import codeu.chat.util.connections.SelectorConnectionSource;
+import codeu.chat.util.connections.ServerConnectionSource;
+
+// SERVER BENCHMARK
+//
+// Compares the ways that a server can run its connections (see Workers).
+// For each mode a server is started on a free port and a number of clients
+// each add messages to their own conversation and read back the last message
+// after every add. Every request is sent over its own socket.
+//
+// Arguments: [<clients> [<requests per client>]]
+//
+// This is not a test and is not run by the TestRunner.
+public final class ServerBenchmark {
+
+  private static final int DEFAULT_CLIENTS = 64;
+  private static final int DEFAULT_REQUESTS = 100;
+
+  public static void main(String[] args) throws Exception {
+
+    final int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+    final int requests = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_REQUESTS;
+
+    for (final String mode : new String[] { Workers.POOL, Workers.VIRTUAL }) {
+      if (Workers.VIRTUAL.equals(mode) && !Workers.hasVirtual()) {
+        System.out.format("%-8s skipped, needs Java 21 or later%n", mode);
+        continue;
+      }
+      // Run each mode twice and only report the second run so that both get
+      // the same chance to warm up.
+      run(mode, clients, requests);
+      final long ms = run(mode, clients, requests);
+
+      final int total = clients * requests * 2;
+      System.out.format("%-8s clients=%d requests=%d ms=%d requests/s=%.0f%n",
+                        mode,
+                        clients,
+                        total,
+                        ms,
+                        total * 1000.0 / Math.max(1, ms));
+    }
+
+    System.exit(0);
+  }
+
+  private static long run(String mode, int clients, final int requests) throws Exception {
+
+    final int port = freePort();
+
+    final ConnectionSource serverSource = Workers.VIRTUAL.equals(mode) ?
+        ServerConnectionSource.forPort(port) :
+        SelectorConnectionSource.forPort(port);
+
+    final Server server = new Server(new Uuid(1), Secret.parse("ABCD"), new NoOpRelay(), Workers.forMode(mode));
+
+    final Thread acceptor = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            server.handleConnection(serverSource.connect());
+          }
+        } catch (IOException ex) {
+          // The source was closed at the end of the run.
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    final Context context = new Context(new ClientConnectionSource("localhost", port));
+    final UserContext user = context.create("benchmark");
+
+    final CountDownLatch ready = new CountDownLatch(clients);
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(clients);
+    final AtomicInteger failures = new AtomicInteger(0);
+
+    for (int i = 0; i < clients; i++) {
+      final ConversationContext conversation = user.start("conversation " + i);
+      final Thread client = new Thread() {
+        @Override
+        public void run() {
+          try {
+            ready.countDown();
+            start.await();
+            for (int j = 0; j < requests; j++) {
+              if (conversation.add("message " + j) == null || conversation.lastMessage() == null) {
+                failures.incrementAndGet();
+              }
+            }
+          } catch (InterruptedException ex) {
+            failures.incrementAndGet();
+          }
+          done.countDown();
+        }
+      };
+      client.setDaemon(true);
+      client.start();
+    }
+
+    ready.await();
+    final long startMs = System.currentTimeMillis();
+    start.countDown();
+    done.await();
+    final long ms = System.currentTimeMillis() - startMs;
+
+    serverSource.close();
+    server.close();
+
+    if (failures.get() > 0) {
+      System.out.format("%s: %d requests failed%n", mode, failures.get());
+    }
+
+    return ms;
+  }
+
+  private static int freePort() throws IOException {
+    try (final ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
@@ -0,0 +1,270 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.BasicView;
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Secret;
+import codeu.chat.common.User;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.Handshake;
+
+public final class ServerTest {
+
+  // TEST CONNECTION
+  //
+  // A connection that holds a whole request in memory and keeps whatever is
+  // written to it. "closed" is counted down once the server is done with it.
+  private static final class TestConnection implements Connection {
+
+    public final CountDownLatch closed = new CountDownLatch(1);
+
+    private final InputStream in;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    public TestConnection(byte[] request) {
+      this.in = new ByteArrayInputStream(request);
+    }
+
+    @Override
+    public InputStream in() { return in; }
+
+    @Override
+    public OutputStream out() { return out; }
+
+    @Override
+    public void close() { closed.countDown(); }
+
+    public InputStream response() throws InterruptedException {
+      assertTrue(closed.await(5, TimeUnit.SECONDS));
+      return new ByteArrayInputStream(out.toByteArray());
+    }
+  }
+
+  private ExecutorService workers;
+  private Server server;
+
+  @Before
+  public void doBefore() {
+    workers = Executors.newFixedThreadPool(4);
+    server = new Server(new Uuid(7), new Secret((byte)0x01), new NoOpRelay(), workers);
+  }
+
+  @After
+  public void doAfter() throws IOException {
+    server.close();
+    workers.shutdownNow();
+  }
+
+  @Test
+  public void testHandshakeOnLegacyConnectionGrantsNothing() throws Exception {
+
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(request, NetworkCode.HANDSHAKE_REQUEST);
+    Serializers.INTEGER.write(request, Handshake.VERSION + 3);
+    Serializers.INTEGER.write(request, Handshake.MULTIPLEX | Handshake.COMPACT);
+
+    final TestConnection connection = new TestConnection(request.toByteArray());
+    server.handleConnection(connection);
+
+    // The version is brought down to the highest one that the server knows
+    // and, as this connection can only carry one request, nothing is granted.
+    final InputStream response = connection.response();
+    assertEquals(NetworkCode.HANDSHAKE_RESPONSE, (int) Serializers.INTEGER.read(response));
+    assertEquals(Handshake.VERSION, (int) Serializers.INTEGER.read(response));
+    assertEquals(0, (int) Serializers.INTEGER.read(response));
+  }
+
+  @Test(timeout = 60000)
+  public void testReadsNeverSeeHalfAppliedWrites() throws Exception {
+
+    final User user = newUser("user");
+    final ConversationHeader conversation = newConversation("conversation", user.id);
+
+    final int total = 300;
+    final AtomicBoolean writing = new AtomicBoolean(true);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    // Each reader checks that whatever the conversation points to can be
+    // found and that the page before its last message is whole: linked end to
+    // end, with no gaps and nothing missing from the start.
+    final List<Thread> readers = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      readers.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            int seen = 0;
+            while (writing.get()) {
+
+              final ConversationPayload payload = getPayload(conversation.id);
+              if (Uuid.equals(payload.lastMessage, Uuid.NULL)) {
+                assertTrue(Uuid.equals(payload.firstMessage, Uuid.NULL));
+                continue;
+              }
+
+              final int ends = Uuid.equals(payload.firstMessage, payload.lastMessage) ? 1 : 2;
+              assertEquals(ends, getMessages(payload.firstMessage, payload.lastMessage).size());
+
+              final List<Message> page = new ArrayList<>(
+                  getRange(conversation.id, payload.lastMessage, BasicView.BACKWARD, total));
+
+              // The page starts after the message it is read from.
+              final int count = page.size() + 1;
+              assertTrue(count >= seen);
+              seen = count;
+
+              Uuid next = payload.lastMessage;
+              for (int position = 0; position < page.size(); position++) {
+                final Message message = page.get(position);
+                assertEquals("message " + (count - position - 2), message.content);
+                assertTrue(Uuid.equals(next, message.next));
+                next = message.id;
+              }
+              if (!page.isEmpty()) {
+                assertTrue(Uuid.equals(payload.firstMessage, page.get(page.size() - 1).id));
+                assertTrue(Uuid.equals(Uuid.NULL, page.get(page.size() - 1).previous));
+              }
+            }
+          } catch (Throwable ex) {
+            failure.compareAndSet(null, ex);
+          }
+        }
+      });
+    }
+
+    for (final Thread reader : readers) {
+      reader.start();
+    }
+
+    try {
+      for (int i = 0; i < total; i++) {
+        assertNotNull(newMessage(user.id, conversation.id, "message " + i));
+      }
+    } finally {
+      writing.set(false);
+      for (final Thread reader : readers) {
+        reader.join();
+      }
+    }
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+
+    final Collection<Message> all = getRange(conversation.id, Uuid.NULL, BasicView.FORWARD, total);
+    assertEquals(total, all.size());
+  }
+
+  private User newUser(String name) throws Exception {
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(request, NetworkCode.NEW_USER_REQUEST);
+    Serializers.STRING.write(request, name);
+
+    final InputStream response = call(request);
+    assertEquals(NetworkCode.NEW_USER_RESPONSE, (int) Serializers.INTEGER.read(response));
+    return Serializers.nullable(User.SERIALIZER).read(response);
+  }
+
+  private ConversationHeader newConversation(String title, Uuid owner) throws Exception {
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(request, NetworkCode.NEW_CONVERSATION_REQUEST);
+    Serializers.STRING.write(request, title);
+    Uuid.SERIALIZER.write(request, owner);
+
+    final InputStream response = call(request);
+    assertEquals(NetworkCode.NEW_CONVERSATION_RESPONSE, (int) Serializers.INTEGER.read(response));
+    return Serializers.nullable(ConversationHeader.SERIALIZER).read(response);
+  }
+
+  private Message newMessage(Uuid author, Uuid conversation, String content) throws Exception {
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(request, NetworkCode.NEW_MESSAGE_REQUEST);
+    Uuid.SERIALIZER.write(request, author);
+    Uuid.SERIALIZER.write(request, conversation);
+    Serializers.STRING.write(request, content);
+
+    final InputStream response = call(request);
+    assertEquals(NetworkCode.NEW_MESSAGE_RESPONSE, (int) Serializers.INTEGER.read(response));
+    return Serializers.nullable(Message.SERIALIZER).read(response);
+  }
+
+  private ConversationPayload getPayload(Uuid conversation) throws Exception {
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(request, NetworkCode.GET_CONVERSATIONS_BY_ID_REQUEST);
+    Serializers.collection(Uuid.SERIALIZER).write(request, Arrays.asList(conversation));
+
+    final InputStream response = call(request);
+    assertEquals(NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE, (int) Serializers.INTEGER.read(response));
+    final Collection<ConversationPayload> found = Serializers.collection(ConversationPayload.SERIALIZER).read(response);
+    assertEquals(1, found.size());
+    return found.iterator().next();
+  }
+
+  private Collection<Message> getMessages(Uuid... ids) throws Exception {
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(request, NetworkCode.GET_MESSAGES_BY_ID_REQUEST);
+    Serializers.collection(Uuid.SERIALIZER).write(request, Arrays.asList(ids));
+
+    final InputStream response = call(request);
+    assertEquals(NetworkCode.GET_MESSAGES_BY_ID_RESPONSE, (int) Serializers.INTEGER.read(response));
+    return Serializers.collection(Message.SERIALIZER).read(response);
+  }
+
+  private Collection<Message> getRange(Uuid conversation, Uuid start, int direction, int count) throws Exception {
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(request, NetworkCode.GET_MESSAGES_RANGE_REQUEST);
+    Uuid.SERIALIZER.write(request, conversation);
+    Uuid.SERIALIZER.write(request, start);
+    Serializers.INTEGER.write(request, direction);
+    Serializers.INTEGER.write(request, count);
+
+    final InputStream response = call(request);
+    assertEquals(NetworkCode.GET_MESSAGES_RANGE_RESPONSE, (int) Serializers.INTEGER.read(response));
+    return Serializers.collection(Message.SERIALIZER).read(response);
+  }
+
+  private InputStream call(ByteArrayOutputStream request) throws Exception {
+    final TestConnection connection = new TestConnection(request.toByteArray());
+    server.handleConnection(connection);
+    return connection.response();
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.common.BasicView;
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.Uuid;
+
+public final class ViewTest {
+
+  private Model model;
+  private Controller controller;
+  private BasicView view;
+
+  private ConversationHeader conversation;
+  private final List<Message> messages = new ArrayList<>();
+
+  @Before
+  public void doBefore() {
+    model = new Model();
+    controller = new Controller(Uuid.NULL, model);
+    view = new View(model);
+
+    final User user = controller.newUser("user");
+    conversation = controller.newConversation("conversation", user.id);
+
+    for (int i = 0; i < 10; i++) {
+      messages.add(controller.newMessage(user.id, conversation.id, "message " + i));
+    }
+  }
+
+  @Test
+  public void testRangeForward() {
+
+    final Collection<Message> first = view.getMessages(conversation.id, Uuid.NULL, BasicView.FORWARD, 4);
+    assertIds(first, 0, 1, 2, 3);
+
+    final Collection<Message> second = view.getMessages(conversation.id, messages.get(3).id, BasicView.FORWARD, 4);
+    assertIds(second, 4, 5, 6, 7);
+
+    final Collection<Message> last = view.getMessages(conversation.id, messages.get(7).id, BasicView.FORWARD, 4);
+    assertIds(last, 8, 9);
+  }
+
+  @Test
+  public void testRangeBackward() {
+
+    final Collection<Message> newest = view.getMessages(conversation.id, Uuid.NULL, BasicView.BACKWARD, 3);
+    assertIds(newest, 9, 8, 7);
+
+    final Collection<Message> oldest = view.getMessages(conversation.id, messages.get(2).id, BasicView.BACKWARD, 3);
+    assertIds(oldest, 1, 0);
+  }
+
+  @Test
+  public void testRangeStartNotInConversation() {
+
+    final User user = controller.newUser("other");
+    final ConversationHeader other = controller.newConversation("other", user.id);
+
+    assertTrue(view.getMessages(other.id, messages.get(0).id, BasicView.FORWARD, 4).isEmpty());
+    assertTrue(view.getMessages(new Uuid(12345), Uuid.NULL, BasicView.FORWARD, 4).isEmpty());
+  }
+
+  @Test
+  public void testSearch() {
+
+    final Collection<Message> found = view.searchMessages("MESSAGE 7", conversation.id, 0, 1);
+    assertIds(found, 7);
+
+    assertEquals(10, view.searchMessages("message", Uuid.NULL, 0, 100).size());
+    assertTrue(view.searchMessages("message", new Uuid(12345), 0, 100).isEmpty());
+  }
+
+  @Test
+  public void testSnapshot() {
+
+    final Model.Snapshot before = model.snapshot();
+
+    final Message added = controller.newMessage(messages.get(0).author, conversation.id, "added");
+
+    assertEquals(10, before.messagesIn(conversation.id).size());
+    assertEquals(11, model.snapshot().messagesIn(conversation.id).size());
+    assertTrue(model.snapshot().version() > before.version());
+
+    // The old last message was replaced by a copy that links to the new one.
+    assertEquals(added.id, model.messageById().first(messages.get(9).id).next);
+    assertEquals(messages.get(9).id, added.previous);
+
+    final Collection<Message> newest = view.getMessages(conversation.id, Uuid.NULL, BasicView.BACKWARD, 2);
+    final Message last = newest.iterator().next();
+    assertEquals(added.id, last.id);
+    assertEquals(Uuid.NULL, last.next);
+    assertEquals(messages.get(9).id, last.previous);
+  }
+
+  private void assertIds(Collection<Message> actual, int... expected) {
+
+    assertEquals(expected.length, actual.size());
+
+    int at = 0;
+    for (final Message message : actual) {
+      assertEquals(messages.get(expected[at]).id, message.id);
+      at += 1;
+    }
+  }
+}
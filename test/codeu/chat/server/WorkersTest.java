@@ -0,0 +1,54 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class WorkersTest {
+
+  @Test
+  public void testVirtualRunsOrIsRefused() throws Exception {
+
+    if (!Workers.hasVirtual()) {
+      try {
+        Workers.forMode(Workers.VIRTUAL);
+        fail("Expected virtual mode to be refused");
+      } catch (UnsupportedOperationException ex) {
+        // Expected.
+      }
+      return;
+    }
+
+    final ExecutorService workers = Workers.forMode(Workers.VIRTUAL);
+    try {
+      final Future<?> ran = workers.submit(new Runnable() {
+        @Override
+        public void run() { }
+      });
+      ran.get();
+    } finally {
+      workers.shutdown();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownMode() {
+    Workers.forMode("threads");
+  }
+}
@@ -0,0 +1,230 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.NewMessage;
+import codeu.chat.common.User;
+import codeu.chat.util.Uuid;
+
+public final class WriteAheadLogTest {
+
+  private File directory;
+
+  @Before
+  public void doBefore() throws IOException {
+    directory = Files.createTempDirectory("wal").toFile();
+  }
+
+  @After
+  public void doAfter() {
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testReplay() throws IOException {
+
+    final Model before = new Model();
+    final WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.ALWAYS, 0, new Controller(Uuid.NULL, before));
+    final Controller controller = new Controller(Uuid.NULL, before, log);
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+    final Message a = controller.newMessage(user.id, conversation.id, "a");
+    controller.newMessages(Arrays.asList(
+        new NewMessage(user.id, conversation.id, "b"),
+        new NewMessage(user.id, conversation.id, "c")));
+
+    log.sync();
+    log.close();
+
+    final Model after = new Model();
+    WriteAheadLog.open(directory, WriteAheadLog.ALWAYS, 0, new Controller(Uuid.NULL, after)).close();
+
+    assertEquals("user", after.userById().first(user.id).name);
+    assertEquals(user.creation.inMs(), after.userById().first(user.id).creation.inMs());
+    assertEquals("conversation", after.conversationById().first(conversation.id).title);
+    assertEquals(3, after.messagesIn(conversation.id).size());
+
+    final ConversationPayload payload = after.conversationPayloadById().first(conversation.id);
+    assertEquals(a.id, payload.firstMessage);
+
+    final Message replayed = after.messageById().first(a.id);
+    assertEquals("a", replayed.content);
+    assertEquals(a.creation.inMs(), replayed.creation.inMs());
+    assertEquals("b", after.messageById().first(replayed.next).content);
+  }
+
+  @Test
+  public void testDropsIncompleteRecord() throws IOException {
+
+    final Model before = new Model();
+    final WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.NEVER, 0, new Controller(Uuid.NULL, before));
+    final User user = new Controller(Uuid.NULL, before, log).newUser("user");
+    log.sync();
+    log.close();
+
+    // As if the server went down part way through writing the next record.
+    final List<Long> segments = WriteAheadLog.segments(directory);
+    final File last = WriteAheadLog.segmentFile(directory, segments.get(segments.size() - 1));
+    try (final FileOutputStream out = new FileOutputStream(last, true)) {
+      out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+    }
+
+    final Model middle = new Model();
+    final WriteAheadLog reopened = WriteAheadLog.open(directory, WriteAheadLog.INTERVAL, 0, new Controller(Uuid.NULL, middle));
+    final User other = new Controller(Uuid.NULL, middle, reopened).newUser("other");
+    reopened.sync();
+    reopened.close();
+
+    final Model after = new Model();
+    WriteAheadLog.open(directory, WriteAheadLog.ALWAYS, 0, new Controller(Uuid.NULL, after)).close();
+
+    assertNotNull(after.userById().first(user.id));
+    assertNotNull(after.userById().first(other.id));
+  }
+
+  @Test
+  public void testSnapshotAndTruncate() throws Exception {
+
+    final Model before = new Model();
+    final WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.ALWAYS, 0, new Controller(Uuid.NULL, before));
+    final Controller controller = new Controller(Uuid.NULL, before, log);
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+    final Message a = controller.newMessage(user.id, conversation.id, "a");
+
+    final long segment = log.rotate();
+    final Model.Snapshot pinned = before.snapshot();
+
+    // Added after the snapshot was pinned so it must come from the log.
+    final Message b = controller.newMessage(user.id, conversation.id, "b");
+
+    SnapshotFile.write(directory, segment, before, pinned);
+    log.truncate(segment);
+    log.sync();
+    log.close();
+
+    assertEquals(segment, SnapshotFile.latest(directory));
+    assertFalse(WriteAheadLog.segments(directory).contains(segment));
+
+    final Model after = new Model();
+    assertEquals(segment, SnapshotFile.load(directory, after, ForkJoinPool.commonPool()));
+    assertEquals(1, after.messagesIn(conversation.id).size());
+
+    WriteAheadLog.open(directory, WriteAheadLog.ALWAYS, segment, new Controller(Uuid.NULL, after)).close();
+
+    assertEquals("user", after.userById().first(user.id).name);
+    assertEquals(2, after.messagesIn(conversation.id).size());
+    assertEquals(b.id, after.messageById().first(a.id).next);
+    assertEquals(a.id, after.messageById().first(b.id).previous);
+
+    final ConversationPayload payload = after.conversationPayloadById().first(conversation.id);
+    assertEquals(a.id, payload.firstMessage);
+    assertEquals(b.id, payload.lastMessage);
+
+    // Both the message from the snapshot and the one replayed while the
+    // secondary indexes were being rebuilt can be found.
+    after.awaitSecondary();
+    assertEquals(1, after.messageByWord().search("a", conversation.id, 0, 10).size());
+    assertEquals(1, after.messageByWord().search("b", conversation.id, 0, 10).size());
+    assertEquals(1, after.userByName().exact("user", 10).size());
+  }
+
+  @Test
+  public void testRefusesChangesOnceWriterFails() throws IOException {
+
+    final File gone = new File(directory, "gone");
+    assertTrue(gone.mkdir());
+
+    final Model model = new Model();
+    final WriteAheadLog log = WriteAheadLog.open(gone, WriteAheadLog.ALWAYS, 0, new Controller(Uuid.NULL, model));
+    final Controller controller = new Controller(Uuid.NULL, model, log);
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation = controller.newConversation("conversation", user.id);
+    log.sync();
+
+    // With its directory gone the writer can't open the next segment.
+    for (final File file : gone.listFiles()) {
+      file.delete();
+    }
+    gone.delete();
+
+    // Waits for the writer to move past the old segment, which it never will.
+    try {
+      log.truncate(log.rotate());
+      fail("Expected the writer to fail");
+    } catch (IOException ex) {
+      // Expected.
+    }
+
+    final int messages = model.messagesIn(conversation.id).size();
+    final ConversationPayload payload = model.conversationPayloadById().first(conversation.id);
+
+    try {
+      controller.newUser("late");
+      fail("Expected the new user to be refused");
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+
+    try {
+      controller.newMessage(user.id, conversation.id, "late");
+      fail("Expected the new message to be refused");
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+
+    try {
+      controller.newMessages(Arrays.asList(
+          new NewMessage(user.id, conversation.id, "late a"),
+          new NewMessage(user.id, conversation.id, "late b")));
+      fail("Expected the new messages to be refused");
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+
+    // Nothing that was refused made it into the model.
+    int users = 0;
+    for (final User found : model.userById().all()) {
+      users++;
+    }
+    assertEquals(1, users);
+    assertEquals(messages, model.messagesIn(conversation.id).size());
+    assertSame(payload, model.conversationPayloadById().first(conversation.id));
+
+    log.close();
+  }
+}
@@ -0,0 +1,179 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class BufferSerializersTest {
+
+  @Test
+  public void testStringFromDirectBuffer() throws IOException {
+
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+    BufferSerializers.STRING.write(buffer, "h\u00e9llo \u4e16\u754c", Wire.STANDARD);
+    buffer.flip();
+
+    assertEquals("h\u00e9llo \u4e16\u754c", BufferSerializers.STRING.read(buffer, Wire.STANDARD));
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  public void testSameBytesAsStream() throws IOException {
+
+    final Uuid id = new Uuid(new Uuid(7), 42);
+
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    Uuid.SERIALIZER.write(stream, id);
+    Serializers.STRING.write(stream, "text");
+    Time.SERIALIZER.write(stream, Time.fromMs(1234));
+
+    final ByteBuffer buffer = ByteBuffer.allocate(64);
+    Uuid.BUFFER_SERIALIZER.write(buffer, id, Wire.STANDARD);
+    BufferSerializers.STRING.write(buffer, "text", Wire.STANDARD);
+    Time.BUFFER_SERIALIZER.write(buffer, Time.fromMs(1234), Wire.STANDARD);
+    buffer.flip();
+
+    final byte[] written = new byte[buffer.remaining()];
+    buffer.get(written);
+
+    assertArrayEquals(stream.toByteArray(), written);
+  }
+
+  @Test(expected = BufferUnderflowException.class)
+  public void testPartialValue() throws IOException {
+
+    final ByteBuffer buffer = ByteBuffer.allocate(64);
+    BufferSerializers.STRING.write(buffer, "cut short", Wire.STANDARD);
+    buffer.flip();
+    buffer.limit(buffer.limit() - 1);
+
+    BufferSerializers.STRING.read(buffer, Wire.STANDARD);
+  }
+
+  @Test
+  public void testReadFromTrickleStream() throws IOException {
+
+    final Collection<Uuid> ids = Arrays.asList(new Uuid(1), new Uuid(new Uuid(2), 3), new Uuid(4));
+
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    Serializers.collection(Uuid.SERIALIZER).write(stream, ids);
+
+    // Only give out one byte per read so that every value is split.
+    final InputStream trickle = new ByteArrayInputStream(stream.toByteArray()) {
+      @Override
+      public synchronized int read(byte[] bytes, int offset, int length) {
+        return super.read(bytes, offset, Math.min(1, length));
+      }
+    };
+
+    final BufferInputStream in = new BufferInputStream(trickle);
+
+    assertEquals(ids, Serializers.collection(Uuid.SERIALIZER).read(in));
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void testOtherStreamsAreNotOverRead() throws IOException {
+
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    Serializers.STRING.write(stream, "first");
+    Serializers.INTEGER.write(stream, 99);
+
+    final InputStream in = new ByteArrayInputStream(stream.toByteArray());
+
+    assertEquals("first", Serializers.STRING.read(in));
+    assertEquals(99, (int) Serializers.INTEGER.read(in));
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void testWriteGrowsBuffer() throws IOException {
+
+    final char[] chars = new char[10000];
+    Arrays.fill(chars, 'x');
+    final String large = new String(chars);
+
+    final BufferOutputStream out = new BufferOutputStream(new BufferPool(1));
+    Serializers.STRING.write(out, large);
+
+    final BufferInputStream in = new BufferInputStream(out.finish());
+    assertEquals(large, Serializers.STRING.read(in));
+
+    out.release();
+  }
+
+  @Test
+  public void testCompactRoundTrip() throws IOException {
+
+    final Uuid root = new Uuid(12);
+    final Collection<Uuid> ids = Arrays.asList(
+        new Uuid(root, 1), new Uuid(root, -2), Uuid.NULL, new Uuid(new Uuid(13), Integer.MIN_VALUE), null);
+    final Collection<Time> times = Arrays.asList(
+        Time.fromMs(1500000000000L), Time.fromMs(1500000000250L), Time.fromMs(1499999999000L));
+
+    final BufferSerializer<Collection<Uuid>> idsSerializer =
+        BufferSerializers.collection(BufferSerializers.nullable(Uuid.BUFFER_SERIALIZER));
+    final BufferSerializer<Collection<Time>> timesSerializer =
+        BufferSerializers.collection(Time.BUFFER_SERIALIZER);
+
+    final ByteBuffer buffer = ByteBuffer.allocate(256);
+    final Wire writing = Wire.compact();
+    idsSerializer.write(buffer, ids, writing);
+    timesSerializer.write(buffer, times, writing);
+    BufferSerializers.INTEGER.write(buffer, -1, writing);
+    buffer.flip();
+
+    final Wire reading = Wire.compact();
+    assertEquals(ids, idsSerializer.read(buffer, reading));
+    final Iterator<Time> expected = times.iterator();
+    for (final Time time : timesSerializer.read(buffer, reading)) {
+      assertEquals(expected.next().inMs(), time.inMs());
+    }
+    assertFalse(expected.hasNext());
+    assertEquals(-1, (int) BufferSerializers.INTEGER.read(buffer, reading));
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  public void testCompactIsSmaller() throws IOException {
+
+    final Uuid root = new Uuid(7);
+    final Collection<Uuid> ids = Arrays.asList(new Uuid(root, 10), new Uuid(root, 11), new Uuid(root, 12));
+
+    final BufferSerializer<Collection<Uuid>> serializer = BufferSerializers.collection(Uuid.BUFFER_SERIALIZER);
+
+    final ByteBuffer standard = ByteBuffer.allocate(64);
+    serializer.write(standard, ids, Wire.STANDARD);
+
+    final ByteBuffer compact = ByteBuffer.allocate(64);
+    serializer.write(compact, ids, Wire.compact());
+
+    // Four bytes of size and nine bytes per id against one byte of size, three
+    // bytes for the first id and two bytes for each id that shares its root.
+    assertEquals(31, standard.position());
+    assertEquals(8, compact.position());
+  }
+}
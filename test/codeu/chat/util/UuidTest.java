@@ -149,4 +149,27 @@ public final class UuidTest {
 
     assertEquals(start, end);
   }
+
+  @Test
+  public void testHashEqual() {
+    final Uuid u1 = new Uuid(new Uuid(1), 2);
+    final Uuid u2 = new Uuid(new Uuid(1), 2);
+
+    assertEquals(u1.hashCode(), u2.hashCode());
+  }
+
+  @Test
+  public void testEqualsLongChain() {
+
+    // Long enough that walking the chain recursively could run out of stack.
+    Uuid u1 = null;
+    Uuid u2 = null;
+    for (int i = 0; i < 100000; i++) {
+      u1 = new Uuid(u1, i);
+      u2 = new Uuid(u2, i);
+    }
+
+    assertTrue(Uuid.equals(u1, u2));
+    assertFalse(Uuid.equals(u1, new Uuid(u2.root(), -1)));
+  }
 }
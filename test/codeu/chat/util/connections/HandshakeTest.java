@@ -0,0 +1,219 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Serializers;
+
+public final class HandshakeTest {
+
+  private ConnectionSource server;
+  private int port;
+  private volatile boolean closed = false;
+
+  // The version and features that the handler answers a handshake with when
+  // one reaches it as a legacy request.
+  private volatile int answerVersion = Handshake.VERSION;
+  private volatile int answerFeatures = 0;
+
+  private final AtomicInteger handled = new AtomicInteger(0);
+
+  @After
+  public void doAfter() throws IOException {
+    closed = true;
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testCodesMatchNetworkCode() {
+    assertEquals(NetworkCode.HANDSHAKE_REQUEST, Handshake.REQUEST);
+    assertEquals(NetworkCode.HANDSHAKE_RESPONSE, Handshake.RESPONSE);
+  }
+
+  @Test
+  public void testNegotiatesVersionAndFeatures() throws IOException {
+
+    final SelectorConnectionSource selector = startSelector();
+
+    try (final Socket socket = new Socket("localhost", selector.port())) {
+
+      // Ask for a newer version than the server knows and for a feature that
+      // it does not grant.
+      final int wanted = Handshake.MULTIPLEX | Handshake.COMPACT | Handshake.COMPRESSION;
+      socket.getOutputStream().write(bytes(Handshake.request(Handshake.VERSION + 5, wanted)));
+
+      final DataInputStream in = new DataInputStream(socket.getInputStream());
+      assertEquals(Handshake.RESPONSE, in.readInt());
+      assertEquals(Handshake.VERSION, in.readInt());
+      assertEquals(Handshake.MULTIPLEX | Handshake.COMPACT, in.readInt());
+    }
+
+    // The selector answered the handshake itself.
+    assertEquals(0, handled.get());
+  }
+
+  @Test
+  public void testWithoutMultiplexIsLegacyRequest() throws IOException {
+
+    final SelectorConnectionSource selector = startSelector();
+
+    try (final Socket socket = new Socket("localhost", selector.port())) {
+
+      socket.getOutputStream().write(bytes(Handshake.request(Handshake.VERSION, Handshake.COMPACT)));
+
+      // The handshake is handed out like any other request and the socket is
+      // closed after the answer.
+      final DataInputStream in = new DataInputStream(socket.getInputStream());
+      assertEquals(Handshake.RESPONSE, in.readInt());
+      assertEquals(Handshake.VERSION, in.readInt());
+      assertEquals(0, in.readInt());
+      assertEquals(-1, in.read());
+    }
+
+    assertEquals(1, handled.get());
+  }
+
+  @Test
+  public void testClientFallsBackOnRefusal() throws IOException {
+
+    startLegacy();
+
+    final MultiplexedConnectionSource client =
+        new MultiplexedConnectionSource("localhost", port);
+
+    assertEquals("one", echo(client, "one"));
+    assertEquals("two", echo(client, "two"));
+
+    // The handshake and then one socket for each request.
+    assertEquals(3, handled.get());
+
+    client.close();
+  }
+
+  @Test
+  public void testClientFallsBackOnUnknownVersion() throws IOException {
+
+    // A server that claims a version the client does not know cannot be
+    // trusted with anything it grants.
+    answerVersion = Handshake.VERSION + 1;
+    answerFeatures = Handshake.MULTIPLEX;
+
+    startLegacy();
+
+    final MultiplexedConnectionSource client =
+        new MultiplexedConnectionSource("localhost", port);
+
+    assertEquals("one", echo(client, "one"));
+    assertEquals("two", echo(client, "two"));
+    assertEquals(3, handled.get());
+
+    client.close();
+  }
+
+  private SelectorConnectionSource startSelector() throws IOException {
+    final SelectorConnectionSource selector = (SelectorConnectionSource) SelectorConnectionSource.forPort(0, 1);
+    server = selector;
+    port = selector.port();
+    handle(selector);
+    return selector;
+  }
+
+  // START LEGACY
+  //
+  // A server that carries one request per socket, the same as a server that
+  // is not using a SelectorConnectionSource.
+  private void startLegacy() throws IOException {
+    final ServerSocket socket = new ServerSocket(0);
+    port = socket.getLocalPort();
+    server = new ConnectionSource() {
+      @Override
+      public Connection connect() throws IOException {
+        return new SocketConnection(socket.accept());
+      }
+
+      @Override
+      public void close() throws IOException {
+        socket.close();
+      }
+    };
+    handle(server);
+  }
+
+  // HANDLE
+  //
+  // Answer handshakes with "answerVersion" and "answerFeatures" and echo
+  // any string that is sent.
+  private void handle(final ConnectionSource source) {
+    final Thread handler = new Thread() {
+      @Override
+      public void run() {
+        while (true) {
+          try (final Connection connection = source.connect()) {
+            handled.incrementAndGet();
+            final InputStream in = connection.in();
+            final OutputStream out = connection.out();
+            final int type = Serializers.INTEGER.read(in);
+            if (type == Handshake.REQUEST) {
+              Serializers.INTEGER.read(in);
+              Serializers.INTEGER.read(in);
+              Serializers.INTEGER.write(out, Handshake.RESPONSE);
+              Serializers.INTEGER.write(out, answerVersion);
+              Serializers.INTEGER.write(out, answerFeatures);
+            } else {
+              Serializers.STRING.write(out, Serializers.STRING.read(in));
+            }
+          } catch (IOException ex) {
+            if (closed) {
+              return;
+            }
+          }
+        }
+      }
+    };
+    handler.setDaemon(true);
+    handler.start();
+  }
+
+  // The echo requests are a type followed by the string so that they are
+  // never mistaken for a handshake.
+  private static String echo(ConnectionSource source, String text) throws IOException {
+    try (final Connection connection = source.connect()) {
+      Serializers.INTEGER.write(connection.out(), NetworkCode.NO_MESSAGE);
+      Serializers.STRING.write(connection.out(), text);
+      return Serializers.STRING.read(connection.in());
+    }
+  }
+
+  private static byte[] bytes(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
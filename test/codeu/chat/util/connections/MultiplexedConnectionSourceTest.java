@@ -0,0 +1,294 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Serializers;
+
+public final class MultiplexedConnectionSourceTest {
+
+  private static final int HANDLERS = 4;
+
+  private SelectorConnectionSource server;
+  private ExecutorService handlers;
+
+  // PROXY
+  //
+  // Passes sockets through to the server, except that it answers the first
+  // "refusals" handshakes itself the way a server from before handshakes
+  // would: with NO_MESSAGE and a closed socket.
+  private ServerSocket proxy;
+  private final AtomicInteger refusals = new AtomicInteger(0);
+  private final AtomicInteger proxied = new AtomicInteger(0);
+
+  @Before
+  public void doBefore() throws IOException {
+
+    server = (SelectorConnectionSource) SelectorConnectionSource.forPort(0, 1);
+
+    // Several handlers that each take a random amount of time so that the
+    // responses come back in a different order than the requests went out.
+    handlers = Executors.newFixedThreadPool(HANDLERS);
+    for (int i = 0; i < HANDLERS; i++) {
+      handlers.execute(new Runnable() {
+        @Override
+        public void run() {
+          final Random random = new Random();
+          while (true) {
+            try (final Connection connection = server.connect()) {
+              final String text = Serializers.STRING.read(connection.in());
+              Thread.sleep(random.nextInt(3));
+              Serializers.STRING.write(connection.out(), text);
+            } catch (InterruptedException | InterruptedIOException ex) {
+              return;
+            } catch (IOException ex) {
+              // The client went away.
+            }
+          }
+        }
+      });
+    }
+
+    proxy = new ServerSocket(0);
+    final Thread acceptor = new Thread() {
+      @Override
+      public void run() {
+        while (true) {
+          try {
+            final Socket client = proxy.accept();
+            proxied.incrementAndGet();
+            pass(client);
+          } catch (IOException ex) {
+            return;
+          }
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  @After
+  public void doAfter() throws IOException {
+    proxy.close();
+    handlers.shutdownNow();
+    server.close();
+  }
+
+  @Test
+  public void testResponsesMatchRequests() throws Exception {
+
+    final MultiplexedConnectionSource client =
+        new MultiplexedConnectionSource("localhost", server.port());
+
+    // Many callers share the one socket at the same time and every one of them
+    // must get the response to its own request.
+    final ExecutorService callers = Executors.newFixedThreadPool(8);
+    final List<Future<Boolean>> results = new ArrayList<>();
+
+    for (int i = 0; i < 8; i++) {
+      final int caller = i;
+      results.add(callers.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws IOException {
+          for (int request = 0; request < 50; request++) {
+            final String text = caller + ":" + request;
+            if (!text.equals(echo(client, text))) {
+              return false;
+            }
+          }
+          return true;
+        }
+      }));
+    }
+
+    for (final Future<Boolean> result : results) {
+      assertTrue(result.get());
+    }
+
+    callers.shutdown();
+    client.close();
+  }
+
+  @Test
+  public void testFallsBackToLegacy() throws IOException {
+
+    refusals.set(1000);
+
+    final MultiplexedConnectionSource client =
+        new MultiplexedConnectionSource("localhost", proxy.getLocalPort());
+
+    assertEquals("one", echo(client, "one"));
+    assertEquals("two", echo(client, "two"));
+
+    // One socket for the refused handshake and then one for each request.
+    assertEquals(3, proxied.get());
+
+    client.close();
+  }
+
+  @Test
+  public void testRetriesMultiplexAfterBackoff() throws Exception {
+
+    refusals.set(1);
+
+    final MultiplexedConnectionSource client = new MultiplexedConnectionSource(
+        "localhost", proxy.getLocalPort(), Handshake.MULTIPLEX, 200);
+
+    assertEquals("one", echo(client, "one"));
+    assertEquals("two", echo(client, "two"));
+    assertEquals(3, proxied.get());
+
+    Thread.sleep(300);
+
+    // The handshake is tried again and this time the server agrees, so every
+    // request from here on shares one socket.
+    assertEquals("three", echo(client, "three"));
+    assertEquals("four", echo(client, "four"));
+    assertEquals("five", echo(client, "five"));
+    assertEquals(4, proxied.get());
+
+    client.close();
+  }
+
+  @Test(timeout = 10000)
+  public void testEmptyRequest() throws IOException {
+
+    final MultiplexedConnectionSource client =
+        new MultiplexedConnectionSource("localhost", server.port());
+
+    // Nothing is written so only the frame header goes out. The handlers run
+    // out of bytes and answer with an empty response.
+    try (final Connection connection = client.connect()) {
+      assertEquals(-1, connection.in().read());
+    }
+
+    client.close();
+  }
+
+  @Test(timeout = 10000)
+  public void testBadFrameLengthFailsCalls() throws Exception {
+
+    try (final ServerSocket bad = new ServerSocket(0)) {
+
+      // Grants MULTIPLEX and then answers the first frame with a header
+      // claiming a negative length.
+      final Thread responder = new Thread() {
+        @Override
+        public void run() {
+          try (final Socket socket = bad.accept()) {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            in.readFully(new byte[Handshake.BYTES]);
+            out.writeInt(Handshake.RESPONSE);
+            out.writeInt(Handshake.VERSION);
+            out.writeInt(Handshake.MULTIPLEX);
+            final int id = in.readInt();
+            in.readFully(new byte[in.readInt()]);
+            out.writeInt(id);
+            out.writeInt(-1);
+            out.flush();
+            Thread.sleep(5000);
+          } catch (Exception ex) { }
+        }
+      };
+      responder.setDaemon(true);
+      responder.start();
+
+      final MultiplexedConnectionSource client =
+          new MultiplexedConnectionSource("localhost", bad.getLocalPort());
+
+      try {
+        echo(client, "hello");
+        fail("Expected the call to fail");
+      } catch (IOException ex) {
+        // The reader gave up on the socket and failed every waiting call.
+      }
+
+      client.close();
+    }
+  }
+
+  private static String echo(ConnectionSource source, String text) throws IOException {
+    try (final Connection connection = source.connect()) {
+      Serializers.STRING.write(connection.out(), text);
+      return Serializers.STRING.read(connection.in());
+    }
+  }
+
+  private void pass(final Socket client) throws IOException {
+
+    final DataInputStream in = new DataInputStream(client.getInputStream());
+    final int type = in.readInt();
+
+    if (type == Handshake.REQUEST && refusals.getAndDecrement() > 0) {
+      in.readInt();
+      in.readInt();
+      Serializers.INTEGER.write(client.getOutputStream(), NetworkCode.NO_MESSAGE);
+      client.close();
+      return;
+    }
+
+    final Socket target = new Socket("localhost", server.port());
+    Serializers.INTEGER.write(target.getOutputStream(), type);
+
+    pump(client.getInputStream(), target.getOutputStream(), target);
+    pump(target.getInputStream(), client.getOutputStream(), client);
+  }
+
+  private static void pump(final InputStream from, final OutputStream to, final Socket closing) {
+    final Thread pump = new Thread() {
+      @Override
+      public void run() {
+        final byte[] buffer = new byte[4096];
+        try {
+          for (int read = from.read(buffer); read >= 0; read = from.read(buffer)) {
+            to.write(buffer, 0, read);
+            to.flush();
+          }
+          closing.shutdownOutput();
+        } catch (IOException ex) {
+          try {
+            closing.close();
+          } catch (IOException closeEx) { }
+        }
+      }
+    };
+    pump.setDaemon(true);
+    pump.start();
+  }
+}
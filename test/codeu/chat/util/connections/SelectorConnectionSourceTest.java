@@ -0,0 +1,258 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.util.Serializers;
+
+public final class SelectorConnectionSourceTest {
+
+  private SelectorConnectionSource source;
+
+  // The number of times that a request was given out before all of it had
+  // arrived.
+  private final AtomicInteger incomplete = new AtomicInteger(0);
+
+  // ECHO
+  //
+  // Answers every request of [int type] [string text] with [int type + 1]
+  // [string text], the same way the server treats incomplete requests.
+  private final Thread echo = new Thread() {
+    @Override
+    public void run() {
+      while (true) {
+        final Connection connection;
+        try {
+          connection = source.connect();
+        } catch (IOException ex) {
+          return;
+        }
+        try {
+          final int type = Serializers.INTEGER.read(connection.in());
+          final String text = Serializers.STRING.read(connection.in());
+          Serializers.INTEGER.write(connection.out(), type + 1);
+          Serializers.STRING.write(connection.out(), text);
+        } catch (IncompleteRequestException ex) {
+          incomplete.incrementAndGet();
+        } catch (IOException ex) {
+          fail(ex.toString());
+        } finally {
+          try {
+            connection.close();
+          } catch (IOException ex) { }
+        }
+      }
+    }
+  };
+
+  @Before
+  public void doBefore() throws IOException {
+    source = (SelectorConnectionSource) SelectorConnectionSource.forPort(0, 1);
+    echo.setDaemon(true);
+    echo.start();
+  }
+
+  @After
+  public void doAfter() throws IOException {
+    source.close();
+    echo.interrupt();
+  }
+
+  @Test
+  public void testLegacyRequest() throws IOException {
+
+    try (final Socket socket = new Socket("localhost", source.port())) {
+
+      socket.getOutputStream().write(request(9, "hello"));
+
+      final InputStream in = socket.getInputStream();
+      assertEquals(10, (int) Serializers.INTEGER.read(in));
+      assertEquals("hello", Serializers.STRING.read(in));
+
+      // Legacy sockets only carry one response.
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test
+  public void testPartialRequestIsReplayed() throws Exception {
+
+    try (final Socket socket = new Socket("localhost", source.port())) {
+
+      socket.setTcpNoDelay(true);
+
+      final byte[] request = request(9, "hello");
+      final OutputStream out = socket.getOutputStream();
+
+      out.write(request, 0, 6);
+      out.flush();
+      Thread.sleep(100);
+      out.write(request, 6, request.length - 6);
+      out.flush();
+
+      final InputStream in = socket.getInputStream();
+      assertEquals(10, (int) Serializers.INTEGER.read(in));
+      assertEquals("hello", Serializers.STRING.read(in));
+    }
+
+    assertTrue(incomplete.get() >= 1);
+  }
+
+  @Test
+  public void testSlowClientIsNotReplayedForEveryChunk() throws Exception {
+
+    final char[] text = new char[20000];
+    Arrays.fill(text, 'x');
+
+    final byte[] request = request(9, new String(text));
+    final int chunk = 100;
+
+    try (final Socket socket = new Socket("localhost", source.port())) {
+
+      socket.setTcpNoDelay(true);
+
+      final OutputStream out = socket.getOutputStream();
+      for (int offset = 0; offset < request.length; offset += chunk) {
+        out.write(request, offset, Math.min(chunk, request.length - offset));
+        out.flush();
+        Thread.sleep(2);
+      }
+
+      final InputStream in = socket.getInputStream();
+      assertEquals(10, (int) Serializers.INTEGER.read(in));
+      assertEquals(new String(text), Serializers.STRING.read(in));
+    }
+
+    // The request arrived in about 200 pieces. Only the first few of them and
+    // then one each time the request doubled in size should have been read.
+    assertTrue("Read " + incomplete.get() + " times", incomplete.get() < 60);
+  }
+
+  @Test
+  public void testEndOfInputDropsIncompleteRequest() throws Exception {
+
+    try (final Socket socket = new Socket("localhost", source.port())) {
+
+      final byte[] request = request(9, "hello");
+      socket.getOutputStream().write(request, 0, 6);
+      socket.shutdownOutput();
+
+      assertEquals(-1, socket.getInputStream().read());
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testOversizedRequestDropsConnection() throws Exception {
+
+    final int chunk = 1024 * 1024;
+    final int limit = 64 * chunk;
+
+    int written = 0;
+
+    try (final Socket socket = new Socket("localhost", source.port())) {
+
+      // A text that says it is far longer than any request may be, which
+      // the client then keeps sending.
+      final OutputStream out = socket.getOutputStream();
+      Serializers.INTEGER.write(out, 9);
+      Serializers.INTEGER.write(out, Integer.MAX_VALUE);
+
+      try {
+        while (written < limit) {
+          out.write(new byte[chunk]);
+          written += chunk;
+        }
+      } catch (IOException ex) {
+        // Dropped by the server.
+      }
+    }
+
+    // The server stops reading at 16 MB. Whatever is left in the socket
+    // buffers is well short of the rest.
+    assertTrue("Wrote " + written + " bytes", written < limit);
+  }
+
+  @Test
+  public void testMultiplexedFrames() throws IOException {
+
+    try (final Socket socket = new Socket("localhost", source.port())) {
+
+      final OutputStream out = socket.getOutputStream();
+      final DataInputStream in = new DataInputStream(socket.getInputStream());
+
+      out.write(bytes(Handshake.request(Handshake.VERSION, Handshake.MULTIPLEX)));
+
+      assertEquals(Handshake.RESPONSE, in.readInt());
+      assertEquals(Handshake.VERSION, in.readInt());
+      assertEquals(Handshake.MULTIPLEX, in.readInt());
+
+      // Both frames go out in one write and may come back in either order.
+      final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+      frames.write(frame(5, request(9, "five")));
+      frames.write(frame(6, request(9, "six")));
+      out.write(frames.toByteArray());
+
+      final Map<Integer, String> responses = new HashMap<>();
+      for (int i = 0; i < 2; i++) {
+        final int id = in.readInt();
+        final byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        final InputStream response = new ByteArrayInputStream(payload);
+        assertEquals(10, (int) Serializers.INTEGER.read(response));
+        responses.put(id, Serializers.STRING.read(response));
+      }
+
+      assertEquals("five", responses.get(5));
+      assertEquals("six", responses.get(6));
+    }
+  }
+
+  private static byte[] request(int type, String text) throws IOException {
+    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(request, type);
+    Serializers.STRING.write(request, text);
+    return request.toByteArray();
+  }
+
+  private static byte[] frame(int id, byte[] payload) {
+    final ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_BYTES + payload.length);
+    frame.put(Frame.header(id, payload.length));
+    frame.put(payload);
+    return frame.array();
+  }
+
+  private static byte[] bytes(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
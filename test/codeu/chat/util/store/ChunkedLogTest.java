@@ -0,0 +1,101 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+public final class ChunkedLogTest {
+
+  // Enough values to fill several chunks.
+  private static final int COUNT = 1000;
+
+  private ChunkedLog<Integer> log;
+
+  @Before
+  public void doBefore() {
+    log = new ChunkedLog<>();
+    for (int i = 0; i < COUNT; i++) {
+      assertEquals(i, log.append(i * 10));
+    }
+  }
+
+  @Test
+  public void testGet() {
+    assertEquals(COUNT, log.size());
+    for (int i = 0; i < COUNT; i++) {
+      assertEquals(Integer.valueOf(i * 10), log.get(i));
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testGetPastEnd() {
+    log.get(COUNT);
+  }
+
+  @Test
+  public void testFrom() {
+    int expected = 990;
+    for (final Integer value : log.from(990)) {
+      assertEquals(Integer.valueOf(expected * 10), value);
+      expected++;
+    }
+    assertEquals(COUNT, expected);
+  }
+
+  @Test
+  public void testBackFrom() {
+    int expected = 5;
+    for (final Integer value : log.backFrom(5)) {
+      assertEquals(Integer.valueOf(expected * 10), value);
+      expected--;
+    }
+    assertEquals(-1, expected);
+  }
+
+  @Test
+  public void testOutOfRange() {
+    assertFalse(log.from(COUNT).iterator().hasNext());
+    assertFalse(log.backFrom(-1).iterator().hasNext());
+    assertTrue(log.backFrom(COUNT + 10).iterator().next() == (COUNT - 1) * 10);
+  }
+
+  @Test
+  public void testAsOf() {
+
+    final ChunkedLog<Integer> versioned = new ChunkedLog<>();
+    for (int i = 0; i < COUNT; i++) {
+      versioned.append(i, i / 10);  // ten values per version
+    }
+
+    final LogAccessor<Integer> old = versioned.asOf(49);
+    assertEquals(500, old.size());
+    assertEquals(COUNT, versioned.size());
+
+    versioned.append(COUNT, 1000);
+    assertEquals(500, old.size());
+    assertFalse(old.from(500).iterator().hasNext());
+    assertEquals(Integer.valueOf(499), old.backFrom(COUNT).iterator().next());
+
+    assertEquals(0, versioned.asOf(-1).size());
+    assertEquals(COUNT + 1, versioned.asOf(1000).size());
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testAsOfGetPastEnd() {
+    log.asOf(10).get(11);
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+public final class ConcurrentStoreTest {
+
+  private static final Comparator<Integer> COMPARATOR = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer a, Integer b) { return a.compareTo(b); }
+  };
+
+  private ConcurrentStore<Integer, Integer> store;
+
+  @Before
+  public void doBefore() {
+    store = new ConcurrentStore<>(COMPARATOR);
+  }
+
+  @Test
+  public void testOrderPingPongOrderInsert() {
+
+    store.insert(0, 0);
+    store.insert(4, 40);
+    store.insert(1, 10);
+    store.insert(3, 30);
+    store.insert(2, 20);
+
+    final int[] order = { 0, 10, 20, 30, 40 };
+    assertOrder(store.all(), order);
+  }
+
+  @Test
+  public void testBeforeAfterRange() {
+    store.insert(0, 0);
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(3, 30);
+    store.insert(4, 40);
+
+    assertOrder(store.before(2), new int[] { 0, 10, 20 });
+    assertOrder(store.after(2), new int[] { 20, 30, 40 });
+    assertOrder(store.range(1, 3), new int[] { 10, 20, 30 });
+    assertOrder(store.range(3, 1), new int[] { });
+  }
+
+  @Test
+  public void testAtAndFirst() {
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(2, 22);
+    store.insert(3, 30);
+
+    assertOrder(store.at(2), new int[] { 20, 21, 22 });
+    assertOrder(store.at(5), new int[] { });
+    assertOrder(store.range(2, 3), new int[] { 20, 21, 22, 30 });
+
+    assertTrue(store.first(2) == 20);
+    assertNull(store.first(5));
+  }
+
+  @Test
+  public void testReadWhileWriting() throws Exception {
+
+    final int count = 10000;
+    final AtomicBoolean failed = new AtomicBoolean(false);
+
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          store.insert(i % 100, i);
+        }
+      }
+    };
+
+    writer.start();
+
+    // Every pass must see values in key order and must never fail, no
+    // matter how far along the writer is.
+    while (writer.isAlive()) {
+      int last = -1;
+      for (final Integer value : store.all()) {
+        if (value % 100 < last % 100 && last >= 0) {
+          failed.set(true);
+        }
+        last = value;
+      }
+    }
+
+    writer.join();
+
+    assertFalse(failed.get());
+
+    int seen = 0;
+    for (final Integer value : store.all()) {
+      seen++;
+    }
+    assertEquals(count, seen);
+  }
+
+  private static void assertOrder(Iterable<Integer> actual, int[] expected) {
+
+    int at = 0;
+
+    for (final Integer i : actual) {
+      assertTrue(i == expected[at]);
+      at += 1;
+    }
+
+    assertTrue(at == expected.length);
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+public final class HashStoreTest {
+
+  private HashStore<Integer, Integer> store;
+
+  @Before
+  public void doBefore() {
+    store = new HashStore<>();
+  }
+
+  @Test
+  public void testFirst() {
+
+    store.insert(1, 10);
+    store.insert(2, 20);
+
+    assertEquals(Integer.valueOf(10), store.first(1));
+    assertEquals(Integer.valueOf(20), store.first(2));
+    assertNull(store.first(3));
+  }
+
+  @Test
+  public void testAllInInsertOrder() {
+
+    store.insert(4, 40);
+    store.insert(0, 0);
+    store.insert(2, 20);
+
+    final Iterator<Integer> values = store.all().iterator();
+
+    assertEquals(Integer.valueOf(40), values.next());
+    assertEquals(Integer.valueOf(0), values.next());
+    assertEquals(Integer.valueOf(20), values.next());
+    assertFalse(values.hasNext());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateKey() {
+    store.insert(1, 10);
+    store.insert(1, 11);
+  }
+
+  @Test
+  public void testReplaceKeepsOrder() {
+
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.replace(1, 11);
+
+    final Iterator<Integer> values = store.all().iterator();
+
+    assertEquals(Integer.valueOf(11), values.next());
+    assertEquals(Integer.valueOf(20), values.next());
+    assertFalse(values.hasNext());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReplaceMissingKey() {
+    store.replace(1, 10);
+  }
+
+  @Test
+  public void testConcurrentInserts() throws Exception {
+
+    final int writers = 4;
+    final int count = 5000;
+
+    final List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < writers; i++) {
+      final int writer = i;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < count; j++) {
+            store.insert(j * writers + writer, j);
+          }
+        }
+      });
+    }
+
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    // Every key is found and is walked exactly once.
+    final Set<Integer> walked = new HashSet<>();
+    int seen = 0;
+    for (final Integer value : store.all()) {
+      assertNotNull(value);
+      walked.add(value);
+      seen++;
+    }
+    assertEquals(writers * count, seen);
+    assertEquals(count, walked.size());
+
+    for (int key = 0; key < writers * count; key++) {
+      assertEquals(Integer.valueOf(key / writers), store.first(key));
+    }
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+public final class InvertedIndexTest {
+
+  private InvertedIndex<String, Integer> index;
+
+  @Before
+  public void doBefore() {
+    index = new InvertedIndex<>();
+    index.add("a", "Hello world", 1);
+    index.add("a", "hello, hello again", 2);
+    index.add("b", "the world is big", 3);
+    index.add("b", "nothing to see", 4);
+  }
+
+  @Test
+  public void testTerms() {
+    assertEquals(Arrays.asList("hello", "world", "42"), InvertedIndex.terms("Hello,  WORLD! 42"));
+  }
+
+  @Test
+  public void testSearchAll() {
+    assertEquals(Arrays.asList(3, 1), index.search("world", null, 0, 10));
+    assertEquals(Arrays.asList(4), index.search("SEE", null, 0, 10));
+    assertTrue(index.search("missing", null, 0, 10).isEmpty());
+  }
+
+  @Test
+  public void testSearchGroup() {
+    assertEquals(Arrays.asList(1), index.search("world", "a", 0, 10));
+    assertTrue(index.search("world", "c", 0, 10).isEmpty());
+  }
+
+  @Test
+  public void testRanking() {
+
+    // Matching both words beats matching one, and saying a word more often
+    // beats saying it once.
+    final List<Integer> found = index.search("hello world", null, 0, 10);
+    assertEquals(Arrays.asList(1, 2, 3), found);
+  }
+
+  @Test
+  public void testPaging() {
+    assertEquals(Arrays.asList(1, 2), index.search("hello world", null, 0, 2));
+    assertEquals(Arrays.asList(3), index.search("hello world", null, 2, 2));
+  }
+
+  @Test
+  public void testPagesMatchFullRanking() {
+
+    // Values say "word" between one and five times, so many share a score
+    // and are ranked by when they were added.
+    final InvertedIndex<String, Integer> large = new InvertedIndex<>();
+    for (int i = 0; i < 200; i++) {
+      final StringBuilder text = new StringBuilder();
+      for (int j = 0; j <= i % 5; j++) {
+        text.append("word ");
+      }
+      large.add(i % 2 == 0 ? "even" : "odd", text.toString(), i);
+    }
+
+    final List<Integer> all = large.search("word", null, 0, 200);
+    assertEquals(200, all.size());
+    assertEquals(Integer.valueOf(199), all.get(0));
+    assertEquals(Integer.valueOf(0), all.get(199));
+
+    final List<Integer> paged = new ArrayList<>();
+    for (int offset = 0; offset < 200; offset += 7) {
+      paged.addAll(large.search("word", null, offset, 7));
+    }
+    assertEquals(all, paged);
+
+    assertTrue(large.search("word", null, 200, 10).isEmpty());
+    assertEquals(Arrays.asList(0), large.search("word", null, 199, Integer.MAX_VALUE));
+  }
+}
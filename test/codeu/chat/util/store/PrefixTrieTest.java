@@ -0,0 +1,63 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+public final class PrefixTrieTest {
+
+  private PrefixTrie<Integer> trie;
+
+  @Before
+  public void doBefore() {
+    trie = new PrefixTrie<>();
+    trie.insert("bob", 1);
+    trie.insert("Bobby", 2);
+    trie.insert("alice", 3);
+    trie.insert("Bob", 4);
+    trie.insert("bo", 5);
+  }
+
+  @Test
+  public void testExact() {
+    assertEquals(Arrays.asList(1), list(trie.exact("bob", 10)));
+    assertEquals(Arrays.asList(4), list(trie.exact("Bob", 10)));
+    assertTrue(trie.exact("bobb", 10).isEmpty());
+    assertTrue(trie.exact("carol", 10).isEmpty());
+  }
+
+  @Test
+  public void testComplete() {
+    assertEquals(Arrays.asList(5, 1, 4, 2), list(trie.complete("BO", 10)));
+    assertEquals(Arrays.asList(3), list(trie.complete("a", 10)));
+    assertTrue(trie.complete("c", 10).isEmpty());
+  }
+
+  @Test
+  public void testLimit() {
+    assertEquals(Arrays.asList(5, 1), list(trie.complete("bo", 2)));
+    assertEquals(5, trie.complete("", 10).size());
+  }
+
+  private static Collection<Integer> list(Collection<Integer> values) {
+    return new ArrayList<>(values);
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+
+// STORE BENCHMARK
+//
+// Times inserting values that all have the same key, which is what happens
+// to the by-text index when many messages say "ok" and to the by-time index
+// when many messages arrive in the same millisecond. Each round inserts twice
+// as many values as the last. If inserting is constant time for equal keys,
+// each round takes about twice as long as the one before it rather than four
+// times as long.
+//
+// Arguments: [<values in first round> [<rounds>]]
+//
+// This is not a test and is not run by the TestRunner.
+public final class StoreBenchmark {
+
+  private static final Comparator<String> COMPARATOR = String.CASE_INSENSITIVE_ORDER;
+
+  public static void main(String[] args) {
+
+    final int first = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+
+    // Warm up so that the first round is not timing the compiler.
+    insert(first);
+
+    long previous = 0;
+    for (int round = 0, count = first; round < rounds; round++, count *= 2) {
+      final long ns = insert(count);
+      System.out.format("values=%-9d ms=%-8.1f ratio=%s%n",
+                        count,
+                        ns / 1e6,
+                        previous == 0 ? "-" : String.format("%.2f", (double) ns / previous));
+      previous = ns;
+    }
+  }
+
+  private static long insert(int count) {
+
+    final Store<String, Integer> store = new Store<>(COMPARATOR);
+
+    // A few other keys on either side so that the equal keys are in the
+    // middle of the chain.
+    store.insert("aaa", -1);
+    store.insert("zzz", -1);
+
+    final long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      store.insert("ok", i);
+    }
+    return System.nanoTime() - start;
+  }
+}
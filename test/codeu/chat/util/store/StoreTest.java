@@ -147,6 +147,20 @@ public final class StoreTest {
     assertTrue(store.first(4) == 40);
   }
 
+  @Test
+  public void testEqualKeysKeepInsertOrder() {
+    store.insert(2, 20);
+    store.insert(1, 10);
+    store.insert(2, 21);
+    store.insert(3, 30);
+    store.insert(2, 22);
+    store.insert(0, 0);
+
+    final int[] order = { 0, 10, 20, 21, 22, 30 };
+    assertOrder(store.all(), order);
+    assertOrder(store.at(2), new int[] { 20, 21, 22 });
+  }
+
   private static void assertOrder(Iterable<Integer> actual, int[] expected) {
 
     int at = 0;